@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
- * Copyright © 2011-2013 ForgeRock AS. All rights reserved.
+ * Copyright © 2011-2014 ForgeRock AS. All rights reserved.
  */
 package org.forgerock.json.fluent;
 
@@ -21,23 +21,98 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Identifies a specific value within a JSON structure. Conforms with
  * <a href="http://tools.ietf.org/html/draft-pbryan-zyp-json-pointer-02">draft-pbryan-zip-json-pointer-02</a>.
+ * <p>
+ * JSON pointers are immutable. Pointers returned by {@link #parent()} and
+ * {@link #relativePointer(int)} share the reference tokens of the pointer
+ * they were derived from, and {@link #valueOf(String)} returns cached
+ * instances of frequently used pointers, avoiding the cost of parsing them
+ * repeatedly.
  *
  * @author Paul C. Bryan
  */
 public class JsonPointer implements Iterable<String> {
 
-    /** The reference tokens that make-up the JSON pointer. */
-    private String[] tokens = new String[0];
+    private static final String[] NO_TOKENS = new String[0];
+
+    /** A pointer to the root value of a JSON structure. */
+    static final JsonPointer ROOT = new JsonPointer();
+
+    /** Cached pointers are discarded when the cache grows beyond this size. */
+    private static final int MAX_CACHED_POINTERS = 1024;
+
+    /** Recently parsed pointers, keyed on their string representation. */
+    private static final ConcurrentMap<String, JsonPointer> CACHE =
+            new ConcurrentHashMap<String, JsonPointer>();
+
+    /**
+     * The characters, other than letters and digits, which are neither
+     * encoded nor decoded in reference tokens.
+     */
+    private static final String SAFE_CHARACTERS = "-._~!$&'()*+,;=:@?";
+
+    /**
+     * Returns a JSON pointer parsed from the provided string. This method
+     * behaves like {@link #JsonPointer(String)}, except that it may return a
+     * cached instance if the same pointer has been parsed recently.
+     *
+     * @param pointer a string containing the JSON pointer of the value to identify.
+     * @return the parsed JSON pointer.
+     * @throws JsonException if the pointer is malformed.
+     */
+    public static JsonPointer valueOf(String pointer) throws JsonException {
+        JsonPointer result = CACHE.get(pointer);
+        if (result == null) {
+            result = new JsonPointer(pointer);
+            if (CACHE.size() >= MAX_CACHED_POINTERS) {
+                CACHE.clear();
+            }
+            CACHE.put(pointer, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the reference token contains only characters
+     * which are not affected by encoding or decoding.
+     */
+    private static boolean isSafe(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9')
+                    && SAFE_CHARACTERS.indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The reference tokens that make-up the JSON pointer, which may be shared
+     * with other pointers. Only the {@code size} tokens starting at
+     * {@code offset} belong to this pointer.
+     */
+    private final String[] tokens;
+
+    /** The index of this pointer's first reference token. */
+    private final int offset;
+
+    /** The number of reference tokens in this pointer. */
+    private final int size;
+
+    /** The cached hash code, or {@code 0} if it has not been computed yet. */
+    private int hashCode;
 
     /**
      * Constructs a JSON pointer, identifying the root value of a JSON structure.
      */
     public JsonPointer() {
-        // empty tokens represents pointer to root value
+        this(NO_TOKENS, 0, 0); // empty tokens represents pointer to root value
     }
 
     /**
@@ -59,7 +134,9 @@ public class JsonPointer implements Iterable<String> {
                 list.add(decode(split[n]));
             }
         }
-        tokens = list.toArray(tokens);
+        tokens = list.toArray(NO_TOKENS);
+        offset = 0;
+        size = tokens.length;
     }
 
     /**
@@ -68,7 +145,7 @@ public class JsonPointer implements Iterable<String> {
      * @param tokens an array of string reference tokens.
      */
     public JsonPointer(String[] tokens) {
-        this.tokens = Arrays.copyOf(tokens, tokens.length);
+        this(Arrays.copyOf(tokens, tokens.length), 0, tokens.length);
     }
 
     /**
@@ -81,7 +158,15 @@ public class JsonPointer implements Iterable<String> {
         for (String element : iterable) {
             list.add(element);
         }
-        tokens = list.toArray(tokens);
+        tokens = list.toArray(NO_TOKENS);
+        offset = 0;
+        size = tokens.length;
+    }
+
+    private JsonPointer(String[] tokens, int offset, int size) {
+        this.tokens = tokens;
+        this.offset = offset;
+        this.size = size;
     }
 
     /**
@@ -92,6 +177,9 @@ public class JsonPointer implements Iterable<String> {
      * @return the encode reference token value.
      */
     private String encode(String value) {
+        if (isSafe(value)) {
+            return value;
+        }
         try {
             return new URI(null, null, null, null, value).toASCIIString().substring(1).replaceAll("/", "%2F");
         } catch (URISyntaxException use) { // shouldn't happen
@@ -107,6 +195,9 @@ public class JsonPointer implements Iterable<String> {
      * @throws JsonException if the reference token value is malformed.
      */
     private String decode(String value) throws JsonException {
+        if (isSafe(value)) {
+            return value;
+        }
         try {
             return new URI("#" + value).getFragment();
         } catch (URISyntaxException use) {
@@ -120,7 +211,7 @@ public class JsonPointer implements Iterable<String> {
      * @return the number of reference tokens in the pointer.
      */
     public int size() {
-        return tokens.length;
+        return size;
     }
 
     /**
@@ -131,10 +222,10 @@ public class JsonPointer implements Iterable<String> {
      * @throws IndexOutOfBoundsException if the index is out of range.
      */
     public String get(int index) {
-        if (index < 0 || index >= tokens.length) {
+        if (index < 0 || index >= size) {
             throw new IndexOutOfBoundsException();
         }
-        return tokens[index];
+        return tokens[offset + index];
     }
 
     /**
@@ -145,7 +236,7 @@ public class JsonPointer implements Iterable<String> {
      * @return a newly allocated array of strings, containing the pointer's reference tokens.
      */
     public String[] toArray() {
-        return Arrays.copyOf(tokens, tokens.length);
+        return Arrays.copyOfRange(tokens, offset, offset + size);
     }
 
     /**
@@ -155,12 +246,7 @@ public class JsonPointer implements Iterable<String> {
      * @return a pointer to the parent of of this JSON pointer. Can be null.
      */
     public JsonPointer parent() {
-        JsonPointer parent = null;
-        if (this.tokens.length > 0) {
-            parent = new JsonPointer();
-            parent.tokens = Arrays.copyOf(this.tokens, this.tokens.length - 1);
-        }
-        return parent;
+        return size > 0 ? new JsonPointer(tokens, offset, size - 1) : null;
     }
 
     /**
@@ -197,7 +283,7 @@ public class JsonPointer implements Iterable<String> {
      *         in this pointer.
      */
     public JsonPointer relativePointer() {
-        return tokens.length > 0 ? relativePointer(tokens.length - 1) : this;
+        return size > 0 ? relativePointer(size - 1) : this;
     }
 
     /**
@@ -242,17 +328,14 @@ public class JsonPointer implements Iterable<String> {
      *             If {@code sz} is negative or greater than {@code size()}.
      */
     public JsonPointer relativePointer(int sz) {
-        int length = tokens.length;
-        if (sz < 0 || sz > length) {
+        if (sz < 0 || sz > size) {
             throw new IndexOutOfBoundsException();
-        } else if (sz == length) {
+        } else if (sz == size) {
             return this;
         } else if (sz == 0) {
-            return new JsonPointer();
+            return ROOT;
         } else {
-            JsonPointer relativePointer = new JsonPointer();
-            relativePointer.tokens = Arrays.copyOfRange(tokens, length - sz, length);
-            return relativePointer;
+            return new JsonPointer(tokens, offset + size - sz, sz);
         }
     }
 
@@ -263,7 +346,7 @@ public class JsonPointer implements Iterable<String> {
      * @return the last (leaf) reference token of the JSON pointer if it exists, {@code null} otherwise
      */
     public String leaf() {
-        return tokens.length > 0 ? tokens[tokens.length - 1] : null;
+        return size > 0 ? tokens[offset + size - 1] : null;
     }
 
     /**
@@ -278,10 +361,27 @@ public class JsonPointer implements Iterable<String> {
         if (child == null) {
             throw new NullPointerException();
         }
-        JsonPointer pointer = new JsonPointer();
-        pointer.tokens = Arrays.copyOf(this.tokens, this.tokens.length + 1);
-        pointer.tokens[pointer.tokens.length - 1] = child;
-        return pointer;
+        String[] childTokens = Arrays.copyOfRange(tokens, offset, offset + size + 1);
+        childTokens[size] = child;
+        return new JsonPointer(childTokens, 0, size + 1);
+    }
+
+    /**
+     * Returns a new JSON pointer, which identifies the value identified by the
+     * provided pointer relative to the value identified by this pointer.
+     *
+     * @param pointer the pointer relative to this pointer.
+     * @return the combined JSON pointer.
+     */
+    JsonPointer concat(JsonPointer pointer) {
+        if (pointer.size == 0) {
+            return this;
+        } else if (size == 0) {
+            return pointer;
+        }
+        String[] newTokens = Arrays.copyOfRange(tokens, offset, offset + size + pointer.size);
+        System.arraycopy(pointer.tokens, pointer.offset, newTokens, size, pointer.size);
+        return new JsonPointer(newTokens, 0, newTokens.length);
     }
 
     /**
@@ -322,14 +422,14 @@ public class JsonPointer implements Iterable<String> {
             int cursor = 0;
             @Override
             public boolean hasNext() {
-                return cursor < tokens.length;
+                return cursor < size;
             }
             @Override
             public String next() {
-                if (cursor >= tokens.length) {
+                if (cursor >= size) {
                     throw new NoSuchElementException();
                 }
-                return tokens[cursor++];
+                return tokens[offset + cursor++];
             }
             @Override
             public void remove() {
@@ -346,7 +446,7 @@ public class JsonPointer implements Iterable<String> {
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
-        for (String token : tokens) {
+        for (String token : this) {
             sb.append('/').append(encode(token));
         }
         if (sb.length() == 0) {
@@ -365,9 +465,23 @@ public class JsonPointer implements Iterable<String> {
      */
     @Override
     public boolean equals(Object o) {
-        return o instanceof JsonPointer
-                && ((JsonPointer) o).size() == size()
-                && Arrays.equals(tokens, ((JsonPointer) o).tokens);
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof JsonPointer)) {
+            return false;
+        }
+        JsonPointer that = (JsonPointer) o;
+        if (that.size != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            String token = tokens[offset + i];
+            String thatToken = that.tokens[that.offset + i];
+            if (token == null ? thatToken != null : !token.equals(thatToken)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -377,6 +491,16 @@ public class JsonPointer implements Iterable<String> {
      */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(tokens);
+        int result = hashCode;
+        if (result == 0) {
+            // Same as Arrays.hashCode() applied to this pointer's tokens.
+            result = 1;
+            for (int i = 0; i < size; i++) {
+                String token = tokens[offset + i];
+                result = 31 * result + (token == null ? 0 : token.hashCode());
+            }
+            hashCode = result;
+        }
+        return result;
     }
 }
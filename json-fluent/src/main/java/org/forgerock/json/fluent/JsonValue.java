@@ -273,7 +273,7 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
             this.transformers.addAll(transformers);
         }
         if (this.pointer == null) {
-            this.pointer = new JsonPointer();
+            this.pointer = JsonPointer.ROOT;
         }
         if (this.transformers.size() > 0) {
             applyTransformers();
@@ -900,7 +900,7 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
      */
     public JsonPointer asPointer() {
         try {
-            return (object == null ? null : new JsonPointer(asString()));
+            return (object == null ? null : JsonPointer.valueOf(asString()));
         } catch (final JsonException je) {
             throw (je instanceof JsonValueException ? je : new JsonValueException(this, je));
         }
@@ -1151,6 +1151,30 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
      *             if a transformer failed to transform the resulting value.
      */
     public JsonValue get(final JsonPointer pointer) {
+        if (transformers.isEmpty()) {
+            // Navigate the raw objects in order to avoid creating intermediate values.
+            Object result = object;
+            for (int i = 0; i < pointer.size(); i++) {
+                final String token = pointer.get(i);
+                if (result instanceof Map) {
+                    final Map<?, ?> map = (Map<?, ?>) result;
+                    result = map.get(token);
+                    if (result == null && !map.containsKey(token)) {
+                        return null;
+                    }
+                } else if (result instanceof List) {
+                    final List<?> list = (List<?>) result;
+                    final int index = toIndex(token);
+                    if (index < 0 || index >= list.size()) {
+                        return null;
+                    }
+                    result = list.get(index);
+                } else {
+                    return null;
+                }
+            }
+            return new JsonValue(result, this.pointer.concat(pointer));
+        }
         JsonValue result = this;
         for (final String token : pointer) {
             final JsonValue member = result.get(token);
@@ -1661,6 +1685,27 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
         }
     }
 
+    /**
+     * Returns an immutable version of this JSON value. {@code Map} and
+     * {@code List} objects are replaced with immutable equivalents which can
+     * be updated efficiently using the {@link #with} and {@link #without}
+     * methods, and members which are already immutable are shared rather than
+     * copied. Consequently, it is inexpensive to call this method on a value
+     * which is already immutable.
+     * <p>
+     * Like {@link #copy}, this method applies all transformations while
+     * traversing the value's members, and the returned value does not include
+     * the transformers from this value.
+     *
+     * @return an immutable version of this JSON value.
+     */
+    public JsonValue toImmutable() {
+        if (!transformers.isEmpty()) {
+            return copy().toImmutable();
+        }
+        return new JsonValue(toImmutable(object), pointer);
+    }
+
     /**
      * Returns a string representation of the JSON value. The result
      * resembles—but is not guaranteed to conform to—JSON syntax. This method
@@ -1707,6 +1752,50 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
         return sb.toString();
     }
 
+    /**
+     * Returns an immutable copy of this JSON value with the value identified by
+     * the specified pointer, relative to this value as root, set to the
+     * provided object. This value is not modified. Missing parent objects or
+     * lists are created on demand, as for {@link #putPermissive}.
+     * <p>
+     * The returned value shares all of the members of this value which are not
+     * on the path to the updated value, so the cost of this method is
+     * proportional to the depth of the pointer, once this value is immutable.
+     * See {@link #toImmutable} for more information.
+     *
+     * @param pointer
+     *            identifies the child value to set.
+     * @param object
+     *            the Java object value to set.
+     * @return an immutable copy of this JSON value containing the new value.
+     * @throws JsonValueException
+     *             if the specified pointer is invalid.
+     */
+    public JsonValue with(final JsonPointer pointer, final Object object) {
+        final JsonValue root = toImmutable();
+        return new JsonValue(root.with(root.object, pointer, 0, toImmutable(object)), this.pointer);
+    }
+
+    /**
+     * Returns an immutable copy of this JSON value with the value identified by
+     * the specified pointer, relative to this value as root, removed. This
+     * value is not modified. Removing a list element shifts any subsequent
+     * elements to the left. If the specified child value is not defined, the
+     * returned value contains the same members as this value.
+     * <p>
+     * The returned value shares all of the members of this value which are not
+     * on the path to the removed value. See {@link #toImmutable} for more
+     * information.
+     *
+     * @param pointer
+     *            the JSON pointer identifying the child value to remove.
+     * @return an immutable copy of this JSON value without the child value.
+     */
+    public JsonValue without(final JsonPointer pointer) {
+        final JsonValue root = toImmutable();
+        return new JsonValue(without(root.object, pointer, 0), this.pointer);
+    }
+
     /**
      * As per json.org a string is any Unicode character except " or \ or
      * control characters. Special characters will be escaped using a \ as
@@ -1839,6 +1928,105 @@ public class JsonValue implements Cloneable, Iterable<JsonValue> {
         }
     }
 
+    /*
+     * Returns an immutable equivalent of the provided object, sharing any
+     * members which are already immutable.
+     */
+    private static Object toImmutable(final Object object) {
+        Object o = object;
+        if (o instanceof JsonValueWrapper) {
+            o = ((JsonValueWrapper) o).unwrap();
+        }
+        if (o instanceof JsonValue) {
+            o = ((JsonValue) o).getObject();
+        }
+        if (o instanceof PersistentJsonMap || o instanceof PersistentJsonList) {
+            return o;
+        } else if (o instanceof Map) {
+            PersistentJsonMap map = PersistentJsonMap.EMPTY;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                if (entry.getKey() instanceof String) { // only expose string keys in map
+                    map = map.with((String) entry.getKey(), toImmutable(entry.getValue()));
+                }
+            }
+            return map;
+        } else if (o instanceof List) {
+            final List<?> list = (List<?>) o;
+            final List<Object> elements = new ArrayList<Object>(list.size());
+            for (final Object element : list) {
+                elements.add(toImmutable(element));
+            }
+            return PersistentJsonList.copyOf(elements);
+        } else if (o instanceof Set) {
+            final Set<Object> set = new LinkedHashSet<Object>(((Set<?>) o).size());
+            for (final Object element : (Set<?>) o) {
+                set.add(toImmutable(element));
+            }
+            return Collections.unmodifiableSet(set);
+        } else {
+            return o;
+        }
+    }
+
+    private static Object without(final Object node, final JsonPointer pointer, final int depth) {
+        if (depth == pointer.size()) {
+            return null; // empty pointer
+        }
+        final String token = pointer.get(depth);
+        final boolean isLeaf = depth == pointer.size() - 1;
+        if (node instanceof PersistentJsonMap) {
+            final PersistentJsonMap map = (PersistentJsonMap) node;
+            if (!map.containsKey(token)) {
+                return map;
+            }
+            return isLeaf ? map.without(token) : map.with(token, without(map.get(token), pointer,
+                    depth + 1));
+        } else if (node instanceof PersistentJsonList) {
+            final PersistentJsonList list = (PersistentJsonList) node;
+            final int index = toIndex(token);
+            if (index < 0 || index >= list.size()) {
+                return list;
+            }
+            return isLeaf ? list.without(index) : list.with(index, without(list.get(index),
+                    pointer, depth + 1));
+        } else {
+            return node;
+        }
+    }
+
+    private Object with(final Object node, final JsonPointer pointer, final int depth,
+            final Object object) {
+        if (depth == pointer.size()) {
+            return object;
+        }
+        final String token = pointer.get(depth);
+        Object parent = node;
+        if (parent == null) {
+            // Create the parent based on the type of the token.
+            if (isEndOfListToken(token)) {
+                parent = PersistentJsonList.EMPTY;
+            } else if (isIndexToken(token)) {
+                throw new JsonValueException(this, "Expecting a value");
+            } else {
+                parent = PersistentJsonMap.EMPTY;
+            }
+        }
+        if (parent instanceof PersistentJsonMap) {
+            final PersistentJsonMap map = (PersistentJsonMap) parent;
+            return map.with(token, with(map.get(token), pointer, depth + 1, object));
+        } else if (parent instanceof PersistentJsonList) {
+            final PersistentJsonList list = (PersistentJsonList) parent;
+            final int index = isEndOfListToken(token) ? list.size() : toIndex(token);
+            if (index < 0 || index > list.size()) {
+                throw new JsonValueException(this, "List index out of range: " + token);
+            }
+            final Object child = index < list.size() ? list.get(index) : null;
+            return list.with(index, with(child, pointer, depth + 1, object));
+        } else {
+            throw new JsonValueException(this, "Expecting a Map or List");
+        }
+    }
+
     /**
      * Unwraps a {@link JsonValueWrapper} and/or {@link JsonValue} object. If
      * nothing was unwrapped, then {@code null} is returned.
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
- * Copyright © 2013 ForgeRock AS.
+ * Copyright © 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.fluent;
 
@@ -454,6 +454,24 @@ public class JsonValueKeyAccessChecker extends JsonValue {
         return this.delegate.size();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public JsonValue toImmutable() {
+        return this.delegate.toImmutable();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public JsonValue with(final JsonPointer pointer, final Object object) {
+        return this.delegate.with(pointer, object);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public JsonValue without(final JsonPointer pointer) {
+        return this.delegate.without(pointer);
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean equals(Object obj) {
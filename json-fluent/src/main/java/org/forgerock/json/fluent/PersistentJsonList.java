@@ -0,0 +1,218 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyrighted [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.fluent;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * An immutable JSON array which supports efficient updates by returning new
+ * versions of the list which share structure with the original.
+ * <p>
+ * Elements are stored in chunks of 32 which are the leaves of a trie, plus a
+ * tail chunk holding the last elements. Replacing an element only copies the
+ * chunks along the path to the element, and appending an element usually only
+ * copies the tail. Inserting or removing elements other than at the end of
+ * the list copies the entire list. The methods inherited from {@code List}
+ * which would modify the list throw {@code UnsupportedOperationException}.
+ */
+final class PersistentJsonList extends AbstractList<Object> implements RandomAccess {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+
+    /** An empty list. */
+    static final PersistentJsonList EMPTY = new PersistentJsonList(0, BITS, EMPTY_NODE,
+            new Object[0]);
+
+    /**
+     * Returns a list containing the provided elements.
+     *
+     * @param elements
+     *            The elements, which must be immutable.
+     * @return A list containing the provided elements.
+     */
+    static PersistentJsonList copyOf(final Collection<?> elements) {
+        final Object[] array = elements.toArray();
+        if (array.length == 0) {
+            return EMPTY;
+        } else if (array.length <= WIDTH) {
+            return new PersistentJsonList(array.length, BITS, EMPTY_NODE, array);
+        }
+        PersistentJsonList list =
+                new PersistentJsonList(WIDTH, BITS, EMPTY_NODE, Arrays.copyOf(array, WIDTH));
+        for (int i = WIDTH; i < array.length; i += WIDTH) {
+            list = list.pushTail(Arrays.copyOfRange(array, i, Math.min(i + WIDTH, array.length)));
+        }
+        return list;
+    }
+
+    private static Object[] newPath(final int level, final Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        final Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private static Object[] replace(final int level, final Object[] node, final int index,
+            final Object value) {
+        final Object[] newNode = node.clone();
+        if (level == 0) {
+            newNode[index & MASK] = value;
+        } else {
+            final int i = (index >>> level) & MASK;
+            newNode[i] = replace(level - BITS, (Object[]) node[i], index, value);
+        }
+        return newNode;
+    }
+
+    private final Object[] root;
+    private final int shift;
+    private final int size;
+    private final Object[] tail;
+
+    private PersistentJsonList(final int size, final int shift, final Object[] root,
+            final Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @Override
+    public Object get(final int index) {
+        checkIndex(index);
+        if (index >= tailOffset()) {
+            return tail[index - tailOffset()];
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node[index & MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a list containing the elements of this list with the provided
+     * element appended.
+     *
+     * @param value
+     *            The element to append, which must be immutable.
+     * @return The updated list.
+     */
+    PersistentJsonList plus(final Object value) {
+        if (tail.length < WIDTH) {
+            final Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = value;
+            return new PersistentJsonList(size + 1, shift, root, newTail);
+        }
+        return pushTail(new Object[] { value });
+    }
+
+    /**
+     * Returns a list containing the elements of this list with the element at
+     * the provided index replaced, or appended if the index is the size of
+     * this list. This list is returned if the element is already present.
+     *
+     * @param index
+     *            The index of the element.
+     * @param value
+     *            The new element, which must be immutable.
+     * @return The updated list.
+     */
+    PersistentJsonList with(final int index, final Object value) {
+        if (index == size) {
+            return plus(value);
+        }
+        checkIndex(index);
+        if (get(index) == value) {
+            return this;
+        } else if (index >= tailOffset()) {
+            final Object[] newTail = tail.clone();
+            newTail[index - tailOffset()] = value;
+            return new PersistentJsonList(size, shift, root, newTail);
+        } else {
+            return new PersistentJsonList(size, shift, replace(shift, root, index, value), tail);
+        }
+    }
+
+    /**
+     * Returns a list containing the elements of this list except for the
+     * element at the provided index.
+     *
+     * @param index
+     *            The index of the element to remove.
+     * @return The updated list.
+     */
+    PersistentJsonList without(final int index) {
+        checkIndex(index);
+        if (index == size - 1 && tail.length > 1) {
+            return new PersistentJsonList(size - 1, shift, root, Arrays.copyOf(tail,
+                    tail.length - 1));
+        }
+        final Object[] elements = toArray();
+        final Object[] newElements = new Object[size - 1];
+        System.arraycopy(elements, 0, newElements, 0, index);
+        System.arraycopy(elements, index + 1, newElements, index, newElements.length - index);
+        return copyOf(Arrays.asList(newElements));
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /*
+     * Moves the full tail into the trie, replacing it with the provided new
+     * tail, adding a new level to the trie if the root is full.
+     */
+    private PersistentJsonList pushTail(final Object[] newTail) {
+        if ((size >>> BITS) > (1 << shift)) {
+            final Object[] newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            return new PersistentJsonList(size + newTail.length, shift + BITS, newRoot, newTail);
+        }
+        return new PersistentJsonList(size + newTail.length, shift, pushTail(shift, root), newTail);
+    }
+
+    private Object[] pushTail(final int level, final Object[] parent) {
+        final int i = ((size - 1) >>> level) & MASK;
+        final Object[] node = parent.clone();
+        if (level == BITS) {
+            node[i] = tail;
+        } else {
+            final Object[] child = (Object[]) parent[i];
+            node[i] = child != null ? pushTail(level - BITS, child) : newPath(level - BITS, tail);
+        }
+        return node;
+    }
+
+    private int tailOffset() {
+        return size - tail.length;
+    }
+}
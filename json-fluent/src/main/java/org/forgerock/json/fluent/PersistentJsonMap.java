@@ -0,0 +1,474 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyrighted [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.fluent;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable JSON object which supports efficient updates by returning new
+ * versions of the map which share structure with the original.
+ * <p>
+ * Small maps are stored as an array of alternating keys and values. Larger
+ * maps store their entries in a persistent vector, in the order in which keys
+ * were added, and use a hash array mapped trie to map each key to the position
+ * of its entry in the vector. Updating a key therefore only copies the nodes
+ * along the path to the key in the trie and to its entry in the vector. Either
+ * way the map iterates over its keys in the order in which they were added.
+ * Removed keys leave gaps in the vector, which is compacted once the gaps
+ * outnumber the keys. The methods inherited from {@code Map} which would
+ * modify the map throw {@code UnsupportedOperationException}.
+ */
+final class PersistentJsonMap extends AbstractMap<String, Object> {
+
+    /**
+     * A trie node containing pairs of array elements. The first element of
+     * each pair is either a key, in which case the second element is its
+     * value, or {@code null}, in which case the second element is a child
+     * node. Once all of the hash bits have been consumed the node contains
+     * the colliding keys and values, and the bitmap is not used.
+     */
+    private static final class Node {
+        private static final Node EMPTY = new Node(0, new Object[0]);
+
+        private final Object[] array;
+        private final int bitmap;
+
+        private Node(final int bitmap, final Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private Object find(final int hash, final int shift, final String key) {
+            if (shift >= HASH_BITS) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        return array[i + 1];
+                    }
+                }
+                return NOT_FOUND;
+            }
+            final int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(hash, shift + BITS, key);
+            }
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+        private int index(final int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private Node with(final int hash, final int shift, final String key, final Object value) {
+            if (shift >= HASH_BITS) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        return array[i + 1] == value ? this : new Node(0, replace(array, i + 1,
+                                value));
+                    }
+                }
+                return new Node(0, insert(array, array.length, key, value));
+            }
+            final int bit = bitpos(hash, shift);
+            final int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                return new Node(bitmap | bit, insert(array, i, key, value));
+            }
+            final Object k = array[i];
+            final Object v = array[i + 1];
+            if (k == null) {
+                final Node child = ((Node) v).with(hash, shift + BITS, key, value);
+                return child == v ? this : new Node(bitmap, replace(array, i + 1, child));
+            } else if (key.equals(k)) {
+                return v == value ? this : new Node(bitmap, replace(array, i + 1, value));
+            } else {
+                // Push both keys down into a new child node.
+                final String existingKey = (String) k;
+                final Node child =
+                        EMPTY.with(hash(existingKey), shift + BITS, existingKey, v).with(hash,
+                                shift + BITS, key, value);
+                final Object[] newArray = replace(array, i + 1, child);
+                newArray[i] = null;
+                return new Node(bitmap, newArray);
+            }
+        }
+
+        private Node without(final int hash, final int shift, final String key) {
+            if (shift >= HASH_BITS) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        return new Node(0, remove(array, i));
+                    }
+                }
+                return this;
+            }
+            final int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) {
+                final Node child = ((Node) array[i + 1]).without(hash, shift + BITS, key);
+                if (child == array[i + 1]) {
+                    return this;
+                } else if (child.array.length == 0) {
+                    return new Node(bitmap & ~bit, remove(array, i));
+                } else if (child.array.length == 2 && child.array[0] != null) {
+                    // Pull the remaining key up into this node.
+                    final Object[] newArray = replace(array, i + 1, child.array[1]);
+                    newArray[i] = child.array[0];
+                    return new Node(bitmap, newArray);
+                } else {
+                    return new Node(bitmap, replace(array, i + 1, child));
+                }
+            } else if (key.equals(k)) {
+                return new Node(bitmap & ~bit, remove(array, i));
+            } else {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * A persistent vector of the entries of a large map, stored as a trie of
+     * arrays indexed by the bits of the position of each element. Removed
+     * entries are replaced by {@code null}.
+     */
+    private static final class Vector {
+        private static final Vector EMPTY = new Vector(0, 0, new Object[WIDTH]);
+
+        private final int count;
+        private final int shift;
+        private final Object[] root;
+
+        private Vector(final int count, final int shift, final Object[] root) {
+            this.count = count;
+            this.shift = shift;
+            this.root = root;
+        }
+
+        private static Object[] set(final int level, final Object[] node, final int i,
+                final Object value) {
+            final Object[] newNode = node != null ? node.clone() : new Object[WIDTH];
+            if (level == 0) {
+                newNode[i & (WIDTH - 1)] = value;
+            } else {
+                final int sub = (i >>> level) & (WIDTH - 1);
+                newNode[sub] = set(level - BITS, (Object[]) newNode[sub], i, value);
+            }
+            return newNode;
+        }
+
+        private Vector append(final Object value) {
+            if (count == 1 << (shift + BITS)) {
+                final Object[] newRoot = new Object[WIDTH];
+                newRoot[0] = root;
+                return new Vector(count + 1, shift + BITS, set(shift + BITS, newRoot, count,
+                        value));
+            }
+            return new Vector(count + 1, shift, set(shift, root, count, value));
+        }
+
+        private Object get(final int i) {
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                node = (Object[]) node[(i >>> level) & (WIDTH - 1)];
+            }
+            return node[i & (WIDTH - 1)];
+        }
+
+        private Vector set(final int i, final Object value) {
+            return new Vector(count, shift, set(shift, root, i, value));
+        }
+    }
+
+    /** An empty map. */
+    static final PersistentJsonMap EMPTY = new PersistentJsonMap(new Object[0], 0);
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int HASH_BITS = 32;
+
+    /** Maps containing more keys than this are stored as tries. */
+    private static final int MAX_ARRAY_MAP_SIZE = 16;
+
+    private static final Object NOT_FOUND = new Object();
+
+    private static int bitpos(final int hash, final int shift) {
+        return 1 << ((hash >>> shift) & ((1 << BITS) - 1));
+    }
+
+    private static int hash(final String key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static Object[] insert(final Object[] array, final int i, final Object key,
+            final Object value) {
+        final Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = value;
+        System.arraycopy(array, i, newArray, i + 2, array.length - i);
+        return newArray;
+    }
+
+    private static Object[] remove(final Object[] array, final int i) {
+        final Object[] newArray = new Object[array.length - 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+        return newArray;
+    }
+
+    private static Object[] replace(final Object[] array, final int i, final Object value) {
+        final Object[] newArray = array.clone();
+        newArray[i] = value;
+        return newArray;
+    }
+
+    /** The keys and values of a small map, or {@code null} if this map is a trie. */
+    private final Object[] entries;
+
+    /**
+     * The root of the trie mapping keys to the position of their entry in the
+     * vector, or {@code null} if this map is small.
+     */
+    private final Node root;
+
+    /** The entries of a large map, or {@code null} if this map is small. */
+    private final Vector vector;
+
+    private final int size;
+
+    private PersistentJsonMap(final Object[] entries, final int size) {
+        this(entries, null, null, size);
+    }
+
+    private PersistentJsonMap(final Object[] entries, final Node root, final Vector vector,
+            final int size) {
+        this.entries = entries;
+        this.root = root;
+        this.vector = vector;
+        this.size = size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return find(key) != NOT_FOUND;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                if (root != null) {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int i = nextIndex(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < vector.count;
+                        }
+
+                        @SuppressWarnings("unchecked")
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (i == vector.count) {
+                                throw new NoSuchElementException();
+                            }
+                            final Entry<String, Object> entry =
+                                    (Entry<String, Object>) vector.get(i);
+                            i = nextIndex(i + 1);
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        private int nextIndex(int index) {
+                            while (index < vector.count && vector.get(index) == null) {
+                                index++;
+                            }
+                            return index;
+                        }
+                    };
+                }
+                return new Iterator<Entry<String, Object>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < entries.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (i == entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        final Entry<String, Object> entry =
+                                new SimpleImmutableEntry<String, Object>((String) entries[i],
+                                        entries[i + 1]);
+                        i += 2;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final Object value = find(key);
+        return value != NOT_FOUND ? value : null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a map containing the keys and values of this map, with the
+     * provided key mapped to the provided value. This map is returned if it
+     * already maps the key to the same value.
+     *
+     * @param key
+     *            The key.
+     * @param value
+     *            The value, which must be immutable.
+     * @return The updated map.
+     */
+    PersistentJsonMap with(final String key, final Object value) {
+        if (root != null) {
+            final int hash = hash(key);
+            final Object position = root.find(hash, 0, key);
+            final Entry<String, Object> entry =
+                    new SimpleImmutableEntry<String, Object>(key, value);
+            if (position == NOT_FOUND) {
+                return new PersistentJsonMap(null, root.with(hash, 0, key, vector.count), vector
+                        .append(entry), size + 1);
+            }
+            final int i = (Integer) position;
+            return ((Entry<?, ?>) vector.get(i)).getValue() == value ? this
+                    : new PersistentJsonMap(null, root, vector.set(i, entry), size);
+        }
+        final int i = indexOf(key);
+        if (i >= 0) {
+            return entries[i + 1] == value ? this : new PersistentJsonMap(replace(entries, i + 1,
+                    value), size);
+        } else if (size < MAX_ARRAY_MAP_SIZE) {
+            return new PersistentJsonMap(insert(entries, entries.length, key, value), size + 1);
+        } else {
+            final Object[] newEntries = insert(entries, entries.length, key, value);
+            return newLargeMap(newEntries, newEntries.length / 2);
+        }
+    }
+
+    /**
+     * Returns a map containing the keys and values of this map, except for the
+     * provided key. This map is returned if it does not contain the key.
+     *
+     * @param key
+     *            The key.
+     * @return The updated map.
+     */
+    PersistentJsonMap without(final String key) {
+        if (root != null) {
+            final int hash = hash(key);
+            final Object position = root.find(hash, 0, key);
+            if (position == NOT_FOUND) {
+                return this;
+            }
+            final Vector newVector = vector.set((Integer) position, null);
+            if (newVector.count > 2 * (size - 1) + MAX_ARRAY_MAP_SIZE) {
+                // Compact the vector by rebuilding the map without the gaps.
+                final Object[] newEntries = new Object[2 * (size - 1)];
+                int j = 0;
+                for (final Entry<String, Object> entry : entrySet()) {
+                    if (!entry.getKey().equals(key)) {
+                        newEntries[j++] = entry.getKey();
+                        newEntries[j++] = entry.getValue();
+                    }
+                }
+                return newLargeMap(newEntries, size - 1);
+            }
+            return new PersistentJsonMap(null, root.without(hash, 0, key), newVector, size - 1);
+        }
+        final int i = indexOf(key);
+        return i < 0 ? this : new PersistentJsonMap(remove(entries, i), size - 1);
+    }
+
+    private Object find(final Object key) {
+        if (!(key instanceof String)) {
+            return NOT_FOUND;
+        } else if (root != null) {
+            final Object position = root.find(hash((String) key), 0, (String) key);
+            return position != NOT_FOUND ? ((Entry<?, ?>) vector.get((Integer) position))
+                    .getValue() : NOT_FOUND;
+        } else {
+            final int i = indexOf((String) key);
+            return i >= 0 ? entries[i + 1] : NOT_FOUND;
+        }
+    }
+
+    /*
+     * Creates a large map from an array of alternating keys and values, in
+     * the order in which they should be iterated.
+     */
+    private static PersistentJsonMap newLargeMap(final Object[] entries, final int size) {
+        Node newRoot = Node.EMPTY;
+        Vector newVector = Vector.EMPTY;
+        for (int i = 0; i < entries.length; i += 2) {
+            final String key = (String) entries[i];
+            newRoot = newRoot.with(hash(key), 0, key, newVector.count);
+            newVector = newVector.append(new SimpleImmutableEntry<String, Object>(key,
+                    entries[i + 1]));
+        }
+        return new PersistentJsonMap(null, newRoot, newVector, size);
+    }
+
+    private int indexOf(final String key) {
+        for (int i = 0; i < entries.length; i += 2) {
+            if (key.equals(entries[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -12,7 +12,7 @@
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
  * Copyright © 2010–2011 ApexIdentity Inc. All rights reserved.
- * Portions Copyrighted 2011-2013 ForgeRock AS.
+ * Portions Copyrighted 2011-2014 ForgeRock AS.
  */
 package org.forgerock.json.fluent;
 
@@ -183,6 +183,42 @@ public class JsonPointerTest {
     };
     }
 
+    @Test
+    public void valueOfReturnsCachedPointers() {
+        JsonPointer p = JsonPointer.valueOf("/a/b");
+        assertThat((Object) p).isEqualTo(new JsonPointer("/a/b"));
+        assertThat((Object) JsonPointer.valueOf("/a/b")).isSameAs(p);
+    }
+
+    @Test
+    public void parentAndRelativePointerViews() {
+        JsonPointer p = new JsonPointer("/a/b/c/d");
+        JsonPointer view = p.parent().relativePointer(2);
+        assertThat((Object) view).isEqualTo(new JsonPointer("/b/c"));
+        assertThat(view.hashCode()).isEqualTo(new JsonPointer("/b/c").hashCode());
+        assertThat(view.size()).isEqualTo(2);
+        assertThat(view.get(0)).isEqualTo("b");
+        assertThat(view.leaf()).isEqualTo("c");
+        assertThat(view.toArray()).isEqualTo(new String[] { "b", "c" });
+        assertThat(view.toString()).isEqualTo("/b/c");
+        assertThat((Object) view.child("x")).isEqualTo(new JsonPointer("/b/c/x"));
+        assertThat((Object) p).isEqualTo(new JsonPointer("/a/b/c/d"));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void viewGetOutOfRange() {
+        new JsonPointer("/a/b/c").parent().get(2);
+    }
+
+    @Test
+    public void escapedTokensRoundTrip() {
+        JsonPointer p = new JsonPointer("/a%20b/c%3Fd/caf%C3%A9");
+        assertThat(p.get(0)).isEqualTo("a b");
+        assertThat(p.get(1)).isEqualTo("c?d");
+        assertThat(p.get(2)).isEqualTo("caf\u00e9");
+        assertThat((Object) new JsonPointer(p.toString())).isEqualTo(p);
+    }
+
     @Test(dataProvider = "validJsonPointers")
     public void toString(final String pointer) {
         JsonPointer p = new JsonPointer(pointer);
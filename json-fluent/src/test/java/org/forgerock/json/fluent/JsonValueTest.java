@@ -576,6 +576,98 @@ public class JsonValueTest {
         assertThat(value.asList()).containsOnly("2", "3", "5", "8");
     }
 
+    @Test
+    public void getPointerShouldNavigateMapsAndLists() {
+        final JsonValue value =
+                json(object(field("a", object(field("b", array("x", null))))));
+        assertThat(value.get(ptr("/a/b/0")).asString()).isEqualTo("x");
+        assertThat(value.get(ptr("/a/b/1")).isNull()).isTrue();
+        assertThat(value.get(ptr("/a/b/2"))).isNull();
+        assertThat(value.get(ptr("/a/c"))).isNull();
+        assertThat(value.get(ptr("/a/b/0/d"))).isNull();
+        assertThat((Object) value.get("a").get(ptr("/b/0")).getPointer()).isEqualTo(
+                ptr("/a/b/0"));
+    }
+
+    @Test
+    public void toImmutableShouldCopyMutableMembers() {
+        final List<Object> roles = new ArrayList<Object>(Arrays.asList("sales"));
+        final JsonValue value = json(object(field("name", "alice"), field("roles", roles)));
+        final JsonValue immutable = value.toImmutable();
+        roles.add("it");
+        value.put("name", "bob");
+        assertThat(immutable.getObject()).isEqualTo(
+                object(field("name", "alice"), field("roles", array("sales"))));
+        assertThat(immutable.toImmutable().getObject()).isSameAs(immutable.getObject());
+    }
+
+    @Test
+    public void toImmutableShouldPreserveFieldOrder() {
+        final JsonValue value = json(object());
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            keys.add("field" + (39 - i));
+            value.put("field" + (39 - i), i);
+        }
+        final JsonValue immutable = value.toImmutable();
+        assertThat(new ArrayList<String>(immutable.asMap().keySet())).isEqualTo(keys);
+        final JsonValue updated = immutable.with(new JsonPointer("/field50"), 50);
+        keys.add("field50");
+        assertThat(new ArrayList<String>(updated.asMap().keySet())).isEqualTo(keys);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void toImmutableShouldReturnUnmodifiableMaps() {
+        json(object(field("name", "alice"))).toImmutable().put("name", "bob");
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void toImmutableShouldReturnUnmodifiableLists() {
+        json(object(field("roles", array("sales")))).toImmutable().get("roles").add("it");
+    }
+
+    @Test
+    public void withShouldShareUnmodifiedMembers() {
+        final JsonValue value =
+                json(object(field("name", "alice"), field("address", object(field("city",
+                        "Grenoble"))), field("roles", array("sales")))).toImmutable();
+        final JsonValue updated = value.with(ptr("/address/city"), "Bristol");
+        assertThat(value.get(ptr("/address/city")).asString()).isEqualTo("Grenoble");
+        assertThat(updated.get(ptr("/address/city")).asString()).isEqualTo("Bristol");
+        assertThat(updated.get("roles").getObject()).isSameAs(value.get("roles").getObject());
+        assertThat(updated.with(ptr("/address/city"), "Bristol").get("address").getObject())
+                .isSameAs(updated.get("address").getObject());
+    }
+
+    @Test
+    public void withShouldCreateMissingParents() {
+        final JsonValue value = json(object()).with(ptr("/a/b"), "c").with(ptr("/d/-"), "e");
+        assertThat(value.getObject()).isEqualTo(
+                object(field("a", object(field("b", "c"))), field("d", array("e"))));
+    }
+
+    @Test
+    public void withShouldSetListElements() {
+        final JsonValue value = json(array("a", "b")).with(ptr("/1"), "c").with(ptr("/2"), "d");
+        assertThat(value.getObject()).isEqualTo(array("a", "c", "d"));
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void withShouldRejectListIndexOutOfRange() {
+        json(array("a", "b")).with(ptr("/3"), "c");
+    }
+
+    @Test
+    public void withoutShouldRemoveMembers() {
+        final JsonValue value =
+                json(object(field("name", "alice"), field("roles", array("sales", "it"))));
+        final JsonValue updated = value.without(ptr("/name")).without(ptr("/roles/0"));
+        assertThat(updated.getObject()).isEqualTo(object(field("roles", array("it"))));
+        assertThat(updated.without(ptr("/missing/field")).getObject()).isSameAs(
+                updated.getObject());
+        assertThat(value.get("name").asString()).isEqualTo("alice");
+    }
+
     private JsonPointer ptr(final String pointer) {
         return new JsonPointer(pointer);
     }
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyrighted [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.fluent;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for PersistentJsonList.
+ */
+@SuppressWarnings("javadoc")
+public class PersistentJsonListTest {
+
+    @DataProvider
+    public Object[][] sizes() {
+        return new Object[][] { { 0 }, { 1 }, { 32 }, { 33 }, { 1024 }, { 1056 }, { 1057 },
+            { 40000 } };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void copyOfShouldContainAllElements(final int size) {
+        final List<Object> expected = range(size);
+        final PersistentJsonList list = PersistentJsonList.copyOf(expected);
+        assertThat(list).isEqualTo(expected);
+        assertThat(list.size()).isEqualTo(size);
+    }
+
+    @Test(dataProvider = "sizes")
+    public void plusShouldAppendElements(final int size) {
+        PersistentJsonList list = PersistentJsonList.EMPTY;
+        for (int i = 0; i < size; i++) {
+            list = list.plus(i);
+        }
+        assertThat(list).isEqualTo(range(size));
+        assertThat(list.plus("last").get(size)).isEqualTo("last");
+    }
+
+    @Test
+    public void updatesShouldNotAffectPreviousVersions() {
+        final Random random = new Random(0);
+        final List<Object> expected = range(2000);
+        final PersistentJsonList original = PersistentJsonList.copyOf(expected);
+        PersistentJsonList list = original;
+        for (int i = 0; i < 1000; i++) {
+            final int index = random.nextInt(expected.size());
+            if (random.nextInt(4) == 0) {
+                expected.remove(index);
+                list = list.without(index);
+            } else {
+                expected.set(index, "x" + i);
+                list = list.with(index, "x" + i);
+            }
+        }
+        assertThat(list).isEqualTo(expected);
+        assertThat(original).isEqualTo(range(2000));
+    }
+
+    @Test
+    public void withShouldReturnThisWhenElementIsUnchanged() {
+        final PersistentJsonList list = PersistentJsonList.copyOf(range(100));
+        assertThat(list.with(10, list.get(10))).isSameAs(list);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void shouldBeUnmodifiable() {
+        PersistentJsonList.copyOf(range(10)).add(10);
+    }
+
+    private List<Object> range(final int size) {
+        final List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyrighted [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.fluent;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for PersistentJsonMap.
+ */
+@SuppressWarnings("javadoc")
+public class PersistentJsonMapTest {
+
+    @Test
+    public void smallMapsShouldPreserveInsertionOrder() {
+        final PersistentJsonMap map =
+                PersistentJsonMap.EMPTY.with("c", 1).with("a", 2).with("b", 3).with("a", 4);
+        assertThat(new ArrayList<String>(map.keySet())).containsExactly("c", "a", "b");
+        assertThat(map.get("a")).isEqualTo(4);
+    }
+
+    @Test
+    public void largeMapsShouldPreserveInsertionOrder() {
+        PersistentJsonMap map = PersistentJsonMap.EMPTY;
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            map = map.with("key" + (99 - i), i);
+            expected.add("key" + (99 - i));
+        }
+        map = map.with("key50", "fifty");
+        for (int i = 0; i < 100; i += 3) {
+            map = map.without("key" + i);
+            expected.remove("key" + i);
+        }
+        map = map.with("key0", 0);
+        expected.add("key0");
+        assertThat(new ArrayList<String>(map.keySet())).isEqualTo(expected);
+        assertThat(map.get("key50")).isEqualTo("fifty");
+    }
+
+    @Test
+    public void updatesShouldNotAffectPreviousVersions() {
+        PersistentJsonMap map = PersistentJsonMap.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            map = map.with("key" + i, i);
+        }
+        final PersistentJsonMap updated = map.with("key1", "one").without("key2");
+        assertThat(map.size()).isEqualTo(100);
+        assertThat(map.get("key1")).isEqualTo(1);
+        assertThat(map.get("key2")).isEqualTo(2);
+        assertThat(updated.size()).isEqualTo(99);
+        assertThat(updated.get("key1")).isEqualTo("one");
+        assertThat(updated.containsKey("key2")).isFalse();
+    }
+
+    @Test
+    public void nullValuesShouldBeDistinctFromMissingKeys() {
+        final PersistentJsonMap map = PersistentJsonMap.EMPTY.with("a", null);
+        assertThat(map.containsKey("a")).isTrue();
+        assertThat(map.containsKey("b")).isFalse();
+        assertThat(map.get("a")).isNull();
+    }
+
+    @Test
+    public void shouldHandleKeysWithTheSameHashCode() {
+        // "Aa" and "BB" have the same hash code, as do their concatenations.
+        final String[] keys = { "AaAa", "AaBB", "BBAa", "BBBB" };
+        PersistentJsonMap map = PersistentJsonMap.EMPTY;
+        for (int i = 0; i < 20; i++) {
+            map = map.with("filler" + i, i);
+        }
+        for (final String key : keys) {
+            map = map.with(key, key);
+        }
+        for (final String key : keys) {
+            assertThat(map.get(key)).isEqualTo(key);
+        }
+        map = map.without("AaBB").without("BBAa").without("AaAa");
+        assertThat(map.get("BBBB")).isEqualTo("BBBB");
+        assertThat(map.containsKey("AaAa")).isFalse();
+        assertThat(map.size()).isEqualTo(21);
+    }
+
+    @Test
+    public void shouldBehaveLikeHashMap() {
+        final Random random = new Random(0);
+        final Map<String, Object> expected = new HashMap<String, Object>();
+        final List<PersistentJsonMap> versions = new ArrayList<PersistentJsonMap>();
+        final List<Map<String, Object>> expectedVersions = new ArrayList<Map<String, Object>>();
+        PersistentJsonMap map = PersistentJsonMap.EMPTY;
+        for (int i = 0; i < 5000; i++) {
+            final String key = String.valueOf(random.nextInt(1000));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                expected.put(key, i);
+                map = map.with(key, i);
+            }
+            if (i % 500 == 0) {
+                versions.add(map);
+                expectedVersions.add(new HashMap<String, Object>(expected));
+            }
+        }
+        assertThat(map).isEqualTo(expected);
+        assertThat(map.size()).isEqualTo(expected.size());
+        assertThat(map.keySet()).isEqualTo(expected.keySet());
+        for (int i = 0; i < versions.size(); i++) {
+            assertThat(versions.get(i)).isEqualTo(expectedVersions.get(i));
+        }
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012-2013 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource.servlet;
 
@@ -45,6 +45,10 @@ import org.forgerock.json.resource.Context;
  * Servlet's configuration (see {@link #getConnectionFactory()} more details).
  * </ul>
  * Most implementations will use the second approach.
+ * <p>
+ * The maximum size in bytes of request content may be limited using the
+ * {@code max-request-body-size} initialization parameter (see
+ * {@link HttpServletAdapter#setMaxRequestBodySize(long)}).
  */
 public class HttpServlet extends javax.servlet.http.HttpServlet {
     private static final String INIT_PARAM_CONNECTION_CLASS = "connection-factory-class";
@@ -53,6 +57,7 @@ public class HttpServlet extends javax.servlet.http.HttpServlet {
     private static final String INIT_PARAM_CONTEXT_CLASS = "context-factory-class";
     private static final String INIT_PARAM_CONTEXT_METHOD = "context-factory-method";
     private static final String INIT_PARAM_CONTEXT_METHOD_DEFAULT = "getHttpServletContextFactory";
+    private static final String INIT_PARAM_MAX_REQUEST_BODY_SIZE = "max-request-body-size";
     private static final String METHOD_PATCH = "PATCH";
     private static final long serialVersionUID = 6089858120348026823L;
 
@@ -156,6 +161,17 @@ public class HttpServlet extends javax.servlet.http.HttpServlet {
             contextFactory = getHttpServletContextFactory();
         }
         adapter = new HttpServletAdapter(getServletContext(), connectionFactory, contextFactory);
+        final String maxRequestBodySize = getInitParameter(INIT_PARAM_MAX_REQUEST_BODY_SIZE);
+        if (maxRequestBodySize != null) {
+            try {
+                adapter.setMaxRequestBodySize(Long.parseLong(maxRequestBodySize.trim()));
+            } catch (final IllegalArgumentException e) {
+                // FIXME: i18n
+                throw new ServletException("Servlet initialization parameter '"
+                        + INIT_PARAM_MAX_REQUEST_BODY_SIZE + "' has an invalid value: "
+                        + maxRequestBodySize, e);
+            }
+        }
     }
 
     @Override
@@ -44,6 +44,7 @@ import org.forgerock.json.resource.Requests;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.json.resource.Version;
+import org.forgerock.json.resource.servlet.ServletApiVersionAdapter.RequestContentHandler;
 
 import static org.forgerock.json.resource.servlet.HttpUtils.CONTENT_TYPE_REGEX;
 import static org.forgerock.json.resource.servlet.HttpUtils.ETAG_ANY;
@@ -129,6 +130,7 @@ public final class HttpServletAdapter {
     private final ServletApiVersionAdapter syncFactory;
     private final ConnectionFactory connectionFactory;
     private final HttpServletContextFactory contextFactory;
+    private volatile long maxRequestBodySize = 0;
 
     /**
      * Creates a new servlet adapter with the provided connection factory and a
@@ -204,6 +206,28 @@ public final class HttpServletAdapter {
         this.syncFactory = ServletApiVersionAdapter.getInstance(servletContext);
     }
 
+    /**
+     * Sets the maximum size in bytes of the JSON content which may be included
+     * in requests. Requests whose declared content length exceeds the limit
+     * are rejected before any content is read, and requests without a declared
+     * content length are rejected as soon as the limit is reached while the
+     * content is being parsed. In both cases the request fails with a
+     * {@code 413 Request Entity Too Large} error. The default is {@code 0},
+     * meaning no limit.
+     *
+     * @param size
+     *            The maximum request body size in bytes, or {@code 0} if there
+     *            is no limit.
+     * @return This adapter.
+     */
+    public HttpServletAdapter setMaxRequestBodySize(final long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative maximum request body size: " + size);
+        }
+        this.maxRequestBodySize = size;
+        return this;
+    }
+
     /**
      * Services the provided HTTP servlet request.
      *
@@ -386,6 +410,16 @@ public final class HttpServletAdapter {
     }
 
     void doPatch(final HttpServletRequest req, final HttpServletResponse resp) {
+        syncFactory.readRequestContent(req, resp, maxRequestBodySize,
+                new RequestContentHandler() {
+                    @Override
+                    public void handleRequest(final HttpServletRequest request) {
+                        doPatch0(request, resp);
+                    }
+                });
+    }
+
+    private void doPatch0(final HttpServletRequest req, final HttpServletResponse resp) {
         try {
             // Parse out the required API versions.
             final AcceptAPIVersion acceptVersion = parseAcceptAPIVersion(req);
@@ -404,7 +438,7 @@ public final class HttpServletAdapter {
             final Map<String, String[]> parameters = req.getParameterMap();
             final PatchRequest request =
                     Requests.newPatchRequest(getResourceName(req)).setRevision(getIfMatch(req));
-            request.getPatchOperations().addAll(getJsonPatchContent(req));
+            request.getPatchOperations().addAll(getJsonPatchContent(req, maxRequestBodySize));
             for (final Map.Entry<String, String[]> p : parameters.entrySet()) {
                 final String name = p.getKey();
                 final String[] values = p.getValue();
@@ -423,6 +457,16 @@ public final class HttpServletAdapter {
     }
 
     void doPost(final HttpServletRequest req, final HttpServletResponse resp) {
+        syncFactory.readRequestContent(req, resp, maxRequestBodySize,
+                new RequestContentHandler() {
+                    @Override
+                    public void handleRequest(final HttpServletRequest request) {
+                        doPost0(request, resp);
+                    }
+                });
+    }
+
+    private void doPost0(final HttpServletRequest req, final HttpServletResponse resp) {
         try {
             // Parse out the required API versions.
             final AcceptAPIVersion acceptVersion = parseAcceptAPIVersion(req);
@@ -438,7 +482,7 @@ public final class HttpServletAdapter {
             final Map<String, String[]> parameters = req.getParameterMap();
             final String action = asSingleValue(PARAM_ACTION, getParameter(req, PARAM_ACTION));
             if (action.equalsIgnoreCase(ACTION_ID_CREATE)) {
-                final JsonValue content = getJsonContent(req);
+                final JsonValue content = getJsonContent(req, maxRequestBodySize);
                 final CreateRequest request =
                         Requests.newCreateRequest(getResourceName(req), content);
                 for (final Map.Entry<String, String[]> p : parameters.entrySet()) {
@@ -457,7 +501,7 @@ public final class HttpServletAdapter {
                 doRequest(req, resp, acceptVersion, request);
             } else {
                 // Action request.
-                final JsonValue content = getJsonActionContent(req);
+                final JsonValue content = getJsonActionContent(req, maxRequestBodySize);
                 final ActionRequest request =
                         Requests.newActionRequest(getResourceName(req), action).setContent(content);
                 for (final Map.Entry<String, String[]> p : parameters.entrySet()) {
@@ -481,6 +525,16 @@ public final class HttpServletAdapter {
     }
 
     void doPut(final HttpServletRequest req, final HttpServletResponse resp) {
+        syncFactory.readRequestContent(req, resp, maxRequestBodySize,
+                new RequestContentHandler() {
+                    @Override
+                    public void handleRequest(final HttpServletRequest request) {
+                        doPut0(request, resp);
+                    }
+                });
+    }
+
+    private void doPut0(final HttpServletRequest req, final HttpServletResponse resp) {
         try {
             // Parse out the required API versions.
             final AcceptAPIVersion acceptVersion = parseAcceptAPIVersion(req);
@@ -500,7 +554,7 @@ public final class HttpServletAdapter {
             }
 
             final Map<String, String[]> parameters = req.getParameterMap();
-            final JsonValue content = getJsonContent(req);
+            final JsonValue content = getJsonContent(req, maxRequestBodySize);
 
             final String rev = getIfNoneMatch(req);
             if (ETAG_ANY.equals(rev)) {
@@ -560,7 +614,8 @@ public final class HttpServletAdapter {
             throws ResourceException, Exception {
         final Context context = newRequestContext(req, acceptVersion);
         final ServletSynchronizer sync = syncFactory.createServletSynchronizer(req, resp);
-        final RequestRunner runner = new RequestRunner(context, request, req, resp, sync);
+        final RequestRunner runner =
+                new RequestRunner(context, request, req, syncFactory.getResponse(sync, resp), sync);
         connectionFactory.getConnectionAsync(runner);
         sync.awaitIfNeeded(); // Only blocks when async is not supported.
     }
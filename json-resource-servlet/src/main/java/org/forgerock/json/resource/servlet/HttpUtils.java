@@ -16,12 +16,17 @@
 package org.forgerock.json.resource.servlet;
 
 import java.io.Closeable;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -40,9 +45,11 @@ import javax.mail.internet.ParseException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.forgerock.json.fluent.JsonValue;
 import org.forgerock.json.resource.ActionRequest;
@@ -118,6 +125,7 @@ public final class HttpUtils {
     public static final Version PROTOCOL_VERSION = Version.valueOf("1.0");
 
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON_FACTORY = JSON_MAPPER.getJsonFactory();
 
     private static final String FILENAME = "filename";
     private static final String MIME_TYPE = "mimetype";
@@ -130,7 +138,9 @@ public final class HttpUtils {
     private static final int PART_DATA_TYPE = 2;
     private static final String REFERENCE_TAG = "$ref";
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final long NO_BODY_SIZE_LIMIT = 0;
+    private static final int STATUS_REQUEST_ENTITY_TOO_LARGE = 413;
     private static final int EOF = -1;
 
     /**
@@ -268,7 +278,7 @@ public final class HttpUtils {
                 prepareResponse(req, resp);
                 resp.setStatus(re.getCode());
                 final JsonGenerator writer = getJsonGenerator(req, resp);
-                writer.writeObject(safeErrorResponse(re).getObject());
+                writeJsonValue(writer, safeErrorResponse(re).getObject());
                 closeQuietly(writer, resp.getOutputStream());
             } catch (final IOException ignored) {
                 // Ignore the error since this was probably the cause.
@@ -344,7 +354,7 @@ public final class HttpUtils {
      *             valid JSON.
      */
     static JsonValue getJsonContentIfPresent(final HttpServletRequest req) throws ResourceException {
-        return getJsonContent0(req, true);
+        return getJsonContent0(req, true, NO_BODY_SIZE_LIMIT);
     }
 
     /**
@@ -361,7 +371,28 @@ public final class HttpUtils {
      *             valid JSON.
      */
     static JsonValue getJsonContent(final HttpServletRequest req) throws ResourceException {
-        return getJsonContent0(req, false);
+        return getJsonContent(req, NO_BODY_SIZE_LIMIT);
+    }
+
+    /**
+     * Returns the content of the provided HTTP request decoded as a JSON
+     * object, rejecting requests whose body exceeds the provided size. If
+     * there is no content then a {@link BadRequestException} will be thrown.
+     *
+     * @param req
+     *            The HTTP request.
+     * @param maxBodySize
+     *            The maximum size of the request body in bytes, or {@code 0}
+     *            if there is no limit.
+     * @return The content of the provided HTTP request decoded as a JSON
+     *         object.
+     * @throws ResourceException
+     *             If the content could not be read, if the content was too
+     *             large, or if the content was not valid JSON.
+     */
+    static JsonValue getJsonContent(final HttpServletRequest req, final long maxBodySize)
+            throws ResourceException {
+        return getJsonContent0(req, false, maxBodySize);
     }
 
     /**
@@ -379,7 +410,7 @@ public final class HttpUtils {
     static JsonGenerator getJsonGenerator(final HttpServletRequest req,
             final HttpServletResponse resp) throws IOException {
         final JsonGenerator writer =
-                JSON_MAPPER.getJsonFactory().createJsonGenerator(resp.getOutputStream());
+                JSON_FACTORY.createJsonGenerator(resp.getOutputStream());
         writer.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
 
         // Enable pretty printer if requested.
@@ -411,7 +442,27 @@ public final class HttpUtils {
      */
     static List<PatchOperation> getJsonPatchContent(final HttpServletRequest req)
             throws ResourceException {
-        return PatchOperation.valueOfList(new JsonValue(parseJsonBody(req, false)));
+        return getJsonPatchContent(req, NO_BODY_SIZE_LIMIT);
+    }
+
+    /**
+     * Returns the content of the provided HTTP request decoded as a JSON patch
+     * object, rejecting requests whose body exceeds the provided size.
+     *
+     * @param req
+     *            The HTTP request.
+     * @param maxBodySize
+     *            The maximum size of the request body in bytes, or {@code 0}
+     *            if there is no limit.
+     * @return The content of the provided HTTP request decoded as a JSON patch
+     *         object.
+     * @throws ResourceException
+     *             If the content could not be read, if the content was too
+     *             large, or if the content was not a valid JSON patch.
+     */
+    static List<PatchOperation> getJsonPatchContent(final HttpServletRequest req,
+            final long maxBodySize) throws ResourceException {
+        return PatchOperation.valueOfList(new JsonValue(parseJsonBody(req, false, maxBodySize)));
     }
 
     /**
@@ -427,7 +478,27 @@ public final class HttpUtils {
      *             valid JSON.
      */
     static JsonValue getJsonActionContent(final HttpServletRequest req) throws ResourceException {
-        return new JsonValue(parseJsonBody(req, true));
+        return getJsonActionContent(req, NO_BODY_SIZE_LIMIT);
+    }
+
+    /**
+     * Returns the content of the provided HTTP request decoded as a JSON action
+     * content, rejecting requests whose body exceeds the provided size.
+     *
+     * @param req
+     *            The HTTP request.
+     * @param maxBodySize
+     *            The maximum size of the request body in bytes, or {@code 0}
+     *            if there is no limit.
+     * @return The content of the provided HTTP request decoded as a JSON action
+     *         content.
+     * @throws ResourceException
+     *             If the content could not be read, if the content was too
+     *             large, or if the content was not valid JSON.
+     */
+    static JsonValue getJsonActionContent(final HttpServletRequest req, final long maxBodySize)
+            throws ResourceException {
+        return new JsonValue(parseJsonBody(req, true, maxBodySize));
     }
 
     /**
@@ -519,9 +590,62 @@ public final class HttpUtils {
         }
     }
 
-    private static JsonValue getJsonContent0(final HttpServletRequest req, final boolean allowEmpty)
-            throws ResourceException {
-        final Object body = parseJsonBody(req, allowEmpty);
+    /**
+     * Writes the provided JSON value to the generator by walking the maps,
+     * lists, and primitive objects used by JsonValue and emitting their tokens
+     * directly. This is the counterpart of {@link #getJsonContent} and avoids
+     * looking up a serializer for each map, list, and value as
+     * {@code JsonGenerator.writeObject} does. Objects which are not JSON values
+     * are written using {@code writeObject}.
+     *
+     * @param writer
+     *            The JSON generator.
+     * @param object
+     *            The JSON value to be written, which may be {@code null}.
+     * @throws IOException
+     *             If the value could not be written.
+     */
+    static void writeJsonValue(final JsonGenerator writer, final Object object)
+            throws IOException {
+        if (object == null) {
+            writer.writeNull();
+        } else if (object instanceof String) {
+            writer.writeString((String) object);
+        } else if (object instanceof Map) {
+            writer.writeStartObject();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                writer.writeFieldName(String.valueOf(entry.getKey()));
+                writeJsonValue(writer, entry.getValue());
+            }
+            writer.writeEndObject();
+        } else if (object instanceof Collection) {
+            writer.writeStartArray();
+            for (final Object element : (Collection<?>) object) {
+                writeJsonValue(writer, element);
+            }
+            writer.writeEndArray();
+        } else if (object instanceof Integer) {
+            writer.writeNumber((Integer) object);
+        } else if (object instanceof Long) {
+            writer.writeNumber((Long) object);
+        } else if (object instanceof Boolean) {
+            writer.writeBoolean((Boolean) object);
+        } else if (object instanceof Double) {
+            writer.writeNumber((Double) object);
+        } else if (object instanceof Float) {
+            writer.writeNumber((Float) object);
+        } else if (object instanceof BigDecimal) {
+            writer.writeNumber((BigDecimal) object);
+        } else if (object instanceof BigInteger) {
+            writer.writeNumber((BigInteger) object);
+        } else {
+            writer.writeObject(object);
+        }
+    }
+
+    private static JsonValue getJsonContent0(final HttpServletRequest req,
+            final boolean allowEmpty, final long maxBodySize) throws ResourceException {
+        final Object body = parseJsonBody(req, allowEmpty, maxBodySize);
         if (body == null) {
             return new JsonValue(new LinkedHashMap<String, Object>(0));
         } else if (!(body instanceof Map)) {
@@ -585,7 +709,7 @@ public final class HttpUtils {
         } else if (FILENAME.equalsIgnoreCase(partDataType)) {
             return part.getFileName();
         } else if (CONTENT.equalsIgnoreCase(partDataType)) {
-            return Base64url.encode(toByteArray(part.getInputStream()));
+            return Base64url.encode(toByteArray(part));
         } else {
             throw new BadRequestException(
                     "The request could not be processed because the multipart request "
@@ -647,20 +771,37 @@ public final class HttpUtils {
         }
     }
 
-    private static Object parseJsonBody(final HttpServletRequest req, final boolean allowEmpty)
-            throws BadRequestException, ResourceException {
+    private static Object parseJsonBody(final HttpServletRequest req, final boolean allowEmpty,
+            final long maxBodySize) throws BadRequestException, ResourceException {
+        // Reject requests which are known to be too large before reading anything.
+        if (maxBodySize > 0 && req.getContentLength() > maxBodySize) {
+            throw newRequestBodyTooLargeException(maxBodySize);
+        }
         JsonParser parser = null;
         try {
             boolean isMultiPartRequest = isMultiPartRequest(req.getContentType());
+            InputStream body = req.getInputStream();
+            if (maxBodySize > 0) {
+                // The content length may be absent, e.g. for chunked requests.
+                body = new SizeLimitedInputStream(body, maxBodySize);
+            }
             MimeMultipart mimeMultiparts = null;
             if (isMultiPartRequest) {
-                mimeMultiparts = new MimeMultipart(new HttpServletRequestDataSource(req));
+                mimeMultiparts =
+                        new MimeMultipart(new HttpServletRequestDataSource(req, body));
+                // Parse the parts now so that size limit errors are not masked.
+                mimeMultiparts.getCount();
                 BodyPart jsonPart = getJsonRequestPart(mimeMultiparts);
-                parser = JSON_MAPPER.getJsonFactory().createJsonParser(jsonPart.getInputStream());
+                parser = JSON_FACTORY.createJsonParser(jsonPart.getInputStream());
             } else {
-                parser = JSON_MAPPER.getJsonFactory().createJsonParser(req.getInputStream());
+                parser = JSON_FACTORY.createJsonParser(body);
+            }
+
+            if (parser.nextToken() == null) {
+                // No content: handled in the same way as a premature end of input.
+                throw new EOFException();
             }
-            Object content = parser.readValueAs(Object.class);
+            Object content = readJsonValue(parser);
 
             // Ensure that there is no trailing data following the JSON resource.
             boolean hasTrailingGarbage;
@@ -692,9 +833,14 @@ public final class HttpUtils {
                 throw new BadRequestException("The request could not be processed "
                         + "because it did not contain any JSON content", e);
             }
+        } catch (final RequestBodyTooLargeException e) {
+            throw newRequestBodyTooLargeException(maxBodySize);
         } catch (final IOException e) {
             throw adapt(e);
         } catch (final MessagingException e) {
+            if (e.getNextException() instanceof RequestBodyTooLargeException) {
+                throw newRequestBodyTooLargeException(maxBodySize);
+            }
             throw new BadRequestException(
                     "The request could not be processed because it can't be parsed", e);
         } finally {
@@ -702,6 +848,54 @@ public final class HttpUtils {
         }
     }
 
+    /*
+     * Reads the JSON value at the parser's current token directly into the
+     * maps, lists, and primitive objects used by JsonValue. This produces the
+     * same objects as ObjectMapper.readValue(parser, Object.class) without
+     * looking up a deserializer and creating a deserialization context for
+     * each request.
+     */
+    private static Object readJsonValue(final JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+        case START_OBJECT:
+            final Map<String, Object> object = new LinkedHashMap<String, Object>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                object.put(name, readJsonValue(parser));
+            }
+            return object;
+        case START_ARRAY:
+            final List<Object> array = new ArrayList<Object>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                array.add(readJsonValue(parser));
+            }
+            return array;
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            return parser.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw new JsonParseException("Unexpected token " + parser.getCurrentToken(), parser
+                    .getCurrentLocation());
+        }
+    }
+
+    private static ResourceException newRequestBodyTooLargeException(final long maxBodySize) {
+        // FIXME: i18n
+        return ResourceException.getException(STATUS_REQUEST_ENTITY_TOO_LARGE,
+                "The request could not be processed because its content exceeds the maximum "
+                        + "permitted size of " + maxBodySize + " bytes");
+    }
+
     private static String param(final String field) {
         return "_" + field;
     }
@@ -712,13 +906,16 @@ public final class HttpUtils {
 
     private static class HttpServletRequestDataSource implements DataSource {
         private HttpServletRequest request;
+        private InputStream body;
 
-        HttpServletRequestDataSource(HttpServletRequest request) throws IOException {
+        HttpServletRequestDataSource(HttpServletRequest request, InputStream body)
+                throws IOException {
             this.request = request;
+            this.body = body;
         }
 
         public InputStream getInputStream() throws IOException {
-            return request.getInputStream();
+            return body;
         }
 
         public OutputStream getOutputStream() throws IOException {
@@ -734,14 +931,93 @@ public final class HttpUtils {
         }
     }
 
-    private static byte[] toByteArray(final InputStream inputStream) throws IOException {
-        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        final byte[] data = new byte[BUFFER_SIZE];
-        int size;
-        while ((size = inputStream.read(data)) != EOF) {
-            byteArrayOutputStream.write(data, 0, size);
+    /**
+     * Thrown by {@link SizeLimitedInputStream} when a request body exceeds the
+     * maximum permitted size.
+     */
+    private static final class RequestBodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * An input stream which fails once more than a fixed number of bytes have
+     * been read from the underlying stream.
+     */
+    private static final class SizeLimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        SizeLimitedInputStream(final InputStream in, final long maxSize) {
+            super(in);
+            this.remaining = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != EOF) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                consume(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(n);
+            consume(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void consume(final long n) throws RequestBodyTooLargeException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new RequestBodyTooLargeException();
+            }
+        }
+    }
+
+    /*
+     * Reads the decoded content of a part into an array sized using the part's
+     * encoded size, which is exact for the identity transfer encodings
+     * normally used by form data, so that no intermediate buffer is needed.
+     */
+    private static byte[] toByteArray(final MimeBodyPart part) throws IOException,
+            MessagingException {
+        final InputStream inputStream = part.getInputStream();
+        try {
+            final int size = part.getSize();
+            byte[] data = new byte[size > 0 ? size : BUFFER_SIZE];
+            int count = 0;
+            for (;;) {
+                if (count == data.length) {
+                    final int b = inputStream.read();
+                    if (b == EOF) {
+                        return data;
+                    }
+                    data = Arrays.copyOf(data, data.length * 2);
+                    data[count++] = (byte) b;
+                }
+                final int n = inputStream.read(data, count, data.length - count);
+                if (n == EOF) {
+                    return count == data.length ? data : Arrays.copyOf(data, count);
+                }
+                count += n;
+            }
+        } finally {
+            closeQuietly(inputStream);
         }
-        byteArrayOutputStream.flush();
-        return byteArrayOutputStream.toByteArray();
     }
 }
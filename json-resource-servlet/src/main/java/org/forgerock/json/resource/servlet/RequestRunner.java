@@ -17,6 +17,7 @@ package org.forgerock.json.resource.servlet;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.ParseException;
 import javax.servlet.http.HttpServletRequest;
@@ -194,7 +195,20 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
      */
     @Override
     public final Void visitQueryRequest(final Void p, final QueryRequest request) {
+        /*
+         * Ask the query to skip any remaining results once the request has
+         * completed, failed, or timed out, e.g. because the client has
+         * disconnected.
+         */
+        final AtomicBoolean isAborted = new AtomicBoolean();
+        sync.addAsyncListener(new Runnable() {
+            @Override
+            public void run() {
+                isAborted.set(true);
+            }
+        });
         connection.queryAsync(context, request, new QueryResultHandler() {
+            private boolean isCompleted = false;
             private boolean isFirstResult = true;
             private int resultCount = 0;
 
@@ -203,6 +217,10 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
              */
             @Override
             public void handleError(final ResourceException error) {
+                if (isCompleted) {
+                    return;
+                }
+                isCompleted = true;
                 if (isFirstResult) {
                     onError(error);
                 } else {
@@ -210,7 +228,8 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
                     try {
                         writer.writeEndArray();
                         writer.writeNumberField(FIELD_RESULT_COUNT, resultCount);
-                        writer.writeObjectField(FIELD_ERROR, error.toJsonValue().getObject());
+                        writer.writeFieldName(FIELD_ERROR);
+                        HttpUtils.writeJsonValue(writer, error.toJsonValue().getObject());
                         writer.writeEndObject();
                         onSuccess();
                     } catch (final Exception e) {
@@ -224,6 +243,9 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
              */
             @Override
             public boolean handleResource(final Resource resource) {
+                if (isCompleted || isAborted.get()) {
+                    return false;
+                }
                 try {
                     writeAdvice();
                     writeHeader();
@@ -241,6 +263,10 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
              */
             @Override
             public void handleResult(final QueryResult result) {
+                if (isCompleted) {
+                    return;
+                }
+                isCompleted = true;
                 try {
                     writeHeader();
                     writer.writeEndArray();
@@ -369,7 +395,7 @@ final class RequestRunner implements ResultHandler<Connection>, RequestVisitor<V
     }
 
     private void writeJsonValue(final JsonValue json) throws IOException {
-        writer.writeObject(json.getObject());
+        HttpUtils.writeJsonValue(writer, json.getObject());
     }
 
     private void writeTextValue(final JsonValue json) throws IOException {
@@ -0,0 +1,555 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource.servlet;
+
+import static org.forgerock.json.resource.servlet.HttpUtils.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.forgerock.json.resource.servlet.Servlet2Adapter.Servlet2Synchronizer;
+import org.forgerock.json.resource.servlet.Servlet3Adapter.Servlet3Synchronizer;
+
+/**
+ * An adapter for use in Servlet 3.1 containers. In addition to processing
+ * requests asynchronously, request content is read using non-blocking IO
+ * before the request is processed, and responses are written using
+ * non-blocking IO once the request has been dispatched, so that slow clients
+ * do not block container threads while sending requests or receiving
+ * content produced asynchronously, such as the results of a long running
+ * query.
+ */
+final class Servlet31Adapter extends ServletApiVersionAdapter {
+
+    /**
+     * The maximum number of bytes which may be pending delivery to the client
+     * before threads writing the response are made to wait.
+     */
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    /**
+     * The size of the buffer used for reading request content.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * An input stream containing request content which has already been read.
+     */
+    private static final class ContentInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        private ContentInputStream(final byte[] content) {
+            this.in = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public int available() {
+            return in.available();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public void setReadListener(final ReadListener readListener) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * A request whose content has already been read by a
+     * {@link ContentReader}. Processing of the request is asynchronous since
+     * the content was read asynchronously.
+     */
+    private static final class BufferedRequest extends HttpServletRequestWrapper {
+        private final AsyncContext asyncContext;
+        private final byte[] content;
+        private boolean isAsyncContextUsed;
+        private ServletInputStream inputStream;
+
+        private BufferedRequest(final HttpServletRequest request,
+                final AsyncContext asyncContext, final byte[] content) {
+            super(request);
+            this.asyncContext = asyncContext;
+            this.content = content;
+        }
+
+        @Override
+        public synchronized AsyncContext getAsyncContext() {
+            isAsyncContextUsed = true;
+            return asyncContext;
+        }
+
+        @Override
+        public synchronized ServletInputStream getInputStream() {
+            if (inputStream == null) {
+                inputStream = new ContentInputStream(content);
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            final String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(),
+                    encoding != null ? encoding : "ISO-8859-1"));
+        }
+
+        @Override
+        public boolean isAsyncStarted() {
+            return true;
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            return getAsyncContext();
+        }
+
+        /*
+         * Returns {@code true} if the request will be completed by a
+         * synchronizer rather than by the caller.
+         */
+        private synchronized boolean isAsyncContextUsed() {
+            return isAsyncContextUsed;
+        }
+    }
+
+    /**
+     * Reads the content of a request as it is received from the client and
+     * then processes the request using the container thread which reported
+     * that all of the content has been read. Reading stops once the content
+     * exceeds the maximum size accepted by the handler, leaving the handler
+     * to reject the request.
+     */
+    private static final class ContentReader implements ReadListener {
+        private final AsyncContext asyncContext;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final RequestContentHandler handler;
+        private final HttpServletRequest httpRequest;
+        private final HttpServletResponse httpResponse;
+        private final ServletInputStream in;
+        private boolean isHandled;
+        private final long maxSize;
+
+        private ContentReader(final HttpServletRequest httpRequest,
+                final HttpServletResponse httpResponse, final long maxSize,
+                final RequestContentHandler handler, final AsyncContext asyncContext,
+                final ServletInputStream in) {
+            this.httpRequest = httpRequest;
+            this.httpResponse = httpResponse;
+            this.maxSize = maxSize;
+            this.handler = handler;
+            this.asyncContext = asyncContext;
+            this.in = in;
+        }
+
+        @Override
+        public void onAllDataRead() {
+            final BufferedRequest request;
+            synchronized (this) {
+                if (isHandled) {
+                    return;
+                }
+                isHandled = true;
+                request = new BufferedRequest(httpRequest, asyncContext, content.toByteArray());
+            }
+            try {
+                handler.handleRequest(request);
+            } finally {
+                if (!request.isAsyncContextUsed()) {
+                    // The request failed before being dispatched.
+                    complete(asyncContext);
+                }
+            }
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            synchronized (this) {
+                int n;
+                while (!isHandled && in.isReady() && (n = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                    if (maxSize > 0 && content.size() > maxSize) {
+                        break;
+                    }
+                }
+                if (maxSize <= 0 || content.size() <= maxSize) {
+                    // We will be called again once more content is available.
+                    return;
+                }
+            }
+            onAllDataRead();
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            synchronized (this) {
+                if (isHandled) {
+                    return;
+                }
+                isHandled = true;
+            }
+            fail(httpRequest, httpResponse, t);
+            complete(asyncContext);
+        }
+    }
+
+    /**
+     * An output stream which writes to the container's output stream in
+     * blocking mode while the request is being dispatched, and in non-blocking
+     * mode afterwards. In non-blocking mode content which the container is not
+     * ready to accept is queued and written from
+     * {@link WriteListener#onWritePossible()}. Threads writing the response
+     * only wait when the amount of queued content exceeds
+     * {@link #MAX_PENDING_BYTES}, which never happens for the container thread
+     * dispatching the request since blocking mode is used in that case.
+     * Writes fail once the container has reported an error, typically because
+     * the client has gone away, causing query result handlers to stop
+     * accepting further results.
+     */
+    private static final class NonBlockingOutputStream extends ServletOutputStream implements
+            WriteListener {
+        private Runnable completion;
+        private Throwable failure;
+        private boolean isCompleted;
+        private boolean isNonBlocking;
+        private final ServletOutputStream out;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private int pendingBytes;
+
+        private NonBlockingOutputStream(final ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            // The stream will be closed when the async context is completed.
+            if (!isNonBlocking) {
+                out.close();
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            checkNotFailed();
+            if (!isNonBlocking || (pending.isEmpty() && out.isReady())) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return failure == null && pendingBytes < MAX_PENDING_BYTES;
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            final Runnable onCompletion;
+            synchronized (this) {
+                failure = t;
+                discardPending();
+                onCompletion = completion;
+                completion = null;
+            }
+            if (onCompletion != null) {
+                onCompletion.run();
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            final Runnable onCompletion;
+            synchronized (this) {
+                try {
+                    while (!pending.isEmpty()) {
+                        if (!out.isReady()) {
+                            // We will be called again once the container is ready.
+                            return;
+                        }
+                        final byte[] b = pending.removeFirst();
+                        pendingBytes -= b.length;
+                        out.write(b);
+                    }
+                } finally {
+                    notifyAll();
+                }
+                onCompletion = completion;
+                completion = null;
+            }
+            if (onCompletion != null) {
+                onCompletion.run();
+            }
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener writeListener) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            synchronized (this) {
+                checkNotFailed();
+                if (!isNonBlocking || (pending.isEmpty() && out.isReady())) {
+                    out.write(b, off, len);
+                    return;
+                }
+                pending.addLast(Arrays.copyOfRange(b, off, off + len));
+                pendingBytes += len;
+                try {
+                    while (pendingBytes > MAX_PENDING_BYTES && failure == null) {
+                        wait();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        private void checkNotFailed() throws IOException {
+            if (failure != null) {
+                throw new IOException("The response could not be written because the client "
+                        + "connection failed", failure);
+            }
+        }
+
+        /*
+         * Runs the provided completion call-back once all pending content has
+         * been written.
+         */
+        private void complete(final Runnable onCompletion) {
+            synchronized (this) {
+                if (isCompleted) {
+                    return;
+                }
+                isCompleted = true;
+                if (isNonBlocking && failure == null && !pending.isEmpty()) {
+                    completion = onCompletion;
+                    return;
+                }
+            }
+            onCompletion.run();
+        }
+
+        private synchronized void discardPending() {
+            pending.clear();
+            pendingBytes = 0;
+            notifyAll();
+        }
+
+        /*
+         * Switches to non-blocking mode, unless the response has already been
+         * completed. This must be called from a container thread.
+         */
+        private synchronized void enableNonBlockingWrites() {
+            if (!isCompleted && !isNonBlocking) {
+                isNonBlocking = true;
+                out.setWriteListener(this);
+            }
+        }
+    }
+
+    /**
+     * A response whose output stream is a {@link NonBlockingOutputStream}.
+     */
+    private static final class NonBlockingResponse extends HttpServletResponseWrapper {
+        private NonBlockingOutputStream outputStream;
+
+        private NonBlockingResponse(final HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new NonBlockingOutputStream(super.getOutputStream());
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            if (outputStream != null) {
+                outputStream.discardPending();
+            }
+        }
+
+        @Override
+        public synchronized void resetBuffer() {
+            super.resetBuffer();
+            if (outputStream != null) {
+                outputStream.discardPending();
+            }
+        }
+
+        private synchronized NonBlockingOutputStream getNonBlockingOutputStream() {
+            return outputStream;
+        }
+    }
+
+    /**
+     * Synchronization implementation which writes the response using a
+     * {@link NonBlockingOutputStream}.
+     */
+    private static final class Servlet31Synchronizer extends Servlet3Synchronizer {
+        private final NonBlockingResponse httpResponse;
+
+        private Servlet31Synchronizer(final HttpServletRequest httpRequest,
+                final NonBlockingResponse httpResponse) {
+            super(httpRequest, httpResponse);
+            this.httpResponse = httpResponse;
+        }
+
+        @Override
+        public void awaitIfNeeded() throws Exception {
+            /*
+             * This is called by the container thread once the request has been
+             * dispatched. Any remaining content will be produced by other
+             * threads, so it should be written without blocking.
+             */
+            final NonBlockingOutputStream outputStream = httpResponse.getNonBlockingOutputStream();
+            if (outputStream != null) {
+                outputStream.enableNonBlockingWrites();
+            }
+        }
+
+        @Override
+        void complete() {
+            final NonBlockingOutputStream outputStream = httpResponse.getNonBlockingOutputStream();
+            if (outputStream != null) {
+                outputStream.complete(new Runnable() {
+                    @Override
+                    public void run() {
+                        Servlet31Synchronizer.super.complete();
+                    }
+                });
+            } else {
+                super.complete();
+            }
+        }
+    }
+
+    Servlet31Adapter() {
+        // Nothing to do.
+    }
+
+    private static void complete(final AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (final IllegalStateException ignored) {
+            // The request has already completed, e.g. because the client disconnected.
+        }
+    }
+
+    /*
+     * Returns {@code true} if the request parameters may be included in the
+     * content, in which case the content must be left for the container to
+     * read.
+     */
+    private static boolean isFormRequest(final HttpServletRequest httpRequest) {
+        final String contentType = httpRequest.getContentType();
+        return contentType != null
+                && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded");
+    }
+
+    @Override
+    public ServletSynchronizer createServletSynchronizer(final HttpServletRequest httpRequest,
+            final HttpServletResponse httpResponse) {
+        if (httpRequest.isAsyncSupported()) {
+            return new Servlet31Synchronizer(httpRequest, new NonBlockingResponse(httpResponse));
+        } else {
+            // Fall-back to Servlet 2 blocking implementation.
+            return new Servlet2Synchronizer(httpRequest, httpResponse);
+        }
+    }
+
+    @Override
+    HttpServletResponse getResponse(final ServletSynchronizer sync,
+            final HttpServletResponse httpResponse) {
+        if (sync instanceof Servlet31Synchronizer) {
+            return ((Servlet31Synchronizer) sync).httpResponse;
+        } else {
+            return httpResponse;
+        }
+    }
+
+    @Override
+    void readRequestContent(final HttpServletRequest httpRequest,
+            final HttpServletResponse httpResponse, final long maxSize,
+            final RequestContentHandler handler) {
+        final int contentLength = httpRequest.getContentLength();
+        if (!httpRequest.isAsyncSupported() || httpRequest.isAsyncStarted()
+                || contentLength == 0 || (maxSize > 0 && contentLength > maxSize)
+                || isFormRequest(httpRequest)) {
+            // Nothing to read, or the handler will read or reject the content itself.
+            handler.handleRequest(httpRequest);
+            return;
+        }
+        final ServletInputStream in;
+        try {
+            in = httpRequest.getInputStream();
+        } catch (final IOException e) {
+            fail(httpRequest, httpResponse, e);
+            return;
+        }
+        final AsyncContext asyncContext = httpRequest.startAsync();
+        // Disable timeouts for certain containers - see http://java.net/jira/browse/GRIZZLY-1325
+        asyncContext.setTimeout(0);
+        in.setReadListener(new ContentReader(httpRequest, httpResponse, maxSize, handler,
+                asyncContext, in));
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012-2013 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource.servlet;
 
@@ -35,12 +35,12 @@ final class Servlet3Adapter extends ServletApiVersionAdapter {
      * Synchronization implementation - only used when the container supports
      * asynchronous processing.
      */
-    private final static class Servlet3Synchronizer implements ServletSynchronizer {
+    static class Servlet3Synchronizer implements ServletSynchronizer {
         private final AsyncContext asyncContext;
         private final HttpServletRequest httpRequest;
         private final HttpServletResponse httpResponse;
 
-        private Servlet3Synchronizer(final HttpServletRequest httpRequest,
+        Servlet3Synchronizer(final HttpServletRequest httpRequest,
                 final HttpServletResponse httpResponse) {
             this.httpRequest = httpRequest;
             this.httpResponse = httpResponse;
@@ -97,13 +97,25 @@ final class Servlet3Adapter extends ServletApiVersionAdapter {
 
         @Override
         public void signalAndComplete() {
-            asyncContext.complete();
+            complete();
         }
 
         @Override
         public void signalAndComplete(final Throwable t) {
             fail(httpRequest, httpResponse, t);
-            asyncContext.complete();
+            complete();
+        }
+
+        /**
+         * Completes the underlying async context once the response has been
+         * written.
+         */
+        void complete() {
+            try {
+                asyncContext.complete();
+            } catch (final IllegalStateException ignored) {
+                // The request has already completed, e.g. because the client disconnected.
+            }
         }
     }
 
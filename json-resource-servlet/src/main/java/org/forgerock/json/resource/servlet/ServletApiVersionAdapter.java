@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012-2013 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource.servlet;
 
@@ -23,11 +23,26 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * A Servlet API version adapter provides an abstraction which allows Servlet
  * and Filter implementations to interact with the Servlet container
- * independently of the Servlet API version. At the moment the adapter only
- * provides an abstraction for performing asynchronous processing, but other API
- * features could be added in future (such as async IO).
+ * independently of the Servlet API version. At the moment the adapter
+ * provides an abstraction for performing asynchronous processing and, in
+ * Servlet 3.1 containers, for reading requests and writing responses using
+ * non-blocking IO.
  */
 public abstract class ServletApiVersionAdapter {
+    /**
+     * A call-back which processes a request once its content is available.
+     */
+    interface RequestContentHandler {
+        /**
+         * Processes the provided request.
+         *
+         * @param httpRequest
+         *            The HTTP request, whose content may be read without
+         *            blocking if it has been read in advance.
+         */
+        void handleRequest(HttpServletRequest httpRequest);
+    }
+
     /**
      * Returns an adapter configured for the current Servlet API version.
      *
@@ -46,8 +61,13 @@ public abstract class ServletApiVersionAdapter {
                     + servletContext.getMajorVersion());
         case 2:
             return new Servlet2Adapter();
+        case 3:
+            if (servletContext.getMinorVersion() < 1) {
+                return new Servlet3Adapter();
+            }
+            return new Servlet31Adapter();
         default:
-            return new Servlet3Adapter();
+            return new Servlet31Adapter();
         }
     }
 
@@ -70,4 +90,44 @@ public abstract class ServletApiVersionAdapter {
     public abstract ServletSynchronizer createServletSynchronizer(
             final HttpServletRequest httpRequest, final HttpServletResponse httpResponse);
 
+    /**
+     * Returns the response to which the content of a request processed using
+     * the provided synchronizer should be written. The default implementation
+     * returns the provided HTTP response.
+     *
+     * @param sync
+     *            The synchronizer returned by
+     *            {@link #createServletSynchronizer(HttpServletRequest, HttpServletResponse)}
+     *            .
+     * @param httpResponse
+     *            The HTTP response.
+     * @return The response to which the content of the request should be
+     *         written.
+     */
+    HttpServletResponse getResponse(final ServletSynchronizer sync,
+            final HttpServletResponse httpResponse) {
+        return httpResponse;
+    }
+
+    /**
+     * Invokes the provided handler once the content of the provided request
+     * is available. The default implementation invokes the handler
+     * immediately, leaving it to read the content using blocking IO.
+     *
+     * @param httpRequest
+     *            The HTTP request.
+     * @param httpResponse
+     *            The HTTP response.
+     * @param maxSize
+     *            The maximum size of the content which will be accepted by
+     *            the handler, or {@code 0} if there is no limit.
+     * @param handler
+     *            The handler which will process the request.
+     */
+    void readRequestContent(final HttpServletRequest httpRequest,
+            final HttpServletResponse httpResponse, final long maxSize,
+            final RequestContentHandler handler) {
+        handler.handleRequest(httpRequest);
+    }
+
 }
@@ -16,6 +16,8 @@
 
 package org.forgerock.json.resource.servlet;
 
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.forgerock.json.fluent.JsonValue;
 import org.forgerock.json.resource.BadRequestException;
 import org.forgerock.json.resource.NotSupportedException;
@@ -29,7 +31,9 @@ import org.testng.annotations.Test;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.*;
+import static org.testng.Assert.fail;
 
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -40,7 +44,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("javadoc")
 public class HttpUtilsTest {
@@ -140,6 +150,21 @@ public class HttpUtilsTest {
             public int read() throws IOException {
                 return byteArrayInputStream.read();
             }
+
+            @Override
+            public boolean isFinished() {
+                return byteArrayInputStream.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new RuntimeException("Not implemented");
+            }
         });
     }
 
@@ -295,6 +320,127 @@ public class HttpUtilsTest {
         testNonMultiPartResult(result);
     }
 
+    @Test
+    public void testShouldParseJsonContentIntoJsonValue() throws ResourceException, IOException {
+        //given
+        request = mock(HttpServletRequest.class);
+        createRequest("{ \"int\" : 1, \"long\" : 12345678901, \"double\" : 1.5, "
+                + "\"array\" : [ true, false, null, \"a\" ], \"object\" : { } }");
+        setUpRequestMock(request, HttpUtils.MIME_TYPE_APPLICATION_JSON);
+
+        //when
+        JsonValue result = HttpUtils.getJsonContent(request);
+
+        //then
+        assertThat(result.keys()).containsOnly("int", "long", "double", "array", "object");
+        assertThat(result.get("int").getObject()).isEqualTo(1);
+        assertThat(result.get("long").getObject()).isEqualTo(12345678901L);
+        assertThat(result.get("double").getObject()).isEqualTo(1.5);
+        assertThat(result.get("array").asList()).containsExactly(true, false, null, "a");
+        assertThat(result.get("object").asMap()).isEmpty();
+    }
+
+    @Test
+    public void testShouldWriteJsonValueLikeObjectMapper() throws IOException {
+        //given
+        final Map<String, Object> object = new LinkedHashMap<String, Object>();
+        object.put("string", "a \"quoted\" string");
+        object.put("int", 1);
+        object.put("long", 12345678901L);
+        object.put("double", 1.5);
+        object.put("decimal", new BigDecimal("1.25"));
+        object.put("integer", new BigInteger("123456789012345678901234567890"));
+        object.put("array", Arrays.asList(true, false, null, "a"));
+        object.put("object", Collections.singletonMap("nested", Collections.emptyList()));
+        object.put("null", null);
+        final ObjectMapper mapper = new ObjectMapper();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator writer = mapper.getJsonFactory().createJsonGenerator(out);
+
+        //when
+        HttpUtils.writeJsonValue(writer, object);
+        writer.flush();
+
+        //then
+        assertThat(out.toString("UTF-8")).isEqualTo(mapper.writeValueAsString(object));
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testShouldRejectEmptyContent() throws ResourceException, IOException {
+        //given
+        request = mock(HttpServletRequest.class);
+        requestInputStreamData = new byte[0];
+        setUpRequestMock(request, HttpUtils.MIME_TYPE_APPLICATION_JSON);
+
+        //when
+        HttpUtils.getJsonContent(request);
+    }
+
+    @Test
+    public void testShouldAcceptContentWithinMaxBodySize() throws ResourceException, IOException {
+        //given
+        request = mock(HttpServletRequest.class);
+        createRequest(jsonBody);
+        setUpRequestMock(request, HttpUtils.MIME_TYPE_APPLICATION_JSON);
+        when(request.getContentLength()).thenReturn(requestInputStreamData.length);
+
+        //when
+        JsonValue result = HttpUtils.getJsonContent(request, requestInputStreamData.length);
+
+        //then
+        testNonMultiPartResult(result);
+    }
+
+    @Test
+    public void testShouldRejectContentLengthExceedingMaxBodySize() throws IOException {
+        //given
+        request = mock(HttpServletRequest.class);
+        createRequest(jsonBody);
+        setUpRequestMock(request, HttpUtils.MIME_TYPE_APPLICATION_JSON);
+        when(request.getContentLength()).thenReturn(requestInputStreamData.length);
+
+        //when
+        try {
+            HttpUtils.getJsonContent(request, requestInputStreamData.length - 1);
+            fail("Expected request to be rejected");
+        } catch (ResourceException e) {
+            //then
+            assertThat(e.getCode()).isEqualTo(413);
+        }
+        verify(request, never()).getInputStream();
+    }
+
+    @DataProvider
+    public Object[][] contentTypes() {
+        return new Object[][] {
+            { HttpUtils.MIME_TYPE_APPLICATION_JSON },
+            { REQUEST_CONTENT_TYPE }
+        };
+    }
+
+    @Test(dataProvider = "contentTypes")
+    public void testShouldRejectUnknownLengthContentExceedingMaxBodySize(String contentType)
+            throws IOException {
+        //given
+        request = mock(HttpServletRequest.class);
+        if (contentType.equals(REQUEST_CONTENT_TYPE)) {
+            createMultiPartRequest(jsonBody);
+        } else {
+            createRequest(jsonBody);
+        }
+        setUpRequestMock(request, contentType);
+        when(request.getContentLength()).thenReturn(-1);
+
+        //when
+        try {
+            HttpUtils.getJsonActionContent(request, 16);
+            fail("Expected request to be rejected");
+        } catch (ResourceException e) {
+            //then
+            assertThat(e.getCode()).isEqualTo(413);
+        }
+    }
+
     @DataProvider
     public Object[][] ValidGetMethodContentTypeCombination() {
         return new Object[][]{
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource.servlet;
 
@@ -104,14 +104,52 @@ public class RequestRunnerTest {
                 + "}");
     }
 
+    @Test
+    public void testHandleResourceAfterResultAnonymousQueryResultHandlerInVisitQueryAsync()
+            throws Exception {
+        StringBuilder output = new StringBuilder();
+        QueryResultHandler resultHandler = getAnonymousQueryResultHandler(output);
+        resultHandler.handleError(EXCEPTION);
+        assertFalse(resultHandler.handleResource(new Resource("id", "revision", new JsonValue(
+                "jsonValue"))));
+        resultHandler.handleResult(new QueryResult());
+        assertEquals(output.toString(), "");
+    }
+
+    @Test
+    public void testHandleResourceAfterClientAbortAnonymousQueryResultHandlerInVisitQueryAsync()
+            throws Exception {
+        StringBuilder output = new StringBuilder();
+        ServletSynchronizer sync = mock(ServletSynchronizer.class);
+        QueryResultHandler resultHandler = getAnonymousQueryResultHandler(output, sync);
+        assertTrue(resultHandler.handleResource(new Resource("id", "revision", new JsonValue(
+                "jsonValue1"))));
+
+        // Simulate the client disconnecting.
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(sync).addAsyncListener(listener.capture());
+        listener.getValue().run();
+
+        assertFalse(resultHandler.handleResource(new Resource("id", "revision", new JsonValue(
+                "jsonValue2"))));
+        resultHandler.handleResult(new QueryResult());
+        assertEquals(output.toString(), "" + "{" + "\"result\":[\"jsonValue1\"],"
+                + "\"resultCount\":1,\"pagedResultsCookie\":null,\"remainingPagedResults\":-1"
+                + "}");
+    }
+
     private QueryResultHandler getAnonymousQueryResultHandler(StringBuilder output)
             throws Exception {
+        return getAnonymousQueryResultHandler(output, mock(ServletSynchronizer.class));
+    }
+
+    private QueryResultHandler getAnonymousQueryResultHandler(StringBuilder output,
+            ServletSynchronizer sync) throws Exception {
         // mock everything
         Context context = mock(Context.class);
         QueryRequest request = Requests.newQueryRequest("");
         HttpServletRequest httpRequest = mock(HttpServletRequest.class);
         HttpServletResponse httpResponse = mock(HttpServletResponse.class);
-        ServletSynchronizer sync = mock(ServletSynchronizer.class);
         Connection connection = mock(Connection.class);
 
         // set the expectations
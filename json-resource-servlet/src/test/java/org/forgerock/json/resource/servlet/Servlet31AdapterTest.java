@@ -0,0 +1,307 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource.servlet;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.annotations.BeforeMethod;
+import org.forgerock.json.resource.servlet.ServletApiVersionAdapter.RequestContentHandler;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class Servlet31AdapterTest {
+
+    /**
+     * A container input stream whose content is received when the test
+     * chooses.
+     */
+    private static final class TestInputStream extends ServletInputStream {
+        private final ArrayDeque<Integer> received = new ArrayDeque<Integer>();
+        private boolean isFinished;
+        private ReadListener readListener;
+
+        @Override
+        public boolean isFinished() {
+            return isFinished && received.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !received.isEmpty() || isFinished;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!isReady()) {
+                throw new IllegalStateException();
+            }
+            return received.isEmpty() ? -1 : received.removeFirst();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Return at most the bytes which have been received.
+            int n = 0;
+            while (n < len && !received.isEmpty()) {
+                b[off + n++] = (byte) read();
+            }
+            return n == 0 ? read() : n;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.readListener = readListener;
+        }
+
+        private void receive(String content) {
+            for (byte b : content.getBytes()) {
+                received.addLast(b & 0xff);
+            }
+        }
+    }
+
+    /**
+     * A request content handler which records the content of the request.
+     */
+    private static final class TestHandler implements RequestContentHandler {
+        private String content;
+
+        @Override
+        public void handleRequest(HttpServletRequest httpRequest) {
+            try {
+                final InputStream in = httpRequest.getInputStream();
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    bytes.write(b);
+                }
+                content = bytes.toString();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * A container output stream whose readiness is controlled by the test.
+     */
+    private static final class TestOutputStream extends ServletOutputStream {
+        private final StringBuilder output = new StringBuilder();
+        private boolean isReady = true;
+        private WriteListener writeListener;
+
+        @Override
+        public boolean isReady() {
+            return isReady;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (writeListener != null && !isReady) {
+                throw new IllegalStateException();
+            }
+            output.append((char) b);
+        }
+    }
+
+    private AsyncContext asyncContext;
+    private TestInputStream containerInput;
+    private TestOutputStream containerOutput;
+    private HttpServletRequest httpRequest;
+    private HttpServletResponse httpResponse;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        asyncContext = mock(AsyncContext.class);
+        containerInput = new TestInputStream();
+        containerOutput = new TestOutputStream();
+        httpRequest = mock(HttpServletRequest.class);
+        httpResponse = mock(HttpServletResponse.class);
+        when(httpRequest.isAsyncSupported()).thenReturn(true);
+        when(httpRequest.startAsync()).thenReturn(asyncContext);
+        when(httpRequest.getContentLength()).thenReturn(-1);
+        when(httpRequest.getInputStream()).thenReturn(containerInput);
+        when(httpResponse.getOutputStream()).thenReturn(containerOutput);
+    }
+
+    @Test
+    public void testRequestContentIsReadBeforeHandlingTheRequest() throws Exception {
+        final TestHandler handler = new TestHandler();
+        new Servlet31Adapter().readRequestContent(httpRequest, httpResponse, 0, handler);
+        assertThat(containerInput.readListener).isNotNull();
+
+        containerInput.receive("con");
+        containerInput.readListener.onDataAvailable();
+        containerInput.receive("tent");
+        containerInput.readListener.onDataAvailable();
+        assertThat(handler.content).isNull();
+
+        containerInput.isFinished = true;
+        containerInput.readListener.onDataAvailable();
+        containerInput.readListener.onAllDataRead();
+        assertThat(handler.content).isEqualTo("content");
+
+        // The handler did not dispatch the request, so it has been completed.
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testRequestDispatchedAfterReadingContentIsCompletedBySynchronizer()
+            throws Exception {
+        final ServletSynchronizer[] sync = new ServletSynchronizer[1];
+        new Servlet31Adapter().readRequestContent(httpRequest, httpResponse, 0,
+                new RequestContentHandler() {
+                    @Override
+                    public void handleRequest(HttpServletRequest request) {
+                        sync[0] = new Servlet31Adapter().createServletSynchronizer(request,
+                                httpResponse);
+                    }
+                });
+        containerInput.isFinished = true;
+        containerInput.readListener.onAllDataRead();
+        verify(httpRequest, times(1)).startAsync();
+        verify(asyncContext, never()).complete();
+
+        sync[0].signalAndComplete();
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testRequestContentExceedingMaxSizeIsHandledWithoutReadingFurther()
+            throws Exception {
+        final TestHandler handler = new TestHandler();
+        new Servlet31Adapter().readRequestContent(httpRequest, httpResponse, 4, handler);
+
+        containerInput.receive("content");
+        containerInput.readListener.onDataAvailable();
+        assertThat(handler.content).startsWith("conte");
+
+        containerInput.isFinished = true;
+        containerInput.readListener.onAllDataRead();
+        verify(asyncContext, times(1)).complete();
+    }
+
+    @Test
+    public void testRequestContentIsNotReadInAdvanceForFormRequests() throws Exception {
+        when(httpRequest.getContentType()).thenReturn("application/x-www-form-urlencoded");
+        final TestHandler handler = new TestHandler();
+        containerInput.receive("a=b");
+        containerInput.isFinished = true;
+        new Servlet31Adapter().readRequestContent(httpRequest, httpResponse, 0, handler);
+
+        assertThat(handler.content).isEqualTo("a=b");
+        assertThat(containerInput.readListener).isNull();
+        verify(httpRequest, never()).startAsync();
+    }
+
+    @Test
+    public void testGetInstanceReturnsServlet31AdapterForServlet31Containers() throws Exception {
+        assertThat(ServletApiVersionAdapter.getInstance(servletContext(3, 0))).isInstanceOf(
+                Servlet3Adapter.class);
+        assertThat(ServletApiVersionAdapter.getInstance(servletContext(3, 1))).isInstanceOf(
+                Servlet31Adapter.class);
+    }
+
+    @Test
+    public void testContentWrittenDuringDispatchIsWrittenImmediately() throws Exception {
+        final ServletSynchronizer sync = newSynchronizer();
+        final OutputStream out = getOutputStream(sync);
+
+        out.write("content".getBytes());
+        sync.signalAndComplete();
+        sync.awaitIfNeeded();
+
+        assertThat(containerOutput.output.toString()).isEqualTo("content");
+        assertThat(containerOutput.writeListener).isNull();
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testContentWrittenAfterDispatchIsQueuedUntilWritePossible() throws Exception {
+        final ServletSynchronizer sync = newSynchronizer();
+        final OutputStream out = getOutputStream(sync);
+        sync.awaitIfNeeded();
+        assertThat(containerOutput.writeListener).isNotNull();
+
+        out.write("one".getBytes());
+        containerOutput.isReady = false;
+        out.write("two".getBytes());
+        sync.signalAndComplete();
+
+        assertThat(containerOutput.output.toString()).isEqualTo("one");
+        verify(asyncContext, never()).complete();
+
+        containerOutput.isReady = true;
+        containerOutput.writeListener.onWritePossible();
+
+        assertThat(containerOutput.output.toString()).isEqualTo("onetwo");
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testWritesFailOnceTheClientConnectionHasFailed() throws Exception {
+        final ServletSynchronizer sync = newSynchronizer();
+        final OutputStream out = getOutputStream(sync);
+        sync.awaitIfNeeded();
+
+        containerOutput.writeListener.onError(new IOException("Connection reset"));
+        try {
+            out.write("content".getBytes());
+            fail("Expected write to fail");
+        } catch (IOException e) {
+            // Expected.
+        }
+        sync.signalAndComplete();
+        verify(asyncContext).complete();
+    }
+
+    private ServletSynchronizer newSynchronizer() {
+        return new Servlet31Adapter().createServletSynchronizer(httpRequest, httpResponse);
+    }
+
+    private OutputStream getOutputStream(final ServletSynchronizer sync) throws IOException {
+        return new Servlet31Adapter().getResponse(sync, httpResponse).getOutputStream();
+    }
+
+    private ServletContext servletContext(final int majorVersion, final int minorVersion) {
+        final ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getMajorVersion()).thenReturn(majorVersion);
+        when(servletContext.getMinorVersion()).thenReturn(minorVersion);
+        return servletContext;
+    }
+}
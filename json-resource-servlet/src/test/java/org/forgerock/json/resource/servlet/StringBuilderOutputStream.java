@@ -11,13 +11,14 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource.servlet;
 
 import java.io.IOException;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 
 class StringBuilderOutputStream extends ServletOutputStream {
 
@@ -45,4 +46,14 @@ class StringBuilderOutputStream extends ServletOutputStream {
         output.append(new String(buf, offset, len));
     }
 
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        throw new RuntimeException("Not implemented");
+    }
+
 }
@@ -16,8 +16,8 @@
 
 package org.forgerock.json.resource;
 
-import java.lang.reflect.Constructor;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.forgerock.json.fluent.JsonValue;
 
@@ -52,21 +52,59 @@ import org.forgerock.json.fluent.JsonValue;
  * </pre>
  */
 public abstract class AbstractContext implements Context {
+    /*
+     * An index of the first context in a chain having each context type and
+     * context name. Contexts are immutable, so the index is built once, the
+     * first time that a context is looked up, by walking the chain and
+     * recording each context against each of its super-types and its name.
+     */
+    private static final class ContextIndex {
+        private final Map<Class<?>, Context> contextsByClass = new HashMap<Class<?>, Context>();
+        private final Map<String, Context> contextsByName = new HashMap<String, Context>();
+
+        private ContextIndex(final Context first) {
+            for (Context context = first; context != null; context = context.getParent()) {
+                addContextType(context.getClass(), context);
+                final String contextName = context.getContextName();
+                if (!contextsByName.containsKey(contextName)) {
+                    contextsByName.put(contextName, context);
+                }
+            }
+        }
+
+        private void addContextType(final Class<?> clazz, final Context context) {
+            // The super-types of an indexed type have already been indexed.
+            if (clazz != null && !contextsByClass.containsKey(clazz)) {
+                contextsByClass.put(clazz, context);
+                addContextType(clazz.getSuperclass(), context);
+                for (final Class<?> type : clazz.getInterfaces()) {
+                    addContextType(type, context);
+                }
+            }
+        }
+    }
+
     // Persisted attribute names.
     private static final String ATTR_CLASS = "class";
     private static final String ATTR_ID = "id";
-    private static final String ATTR_PARENT = "parent";
+    static final String ATTR_PARENT = "parent";
 
-    private static Context load0(final JsonValue savedContext, final PersistenceConfig config)
-            throws ResourceException {
+    /**
+     * Restores a context from its persisted JSON representation.
+     *
+     * @param savedContext
+     *            The JSON representation of the context.
+     * @param config
+     *            The persistence configuration.
+     * @return The restored context.
+     * @throws IllegalArgumentException
+     *             If the context could not be restored.
+     */
+    static Context load0(final JsonValue savedContext, final PersistenceConfig config) {
         // Determine the context implementation class and instantiate it.
         final String className = savedContext.get(ATTR_CLASS).required().asString();
         try {
-            final Class<? extends Context> clazz = Class.forName(className, true,
-                    config.getClassLoader()).asSubclass(AbstractContext.class);
-            final Constructor<? extends Context> constructor = clazz.getDeclaredConstructor(
-                    JsonValue.class, PersistenceConfig.class);
-            return constructor.newInstance(savedContext, config);
+            return config.getContextConstructor(className).newInstance(savedContext, config);
         } catch (final Exception e) {
             throw new IllegalArgumentException(
                     "Unable to instantiate Context implementation class '" + className + "'", e);
@@ -83,6 +121,11 @@ public abstract class AbstractContext implements Context {
      */
     protected final JsonValue data;
 
+    /**
+     * The lazily built index of the contexts in this context's chain.
+     */
+    private volatile ContextIndex index;
+
     /**
      * Creates a new context having the provided parent and no ID.
      *
@@ -149,7 +192,12 @@ public abstract class AbstractContext implements Context {
             throws ResourceException {
         final JsonValue savedParentContext = savedContext.get(ATTR_PARENT);
         savedContext.remove(ATTR_PARENT);
-        this.parent = savedParentContext.isNull() ? null : load0(savedParentContext, config);
+        if (savedParentContext.getObject() instanceof Context) {
+            // The parent has already been restored (see Contexts.fromBytes).
+            this.parent = (Context) savedParentContext.getObject();
+        } else {
+            this.parent = savedParentContext.isNull() ? null : load0(savedParentContext, config);
+        }
         this.data = savedContext;
     }
 
@@ -286,26 +334,21 @@ public abstract class AbstractContext implements Context {
     }
 
     private final <T extends Context> T asContext0(final Class<T> clazz) {
-        try {
-            for (Context context = this; context != null; context = context.getParent()) {
-                final Class<?> contextClass = context.getClass();
-                if (clazz.isAssignableFrom(contextClass)) {
-                    return contextClass.asSubclass(clazz).cast(context);
-                }
-            }
-        } catch (final Exception e) {
-            throw new IllegalArgumentException(
-                    "Unable to instantiate Context implementation class '" + clazz.getName().toString() + "'", e);
-        }
-        return null;
+        final Context context = getIndex().contextsByClass.get(clazz);
+        return context != null ? clazz.cast(context) : null;
     }
 
     private final Context getContext0(final String contextName) {
-        for (Context context = this; context != null; context = context.getParent()) {
-            if (context.getContextName().equals(contextName)) {
-                return context;
-            }
+        return getIndex().contextsByName.get(contextName);
+    }
+
+    private ContextIndex getIndex() {
+        ContextIndex tmp = index;
+        if (tmp == null) {
+            // Benign race: the index is immutable so it may be built more than once.
+            tmp = new ContextIndex(this);
+            index = tmp;
         }
-        return null;
+        return tmp;
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.fluent.JsonValue;
+
+/**
+ * Encodes JSON values in the compact binary form used by {@link MemoryBackend}
+ * when persisting resources or storing them off-heap, and by {@link Contexts}
+ * when persisting contexts. Each JSON value is encoded as a single byte type
+ * tag followed by its value: numbers are encoded using their fixed size binary
+ * representation, strings as their length followed by their UTF-8 encoding,
+ * and arrays and objects as the number of elements followed by the elements.
+ */
+final class BinaryJson {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_FALSE = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_INTEGER = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_DOUBLE = 6;
+    private static final byte TYPE_BIG_INTEGER = 7;
+    private static final byte TYPE_BIG_DECIMAL = 8;
+    private static final byte TYPE_STRING = 9;
+    private static final byte TYPE_LIST = 10;
+    private static final byte TYPE_MAP = 11;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Reads a resource from the provided buffer, whose content will be
+     * immutable.
+     *
+     * @param in
+     *            The buffer positioned at the start of the resource.
+     * @return The resource.
+     * @throws IOException
+     *             If the buffer does not contain a valid resource.
+     */
+    static Resource readResource(final ByteBuffer in) throws IOException {
+        final String id = readString(in);
+        final String revision = readString(in);
+        return new Resource(id, revision, new JsonValue(readValue(in)).toImmutable());
+    }
+
+    /**
+     * Reads a string from the provided buffer.
+     *
+     * @param in
+     *            The buffer positioned at the start of the string.
+     * @return The string.
+     * @throws IOException
+     *             If the buffer does not contain a valid string.
+     */
+    static String readString(final ByteBuffer in) throws IOException {
+        try {
+            final byte[] bytes = new byte[readLength(in, 1)];
+            in.get(bytes);
+            return new String(bytes, UTF8);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated string");
+        }
+    }
+
+    /*
+     * Reads the length of a string, array, or object, rejecting lengths which
+     * cannot fit in the rest of the buffer before anything is allocated for
+     * them, given the minimum encoded size of each byte, element, or member.
+     */
+    private static int readLength(final ByteBuffer in, final int minimumSize) throws IOException {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining() / minimumSize) {
+            throw new IOException("Malformed length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a JSON value from the provided buffer. Objects and arrays are
+     * returned as mutable maps and lists.
+     *
+     * @param in
+     *            The buffer positioned at the start of the value.
+     * @return The value.
+     * @throws IOException
+     *             If the buffer does not contain a valid value.
+     */
+    static Object readValue(final ByteBuffer in) throws IOException {
+        try {
+            final byte type = in.get();
+            switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_INTEGER:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_BIG_INTEGER:
+                return new BigInteger(readString(in));
+            case TYPE_BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_LIST: {
+                // Each element has a type.
+                final int size = readLength(in, 1);
+                final List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case TYPE_MAP: {
+                // Each member has a key length and a value type.
+                final int size = readLength(in, 5);
+                final Map<String, Object> map = new LinkedHashMap<String, Object>(size);
+                for (int i = 0; i < size; i++) {
+                    final String key = readString(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Unrecognized value type " + type);
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated value");
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Malformed value");
+        }
+    }
+
+    /**
+     * Writes a resource to the provided output.
+     *
+     * @param out
+     *            The output.
+     * @param resource
+     *            The resource.
+     * @throws IOException
+     *             If the resource could not be written.
+     * @throws IllegalArgumentException
+     *             If the resource contains values which are not JSON values.
+     */
+    static void writeResource(final DataOutput out, final Resource resource) throws IOException {
+        writeString(out, resource.getId());
+        writeString(out, resource.getRevision());
+        writeValue(out, resource.getContent().getObject());
+    }
+
+    /**
+     * Writes a string to the provided output.
+     *
+     * @param out
+     *            The output.
+     * @param s
+     *            The string.
+     * @throws IOException
+     *             If the string could not be written.
+     */
+    static void writeString(final DataOutput out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes a JSON value to the provided output.
+     *
+     * @param out
+     *            The output.
+     * @param value
+     *            The value.
+     * @throws IOException
+     *             If the value could not be written.
+     * @throws IllegalArgumentException
+     *             If the value is not a JSON value.
+     */
+    static void writeValue(final DataOutput out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TYPE_BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(collection.size());
+            for (final Object element : collection) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TYPE_MAP);
+            out.writeInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("The value of type "
+                    + value.getClass().getName() + " cannot be encoded");
+        }
+    }
+
+    private BinaryJson() {
+        // Prevent instantiation.
+    }
+}
@@ -42,9 +42,12 @@ import org.forgerock.json.fluent.JsonValue;
  * only be performed once while processing a request. It is therefore the
  * responsibility of front-end implementations (e.g. HTTP listeners, Servlets,
  * etc) to perform field filtering. Request handler and resource provider
- * implementations SHOULD NOT filter fields, but MAY choose to optimise their
- * processing in order to return a resource containing only the fields targeted
- * by the field filters.
+ * implementations SHOULD NOT filter fields themselves, but MAY choose to
+ * optimise their processing in order to return a resource containing only the
+ * fields targeted by the field filters by using
+ * {@link Resources#filterResource(Resource, java.util.Collection)}. Resources
+ * which have been filtered in this way are not filtered again by front-end
+ * implementations.
  */
 public interface CollectionResourceProvider {
 
@@ -0,0 +1,591 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.forgerock.json.fluent.JsonPointer;
+import org.forgerock.json.fluent.JsonValue;
+
+/**
+ * A {@link QueryFilter} which has been compiled into a form which can be
+ * efficiently matched against many JSON resources. Compiled filters are
+ * immutable and may be shared between threads.
+ * <p>
+ * Compiling a filter resolves each field's JSON pointer into its reference
+ * tokens and coerces each value assertion once, so that matching a resource
+ * does not need to re-walk the filter using a {@link QueryFilterVisitor} or
+ * allocate intermediate {@link JsonValue}s. The sub-filters of {@code and} and
+ * {@code or} filters are evaluated cheapest first, stopping as soon as the
+ * result is known.
+ * <p>
+ * Compiled filters use the following matching rules:
+ * <ul>
+ * <li>string values are compared ignoring case; the {@code co} and {@code sw}
+ * operators perform case-insensitive substring and prefix matching
+ * <li>numbers are compared using their double value, and booleans by value.
+ * The {@code co} and {@code sw} operators use equality matching for numbers
+ * and booleans
+ * <li>multi-valued fields match if any of their values match
+ * <li>values of different types never match, and extended match filters are
+ * undefined and therefore never match, even when negated.
+ * </ul>
+ *
+ * @see QueryFilter#compile()
+ */
+public final class CompiledQueryFilter {
+
+    /**
+     * Three-valued logic is needed in order to correctly negate undefined
+     * filters.
+     */
+    private static enum FilterResult {
+        FALSE, TRUE, UNDEFINED;
+
+        static FilterResult valueOf(final boolean b) {
+            return b ? TRUE : FALSE;
+        }
+    }
+
+    private static abstract class Matcher {
+        /** A rough estimate of the relative cost of evaluating this matcher. */
+        abstract int cost();
+
+        abstract FilterResult match(Object content);
+    }
+
+    private static final class AndMatcher extends Matcher {
+        private final Matcher[] subMatchers;
+        private final int cost;
+
+        private AndMatcher(final Matcher[] subMatchers) {
+            this.subMatchers = subMatchers;
+            this.cost = totalCost(subMatchers);
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        FilterResult match(final Object content) {
+            FilterResult result = FilterResult.TRUE;
+            for (final Matcher subMatcher : subMatchers) {
+                final FilterResult r = subMatcher.match(content);
+                if (r == FilterResult.FALSE) {
+                    return r;
+                } else if (r == FilterResult.UNDEFINED) {
+                    result = r;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class LiteralMatcher extends Matcher {
+        private final FilterResult result;
+
+        private LiteralMatcher(final FilterResult result) {
+            this.result = result;
+        }
+
+        @Override
+        int cost() {
+            return 0;
+        }
+
+        @Override
+        FilterResult match(final Object content) {
+            return result;
+        }
+    }
+
+    private static final class NotMatcher extends Matcher {
+        private final Matcher subMatcher;
+
+        private NotMatcher(final Matcher subMatcher) {
+            this.subMatcher = subMatcher;
+        }
+
+        @Override
+        int cost() {
+            return subMatcher.cost();
+        }
+
+        @Override
+        FilterResult match(final Object content) {
+            switch (subMatcher.match(content)) {
+            case FALSE:
+                return FilterResult.TRUE;
+            case UNDEFINED:
+                return FilterResult.UNDEFINED;
+            default: // TRUE
+                return FilterResult.FALSE;
+            }
+        }
+    }
+
+    private static final class OrMatcher extends Matcher {
+        private final Matcher[] subMatchers;
+        private final int cost;
+
+        private OrMatcher(final Matcher[] subMatchers) {
+            this.subMatchers = subMatchers;
+            this.cost = totalCost(subMatchers);
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        FilterResult match(final Object content) {
+            FilterResult result = FilterResult.FALSE;
+            for (final Matcher subMatcher : subMatchers) {
+                final FilterResult r = subMatcher.match(content);
+                if (r == FilterResult.TRUE) {
+                    return r;
+                } else if (r == FilterResult.UNDEFINED) {
+                    result = r;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class PresentMatcher extends Matcher {
+        private final FieldPath path;
+
+        private PresentMatcher(final FieldPath path) {
+            this.path = path;
+        }
+
+        @Override
+        int cost() {
+            return path.cost();
+        }
+
+        @Override
+        FilterResult match(final Object content) {
+            return FilterResult.valueOf(path.resolve(content) != UNDEFINED);
+        }
+    }
+
+    /**
+     * Matches the values of a field against a pre-coerced value assertion.
+     */
+    private static abstract class ValueMatcher extends Matcher {
+        private final FieldPath path;
+
+        private ValueMatcher(final FieldPath path) {
+            this.path = path;
+        }
+
+        @Override
+        int cost() {
+            return path.cost() + 1;
+        }
+
+        @Override
+        final FilterResult match(final Object content) {
+            final Object value = path.resolve(content);
+            if (value == UNDEFINED) {
+                return FilterResult.FALSE;
+            } else if (value instanceof List) {
+                for (final Object element : (List<?>) value) {
+                    if (element != null && matchValue(element)) {
+                        return FilterResult.TRUE;
+                    }
+                }
+                return FilterResult.FALSE;
+            } else {
+                return FilterResult.valueOf(value != null && matchValue(value));
+            }
+        }
+
+        abstract boolean matchValue(Object value);
+    }
+
+    private static final class BooleanMatcher extends ValueMatcher {
+        private final Boolean assertion;
+        private final Operator operator;
+
+        private BooleanMatcher(final FieldPath path, final Operator operator,
+                final Boolean assertion) {
+            super(path);
+            this.operator = operator;
+            this.assertion = assertion;
+        }
+
+        @Override
+        boolean matchValue(final Object value) {
+            return value instanceof Boolean
+                    && operator.test(((Boolean) value).compareTo(assertion));
+        }
+    }
+
+    private static final class NumberMatcher extends ValueMatcher {
+        private final double assertion;
+        private final Operator operator;
+
+        private NumberMatcher(final FieldPath path, final Operator operator,
+                final Number assertion) {
+            super(path);
+            this.operator = operator;
+            this.assertion = assertion.doubleValue();
+        }
+
+        @Override
+        boolean matchValue(final Object value) {
+            return value instanceof Number
+                    && operator.test(Double.compare(((Number) value).doubleValue(), assertion));
+        }
+    }
+
+    private static final class StringMatcher extends ValueMatcher {
+        private final String assertion;
+        private final String lowerCaseAssertion;
+        private final Operator operator;
+
+        private StringMatcher(final FieldPath path, final Operator operator, final String assertion) {
+            super(path);
+            this.operator = operator;
+            this.assertion = assertion;
+            this.lowerCaseAssertion = assertion.toLowerCase(Locale.ENGLISH);
+        }
+
+        @Override
+        int cost() {
+            return super.cost() + (operator.isSubstring() ? 2 : 1);
+        }
+
+        @Override
+        boolean matchValue(final Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            final String s = (String) value;
+            switch (operator) {
+            case EQUAL_TO:
+                return s.equalsIgnoreCase(assertion);
+            case CONTAINS:
+                return s.toLowerCase(Locale.ENGLISH).contains(lowerCaseAssertion);
+            case STARTS_WITH:
+                return s.toLowerCase(Locale.ENGLISH).startsWith(lowerCaseAssertion);
+            default:
+                return operator.test(s.compareToIgnoreCase(assertion));
+            }
+        }
+    }
+
+    /**
+     * The comparison operators, each of which tests the result of comparing
+     * the field value with the value assertion.
+     */
+    private static enum Operator {
+        CONTAINS {
+            @Override
+            boolean test(final int comparison) {
+                // Equality matching for numbers and booleans.
+                return comparison == 0;
+            }
+        },
+        EQUAL_TO {
+            @Override
+            boolean test(final int comparison) {
+                return comparison == 0;
+            }
+        },
+        GREATER_THAN {
+            @Override
+            boolean test(final int comparison) {
+                return comparison > 0;
+            }
+        },
+        GREATER_THAN_OR_EQUAL_TO {
+            @Override
+            boolean test(final int comparison) {
+                return comparison >= 0;
+            }
+        },
+        LESS_THAN {
+            @Override
+            boolean test(final int comparison) {
+                return comparison < 0;
+            }
+        },
+        LESS_THAN_OR_EQUAL_TO {
+            @Override
+            boolean test(final int comparison) {
+                return comparison <= 0;
+            }
+        },
+        STARTS_WITH {
+            @Override
+            boolean test(final int comparison) {
+                // Equality matching for numbers and booleans.
+                return comparison == 0;
+            }
+        };
+
+        boolean isSubstring() {
+            return this == CONTAINS || this == STARTS_WITH;
+        }
+
+        abstract boolean test(int comparison);
+    }
+
+    /**
+     * A JSON pointer whose reference tokens have been resolved in advance,
+     * including their interpretation as list indexes.
+     */
+    private static final class FieldPath {
+        private final int[] indexes;
+        private final String[] tokens;
+
+        private FieldPath(final JsonPointer pointer) {
+            this.tokens = pointer.toArray();
+            this.indexes = new int[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                indexes[i] = toIndex(tokens[i]);
+            }
+        }
+
+        private int cost() {
+            return tokens.length;
+        }
+
+        /*
+         * Consistent with JsonValue.get(JsonPointer) except that UNDEFINED is
+         * returned instead of null when the field does not exist.
+         */
+        private Object resolve(final Object content) {
+            Object value = content;
+            for (int i = 0; i < tokens.length; i++) {
+                if (value instanceof Map) {
+                    final Map<?, ?> map = (Map<?, ?>) value;
+                    final Object member = map.get(tokens[i]);
+                    if (member == null && !map.containsKey(tokens[i])) {
+                        return UNDEFINED;
+                    }
+                    value = member;
+                } else if (value instanceof List) {
+                    final List<?> list = (List<?>) value;
+                    final int index = indexes[i];
+                    if (index < 0 || index >= list.size()) {
+                        return UNDEFINED;
+                    }
+                    value = list.get(index);
+                } else {
+                    return UNDEFINED;
+                }
+            }
+            return value;
+        }
+
+        private static int toIndex(final String token) {
+            try {
+                final int index = Integer.parseInt(token);
+                return index >= 0 ? index : -1;
+            } catch (final NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static final Comparator<Matcher> COST_COMPARATOR = new Comparator<Matcher>() {
+        @Override
+        public int compare(final Matcher m1, final Matcher m2) {
+            return m1.cost() - m2.cost();
+        }
+    };
+
+    private static final QueryFilterVisitor<Matcher, Void> COMPILER =
+            new QueryFilterVisitor<Matcher, Void>() {
+
+                @Override
+                public Matcher visitAndFilter(final Void p, final List<QueryFilter> subFilters) {
+                    return new AndMatcher(compileAll(subFilters));
+                }
+
+                @Override
+                public Matcher visitBooleanLiteralFilter(final Void p, final boolean value) {
+                    return value ? ALWAYS_TRUE : ALWAYS_FALSE;
+                }
+
+                @Override
+                public Matcher visitContainsFilter(final Void p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    return compileComparison(field, Operator.CONTAINS, valueAssertion);
+                }
+
+                @Override
+                public Matcher visitEqualsFilter(final Void p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    return compileComparison(field, Operator.EQUAL_TO, valueAssertion);
+                }
+
+                @Override
+                public Matcher visitExtendedMatchFilter(final Void p, final JsonPointer field,
+                        final String operator, final Object valueAssertion) {
+                    return ALWAYS_UNDEFINED;
+                }
+
+                @Override
+                public Matcher visitGreaterThanFilter(final Void p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    return compileComparison(field, Operator.GREATER_THAN, valueAssertion);
+                }
+
+                @Override
+                public Matcher visitGreaterThanOrEqualToFilter(final Void p,
+                        final JsonPointer field, final Object valueAssertion) {
+                    return compileComparison(field, Operator.GREATER_THAN_OR_EQUAL_TO,
+                            valueAssertion);
+                }
+
+                @Override
+                public Matcher visitLessThanFilter(final Void p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    return compileComparison(field, Operator.LESS_THAN, valueAssertion);
+                }
+
+                @Override
+                public Matcher visitLessThanOrEqualToFilter(final Void p,
+                        final JsonPointer field, final Object valueAssertion) {
+                    return compileComparison(field, Operator.LESS_THAN_OR_EQUAL_TO,
+                            valueAssertion);
+                }
+
+                @Override
+                public Matcher visitNotFilter(final Void p, final QueryFilter subFilter) {
+                    return new NotMatcher(subFilter.accept(this, p));
+                }
+
+                @Override
+                public Matcher visitOrFilter(final Void p, final List<QueryFilter> subFilters) {
+                    return new OrMatcher(compileAll(subFilters));
+                }
+
+                @Override
+                public Matcher visitPresentFilter(final Void p, final JsonPointer field) {
+                    return new PresentMatcher(new FieldPath(field));
+                }
+
+                @Override
+                public Matcher visitStartsWithFilter(final Void p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    return compileComparison(field, Operator.STARTS_WITH, valueAssertion);
+                }
+
+                private Matcher[] compileAll(final List<QueryFilter> subFilters) {
+                    final List<Matcher> subMatchers = new ArrayList<Matcher>(subFilters.size());
+                    for (final QueryFilter subFilter : subFilters) {
+                        subMatchers.add(subFilter.accept(this, null));
+                    }
+                    // Stable sort: evaluate the cheapest sub-filters first.
+                    Collections.sort(subMatchers, COST_COMPARATOR);
+                    return subMatchers.toArray(new Matcher[subMatchers.size()]);
+                }
+
+                private Matcher compileComparison(final JsonPointer field,
+                        final Operator operator, final Object valueAssertion) {
+                    final FieldPath path = new FieldPath(field);
+                    if (valueAssertion instanceof String) {
+                        return new StringMatcher(path, operator, (String) valueAssertion);
+                    } else if (valueAssertion instanceof Number) {
+                        return new NumberMatcher(path, operator, (Number) valueAssertion);
+                    } else if (valueAssertion instanceof Boolean) {
+                        return new BooleanMatcher(path, operator, (Boolean) valueAssertion);
+                    } else {
+                        // Unsupported assertion types never match.
+                        return ALWAYS_FALSE;
+                    }
+                }
+            };
+
+    private static final Matcher ALWAYS_FALSE = new LiteralMatcher(FilterResult.FALSE);
+    private static final Matcher ALWAYS_TRUE = new LiteralMatcher(FilterResult.TRUE);
+    private static final Matcher ALWAYS_UNDEFINED = new LiteralMatcher(FilterResult.UNDEFINED);
+
+    /** Sentinel indicating that a field does not exist. */
+    private static final Object UNDEFINED = new Object();
+
+    private static int totalCost(final Matcher[] matchers) {
+        int cost = 0;
+        for (final Matcher matcher : matchers) {
+            cost += matcher.cost();
+        }
+        return cost;
+    }
+
+    private final QueryFilter filter;
+    private final Matcher matcher;
+
+    CompiledQueryFilter(final QueryFilter filter) {
+        this.filter = filter;
+        this.matcher = filter.accept(COMPILER, null);
+    }
+
+    /**
+     * Returns the query filter from which this compiled filter was created.
+     *
+     * @return The query filter from which this compiled filter was created.
+     */
+    public QueryFilter getQueryFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns {@code true} if the provided JSON content matches this filter.
+     *
+     * @param content
+     *            The JSON content to be matched.
+     * @return {@code true} if the provided JSON content matches this filter.
+     */
+    public boolean matches(final JsonValue content) {
+        return matcher.match(content.getObject()) == FilterResult.TRUE;
+    }
+
+    /**
+     * Returns {@code true} if the content of the provided resource matches
+     * this filter.
+     *
+     * @param resource
+     *            The resource to be matched.
+     * @return {@code true} if the content of the provided resource matches
+     *         this filter.
+     */
+    public boolean matches(final Resource resource) {
+        return matches(resource.getContent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return filter.toString();
+    }
+}
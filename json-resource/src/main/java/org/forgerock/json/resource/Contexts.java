@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import static org.forgerock.json.resource.AbstractContext.ATTR_PARENT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.fluent.JsonValue;
+
+/**
+ * This class contains methods for persisting chains of contexts using a
+ * compact binary representation, as an alternative to their JSON
+ * representation (see {@link Context#toJsonValue()}).
+ * <p>
+ * The binary representation of a context chain is a version byte, followed
+ * by the number of contexts in the chain, followed by the attributes of each
+ * context, starting with the root context. The attributes of each context are
+ * the same as those in its JSON representation, except for the parent
+ * context, and are encoded using a type tag followed by the value, so they
+ * are decoded without any parsing. Contexts are restored using the same
+ * constructors as for the JSON representation, whose lookup is cached by the
+ * {@link PersistenceConfig}.
+ */
+public final class Contexts {
+    private static final byte VERSION = 1;
+
+    /**
+     * Restores a chain of contexts from its binary representation.
+     *
+     * @param bytes
+     *            The binary representation of the chain of contexts, as
+     *            returned by {@link #toBytes(Context)}.
+     * @param config
+     *            The persistence configuration.
+     * @return The restored context, whose parent chain will have also been
+     *         restored.
+     * @throws IllegalArgumentException
+     *             If the binary representation is malformed or a context
+     *             could not be restored.
+     */
+    public static Context fromBytes(final byte[] bytes, final PersistenceConfig config) {
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        try {
+            final byte version = in.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported context encoding version "
+                        + version);
+            }
+            Context context = null;
+            for (int count = in.getInt(); count > 0; count--) {
+                final Object savedContext = BinaryJson.readValue(in);
+                if (!(savedContext instanceof Map)) {
+                    throw new IllegalArgumentException("Malformed context");
+                }
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> attributes = (Map<String, Object>) savedContext;
+                attributes.put(ATTR_PARENT, context);
+                context = AbstractContext.load0(new JsonValue(attributes), config);
+            }
+            if (context == null || in.hasRemaining()) {
+                throw new IllegalArgumentException("Malformed context");
+            }
+            return context;
+        } catch (final BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed context", e);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Malformed context", e);
+        }
+    }
+
+    /**
+     * Returns the binary representation of the provided context and its
+     * parent chain.
+     *
+     * @param context
+     *            The context to be persisted.
+     * @return The binary representation of the context and its parent chain.
+     * @throws IllegalArgumentException
+     *             If one of the contexts has an attribute which is not a JSON
+     *             value.
+     */
+    public static byte[] toBytes(final Context context) {
+        final List<Context> contexts = new ArrayList<Context>();
+        for (Context c = context; c != null; c = c.getParent()) {
+            contexts.add(c);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * contexts.size());
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(contexts.size());
+            for (int i = contexts.size() - 1; i >= 0; i--) {
+                BinaryJson.writeValue(out, attributesOf(contexts.get(i)));
+            }
+            out.flush();
+        } catch (final IOException e) {
+            // Should not happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object attributesOf(final Context context) {
+        if (context instanceof AbstractContext) {
+            // Avoid copying the attributes of the entire parent chain.
+            return ((AbstractContext) context).data.getObject();
+        } else {
+            final Map<String, Object> attributes =
+                    new LinkedHashMap<String, Object>(context.toJsonValue().asMap());
+            attributes.remove(ATTR_PARENT);
+            return attributes;
+        }
+    }
+
+    // Prevent instantiation.
+    private Contexts() {
+        // Nothing to do.
+    }
+
+}
@@ -11,15 +11,18 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
 import static org.forgerock.util.Reject.checkNotNull;
 
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.forgerock.json.fluent.JsonValue;
@@ -28,31 +31,33 @@ import org.forgerock.json.fluent.JsonValue;
  * A chain of filters terminated by a target request handler. The filter chain
  * is thread safe and supports updates to the list of filters and the target
  * request handler while actively processing requests.
+ * <p>
+ * The filter chain is pre-built each time the list of filters is updated, so
+ * processing a request through the chain does not allocate any objects other
+ * than those allocated by the filters themselves.
  */
 public final class FilterChain implements RequestHandler {
     /*
-     * A request handler which represents the current position in the filter
-     * chain. Maintains a reference to the filter chain which was in use at the
-     * time when the cursor was created.
+     * A request handler which represents a position in the filter chain. The
+     * cursors for each position are created when the list of filters is
+     * updated, and each cursor references the cursor for the next position,
+     * so a request which is being processed continues to use the filters
+     * which were in use at the time when the request was received.
      */
     private final class Cursor implements RequestHandler {
-        private final int pos;
-        private final Filter[] snapshot;
+        private final Filter filter;
+        private final Cursor next;
 
-        private Cursor() {
-            this(filters.toArray(new Filter[0]), 0);
-        }
-
-        private Cursor(final Filter[] snapshot, final int pos) {
-            this.snapshot = snapshot;
-            this.pos = pos;
+        private Cursor(final Filter filter, final Cursor next) {
+            this.filter = filter;
+            this.next = next;
         }
 
         @Override
         public void handleAction(final ServerContext context, final ActionRequest request,
                 final ResultHandler<JsonValue> handler) {
-            if (hasNext()) {
-                get().filterAction(context, request, handler, next());
+            if (filter != null) {
+                filter.filterAction(context, request, handler, next);
             } else {
                 target.handleAction(context, request, handler);
             }
@@ -61,8 +66,8 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handleCreate(final ServerContext context, final CreateRequest request,
                 final ResultHandler<Resource> handler) {
-            if (hasNext()) {
-                get().filterCreate(context, request, handler, next());
+            if (filter != null) {
+                filter.filterCreate(context, request, handler, next);
             } else {
                 target.handleCreate(context, request, handler);
             }
@@ -71,8 +76,8 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handleDelete(final ServerContext context, final DeleteRequest request,
                 final ResultHandler<Resource> handler) {
-            if (hasNext()) {
-                get().filterDelete(context, request, handler, next());
+            if (filter != null) {
+                filter.filterDelete(context, request, handler, next);
             } else {
                 target.handleDelete(context, request, handler);
             }
@@ -81,8 +86,8 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handlePatch(final ServerContext context, final PatchRequest request,
                 final ResultHandler<Resource> handler) {
-            if (hasNext()) {
-                get().filterPatch(context, request, handler, next());
+            if (filter != null) {
+                filter.filterPatch(context, request, handler, next);
             } else {
                 target.handlePatch(context, request, handler);
             }
@@ -91,8 +96,8 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handleQuery(final ServerContext context, final QueryRequest request,
                 final QueryResultHandler handler) {
-            if (hasNext()) {
-                get().filterQuery(context, request, handler, next());
+            if (filter != null) {
+                filter.filterQuery(context, request, handler, next);
             } else {
                 target.handleQuery(context, request, handler);
             }
@@ -101,8 +106,8 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handleRead(final ServerContext context, final ReadRequest request,
                 final ResultHandler<Resource> handler) {
-            if (hasNext()) {
-                get().filterRead(context, request, handler, next());
+            if (filter != null) {
+                filter.filterRead(context, request, handler, next);
             } else {
                 target.handleRead(context, request, handler);
             }
@@ -111,28 +116,154 @@ public final class FilterChain implements RequestHandler {
         @Override
         public void handleUpdate(final ServerContext context, final UpdateRequest request,
                 final ResultHandler<Resource> handler) {
-            if (hasNext()) {
-                get().filterUpdate(context, request, handler, next());
+            if (filter != null) {
+                filter.filterUpdate(context, request, handler, next);
             } else {
                 target.handleUpdate(context, request, handler);
             }
         }
+    }
+
+    /*
+     * The list of filters returned by getFilters(), which rebuilds the chain
+     * of cursors each time that it is updated.
+     */
+    private final class FilterList extends AbstractList<Filter> {
+        private final List<Filter> filters = new CopyOnWriteArrayList<Filter>();
+
+        @Override
+        public synchronized boolean add(final Filter filter) {
+            filters.add(filter);
+            rebuild();
+            return true;
+        }
+
+        @Override
+        public synchronized void add(final int index, final Filter filter) {
+            filters.add(index, filter);
+            rebuild();
+        }
+
+        @Override
+        public synchronized boolean addAll(final Collection<? extends Filter> c) {
+            return rebuildIfChanged(filters.addAll(c));
+        }
+
+        @Override
+        public synchronized boolean addAll(final int index, final Collection<? extends Filter> c) {
+            return rebuildIfChanged(filters.addAll(index, c));
+        }
+
+        @Override
+        public synchronized void clear() {
+            filters.clear();
+            rebuild();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return filters.contains(o);
+        }
+
+        @Override
+        public Filter get(final int index) {
+            return filters.get(index);
+        }
+
+        @Override
+        public int indexOf(final Object o) {
+            return filters.indexOf(o);
+        }
+
+        @Override
+        public Iterator<Filter> iterator() {
+            return filters.iterator();
+        }
+
+        @Override
+        public int lastIndexOf(final Object o) {
+            return filters.lastIndexOf(o);
+        }
+
+        @Override
+        public ListIterator<Filter> listIterator() {
+            return filters.listIterator();
+        }
+
+        @Override
+        public ListIterator<Filter> listIterator(final int index) {
+            return filters.listIterator(index);
+        }
+
+        @Override
+        public synchronized Filter remove(final int index) {
+            final Filter filter = filters.remove(index);
+            rebuild();
+            return filter;
+        }
+
+        @Override
+        public synchronized boolean remove(final Object o) {
+            return rebuildIfChanged(filters.remove(o));
+        }
+
+        @Override
+        public synchronized boolean removeAll(final Collection<?> c) {
+            return rebuildIfChanged(filters.removeAll(c));
+        }
 
-        private Filter get() {
-            return snapshot[pos];
+        @Override
+        public synchronized boolean retainAll(final Collection<?> c) {
+            return rebuildIfChanged(filters.retainAll(c));
         }
 
-        private boolean hasNext() {
-            return pos < snapshot.length;
+        @Override
+        public synchronized Filter set(final int index, final Filter filter) {
+            final Filter previous = filters.set(index, filter);
+            rebuild();
+            return previous;
+        }
+
+        @Override
+        public int size() {
+            return filters.size();
         }
 
-        private Cursor next() {
-            return new Cursor(snapshot, pos + 1);
+        @Override
+        public Object[] toArray() {
+            return filters.toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(final T[] a) {
+            return filters.toArray(a);
         }
 
+        @Override
+        protected synchronized void removeRange(final int fromIndex, final int toIndex) {
+            filters.subList(fromIndex, toIndex).clear();
+            rebuild();
+        }
+
+        private void rebuild() {
+            Cursor cursor = new Cursor(null, null);
+            final Object[] snapshot = filters.toArray();
+            for (int i = snapshot.length - 1; i >= 0; i--) {
+                cursor = new Cursor((Filter) snapshot[i], cursor);
+            }
+            head = cursor;
+        }
+
+        private boolean rebuildIfChanged(final boolean isChanged) {
+            if (isChanged) {
+                rebuild();
+            }
+            return isChanged;
+        }
     }
 
-    private final List<Filter> filters = new CopyOnWriteArrayList<Filter>();
+    private final FilterList filters = new FilterList();
+    private volatile Cursor head = new Cursor(null, null);
     private volatile RequestHandler target;
 
     /**
@@ -202,43 +333,43 @@ public final class FilterChain implements RequestHandler {
     @Override
     public void handleAction(final ServerContext context, final ActionRequest request,
             final ResultHandler<JsonValue> handler) {
-        new Cursor().handleAction(context, request, handler);
+        head.handleAction(context, request, handler);
     }
 
     @Override
     public void handleCreate(final ServerContext context, final CreateRequest request,
             final ResultHandler<Resource> handler) {
-        new Cursor().handleCreate(context, request, handler);
+        head.handleCreate(context, request, handler);
     }
 
     @Override
     public void handleDelete(final ServerContext context, final DeleteRequest request,
             final ResultHandler<Resource> handler) {
-        new Cursor().handleDelete(context, request, handler);
+        head.handleDelete(context, request, handler);
     }
 
     @Override
     public void handlePatch(final ServerContext context, final PatchRequest request,
             final ResultHandler<Resource> handler) {
-        new Cursor().handlePatch(context, request, handler);
+        head.handlePatch(context, request, handler);
     }
 
     @Override
     public void handleQuery(final ServerContext context, final QueryRequest request,
             final QueryResultHandler handler) {
-        new Cursor().handleQuery(context, request, handler);
+        head.handleQuery(context, request, handler);
     }
 
     @Override
     public void handleRead(final ServerContext context, final ReadRequest request,
             final ResultHandler<Resource> handler) {
-        new Cursor().handleRead(context, request, handler);
+        head.handleRead(context, request, handler);
     }
 
     @Override
     public void handleUpdate(final ServerContext context, final UpdateRequest request,
             final ResultHandler<Resource> handler) {
-        new Cursor().handleUpdate(context, request, handler);
+        head.handleUpdate(context, request, handler);
     }
 
     /**
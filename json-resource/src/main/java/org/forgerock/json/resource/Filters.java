@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.resource;
@@ -253,10 +253,14 @@ public final class Filters {
              * a filter prematurely terminates processing by invoking
              * handleError/handleResult when filtering a resource. We need to
              * take care that we avoid sending additional response messages and
-             * invoking the filter as soon as completion is signalled.
+             * invoking the filter as soon as completion is signalled. In
+             * addition, the filter cannot return the handler's request to skip
+             * the remaining resources, so it is recorded and returned on its
+             * behalf.
              */
             return new QueryResultHandler() {
                 private final AtomicBoolean hasCompleted = new AtomicBoolean();
+                private volatile boolean isCancelled = false;
                 private final QueryResultHandler innerHandler = new QueryResultHandler() {
 
                     @Override
@@ -268,7 +272,14 @@ public final class Filters {
 
                     @Override
                     public boolean handleResource(final Resource resource) {
-                        return !hasCompleted.get() && handler.handleResource(resource);
+                        if (hasCompleted.get() || isCancelled) {
+                            return false;
+                        } else if (!handler.handleResource(resource)) {
+                            isCancelled = true;
+                            return false;
+                        } else {
+                            return true;
+                        }
                     }
 
                     @Override
@@ -288,11 +299,11 @@ public final class Filters {
 
                 @Override
                 public boolean handleResource(final Resource resource) {
-                    if (!hasCompleted.get()) {
+                    if (!hasCompleted.get() && !isCancelled) {
                         filter.filterQueryResource(context, state, resource, innerHandler);
                     }
-                    // Get the completion status again, in case the filter immediately set it.
-                    return !hasCompleted.get();
+                    // Get the status again, in case the filter immediately changed it.
+                    return !hasCompleted.get() && !isCancelled;
                 }
 
                 @Override
@@ -11,40 +11,201 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012-2013 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
+import static org.forgerock.json.resource.Resources.filterResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.forgerock.json.fluent.JsonPointer;
 import org.forgerock.json.fluent.JsonValue;
 import org.forgerock.json.fluent.JsonValueException;
+import org.forgerock.util.encode.Base64url;
 
 /**
  * A simple in-memory collection resource provider which uses a {@code Map} to
  * store resources. This resource provider is intended for testing purposes only
  * and there are no performance guarantees.
+ * <p>
+ * Query filters are evaluated against every resource in the collection unless
+ * secondary indexes have been configured using {@link #addEqualityIndex} or
+ * {@link #addOrderingIndex}, in which case the indexes are used in order to
+ * select a reduced set of candidate resources before the filter is applied.
+ * <p>
+ * Resource content is stored as immutable JSON values (see
+ * {@link JsonValue#toImmutable()}), so stored resources are returned to
+ * clients without being copied and cannot be modified by them. Patch requests
+ * only copy the parts of the resource content which are modified. Resources
+ * are filtered before being returned so that only the fields requested using
+ * {@link Request#getFields()} are built.
+ * <p>
+ * Reads and queries do not take any locks. Updates to a resource are
+ * serialized using a lock which is selected according to the resource ID from
+ * a fixed set of locks, so updates to different resources usually proceed in
+ * parallel.
+ * <p>
+ * A backend created using {@link #MemoryBackend(File)} is persistent: each
+ * update is recorded in a write-ahead log before the result is returned, and
+ * snapshots of the collection are written periodically so that the collection
+ * can be recovered when the backend is next created using the same
+ * directory. Reads and queries are still performed entirely in memory.
+ * <p>
+ * Large collections may store resources outside of the Java heap by using
+ * {@link #MemoryBackend(File, boolean)}.
+ * <p>
+ * Paged queries read a consistent snapshot of the collection without
+ * blocking updates: updates record the previous state of the resources which
+ * they modify in each snapshot which is in use. Queries which are not paged
+ * read the collection in a single pass without a snapshot, so they do not
+ * slow down updates, but may observe updates made while they are running.
+ * Paged results cookies identify the snapshot read by the first page so that
+ * subsequent pages read the same snapshot, as well as the ID and sort key
+ * values of the last resource returned, so that subsequent pages continue from
+ * that resource rather than skipping over all of the preceding pages. Once the
+ * snapshot has been discarded (see {@link #setSnapshotTimeout} and
+ * {@link #setMaxRetainedSnapshots}) subsequent pages continue from the same
+ * position in a new snapshot of the collection.
  */
 public final class MemoryBackend implements CollectionResourceProvider {
-    private static enum FilterResult {
-        FALSE, TRUE, UNDEFINED;
+    /**
+     * A secondary index mapping normalized field values to the IDs of the
+     * resources containing them. Each resource is only added to or removed from
+     * the index while holding the resource's lock, but different resources may
+     * be indexed concurrently, in which case the set of IDs associated with a
+     * value is locked while it is being modified. Indexes may be read
+     * concurrently without locking.
+     */
+    private static final class Index {
+        private final JsonPointer field;
+        private final ConcurrentMap<Object, Set<String>> keys;
+        private final boolean isOrdered;
 
-        static FilterResult valueOf(final boolean b) {
-            return b ? TRUE : FALSE;
+        private Index(final JsonPointer field, final boolean isOrdered) {
+            this.field = field;
+            this.isOrdered = isOrdered;
+            this.keys =
+                    isOrdered ? new ConcurrentSkipListMap<Object, Set<String>>(VALUE_COMPARATOR)
+                            : new ConcurrentHashMap<Object, Set<String>>();
         }
 
-        boolean toBoolean() {
-            return this == TRUE; // UNDEFINED collapses to FALSE.
+        private void add(final Resource resource) {
+            for (final Object value : getIndexableValues(resource, field)) {
+                final Object key = normalizeValue(value);
+                while (true) {
+                    Set<String> ids = keys.get(key);
+                    if (ids == null) {
+                        final Set<String> newIds =
+                                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                        ids = keys.putIfAbsent(key, newIds);
+                        if (ids == null) {
+                            ids = newIds;
+                        }
+                    }
+                    synchronized (ids) {
+                        // Retry if the set was removed because it became empty.
+                        if (keys.get(key) == ids) {
+                            ids.add(resource.getId());
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void clear() {
+            keys.clear();
+        }
+
+        private Set<String> lookupEqualTo(final Object valueAssertion) {
+            final Set<String> ids = keys.get(normalizeValue(valueAssertion));
+            return ids != null ? ids : Collections.<String> emptySet();
+        }
+
+        private Set<String> lookupGreaterThan(final Object valueAssertion, final boolean inclusive) {
+            return lookupRange(ordered().tailMap(normalizeValue(valueAssertion), inclusive),
+                    valueAssertion);
+        }
+
+        private Set<String> lookupLessThan(final Object valueAssertion, final boolean inclusive) {
+            return lookupRange(ordered().headMap(normalizeValue(valueAssertion), inclusive)
+                    .descendingMap(), valueAssertion);
+        }
+
+        private Set<String> lookupStartsWith(final String valueAssertion) {
+            final String prefix = (String) normalizeValue(valueAssertion);
+            final Set<String> ids = new HashSet<String>();
+            for (final Map.Entry<Object, Set<String>> entry : ordered().tailMap(prefix, true)
+                    .entrySet()) {
+                final Object key = entry.getKey();
+                if (!(key instanceof String) || !((String) key).startsWith(prefix)) {
+                    break;
+                }
+                ids.addAll(entry.getValue());
+            }
+            return ids;
+        }
+
+        /*
+         * Values of the same type are contiguous within the index since values
+         * of different types are ordered by their class name, so stop as soon
+         * as an incompatible value is encountered.
+         */
+        private Set<String> lookupRange(final NavigableMap<Object, Set<String>> range,
+                final Object valueAssertion) {
+            final Set<String> ids = new HashSet<String>();
+            for (final Map.Entry<Object, Set<String>> entry : range.entrySet()) {
+                if (!isCompatible(valueAssertion, entry.getKey())) {
+                    break;
+                }
+                ids.addAll(entry.getValue());
+            }
+            return ids;
+        }
+
+        private NavigableMap<Object, Set<String>> ordered() {
+            return (NavigableMap<Object, Set<String>>) keys;
+        }
+
+        private void remove(final Resource resource) {
+            for (final Object value : getIndexableValues(resource, field)) {
+                final Object key = normalizeValue(value);
+                final Set<String> ids = keys.get(key);
+                if (ids != null) {
+                    synchronized (ids) {
+                        ids.remove(resource.getId());
+                        if (ids.isEmpty()) {
+                            keys.remove(key, ids);
+                        }
+                    }
+                }
+            }
         }
     }
 
@@ -63,7 +224,8 @@ public final class MemoryBackend implements CollectionResourceProvider {
                     return result;
                 }
             }
-            return 0;
+            // Ensure that the ordering is total so that pages are stable.
+            return r1.getId().compareTo(r2.getId());
         }
 
         private int compare(final Resource r1, final Resource r2, final SortKey sortKey) {
@@ -85,7 +247,8 @@ public final class MemoryBackend implements CollectionResourceProvider {
             }
         }
 
-        private List<Object> getValuesSorted(final Resource resource, final JsonPointer field) {
+        private static List<Object> getValuesSorted(final Resource resource,
+                final JsonPointer field) {
             final JsonValue value = resource.getContent().get(field);
             if (value == null) {
                 return Collections.emptyList();
@@ -102,191 +265,307 @@ public final class MemoryBackend implements CollectionResourceProvider {
         }
     }
 
-    private static final QueryFilterVisitor<FilterResult, Resource> RESOURCE_FILTER =
-            new QueryFilterVisitor<FilterResult, Resource>() {
+    /**
+     * A consistent view of the resources as they were when the snapshot was
+     * created. Resources are read from the current collection unless they have
+     * since been modified, in which case the state which they had when the
+     * snapshot was created is recorded in the snapshot.
+     */
+    private static final class Snapshot {
+        private final long id;
+        private final ConcurrentMap<String, Resource> previousResources =
+                new ConcurrentHashMap<String, Resource>();
+
+        /** Guarded by this snapshot. */
+        private int activeQueries;
+        private boolean isClosed;
+        private long lastAccessTime;
+
+        private Snapshot(final long id) {
+            this.id = id;
+            this.lastAccessTime = System.currentTimeMillis();
+        }
+
+        /*
+         * Returns false if the snapshot has been closed, otherwise prevents it
+         * from being closed until the query has completed.
+         */
+        private synchronized boolean acquire() {
+            if (isClosed) {
+                return false;
+            }
+            activeQueries++;
+            return true;
+        }
+
+        private synchronized boolean closeIfExpired(final long expiryTime) {
+            if (activeQueries == 0 && lastAccessTime <= expiryTime) {
+                isClosed = true;
+            }
+            return isClosed;
+        }
+
+        /*
+         * Closes the snapshot if requested, unless it is still being read by
+         * other queries, returning true if the snapshot is closed.
+         */
+        private synchronized boolean release(final boolean close) {
+            activeQueries--;
+            lastAccessTime = System.currentTimeMillis();
+            if (close && activeQueries == 0) {
+                isClosed = true;
+            }
+            return isClosed;
+        }
+
+        /*
+         * Records the state of a resource before it is first modified, which
+         * is NO_RESOURCE if it did not exist.
+         */
+        private void preserve(final String id, final Resource resource) {
+            previousResources.putIfAbsent(id, resource != null ? resource : NO_RESOURCE);
+        }
+    }
+
+    /**
+     * Iterates over the resources in a snapshot given the current candidates
+     * for a query. Each current candidate is replaced with its previous state
+     * if it has been modified since the snapshot was created. Then the
+     * previous state of any resources which have not been seen is returned,
+     * e.g. because they have since been deleted or no longer match the
+     * indexes. Only the IDs of modified resources are remembered, so memory
+     * is proportional to the number of concurrent updates rather than the
+     * size of the collection. As a result a resource which is modified after
+     * it has been returned as a current candidate is returned again with the
+     * same state, so callers must ignore duplicate IDs.
+     */
+    private static final class SnapshotIterator implements Iterator<Resource> {
+        private final Iterator<Resource> candidates;
+        private Iterator<Resource> previousResources;
+        private final Set<String> seenPreviousResources = new HashSet<String>();
+        private final Snapshot snapshot;
+        private Resource next;
+
+        private SnapshotIterator(final Snapshot snapshot, final Iterator<Resource> candidates) {
+            this.snapshot = snapshot;
+            this.candidates = candidates;
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Resource next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Resource resource = next;
+            next = advance();
+            return resource;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Resource advance() {
+            while (candidates.hasNext()) {
+                final Resource candidate = candidates.next();
+                /*
+                 * Updates preserve the previous resource before replacing it,
+                 * so the previous resource must be checked after reading the
+                 * current resource.
+                 */
+                final Resource previous = snapshot.previousResources.get(candidate.getId());
+                if (previous == null) {
+                    return candidate;
+                }
+                seenPreviousResources.add(candidate.getId());
+                if (previous != NO_RESOURCE) {
+                    return previous;
+                }
+            }
+            if (previousResources == null) {
+                previousResources = snapshot.previousResources.values().iterator();
+            }
+            while (previousResources.hasNext()) {
+                final Resource previous = previousResources.next();
+                if (previous != NO_RESOURCE && seenPreviousResources.add(previous.getId())) {
+                    return previous;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Computes the set of IDs of resources which may match a filter using the
+     * indexes passed as the parameter, or {@code null} if the filter cannot be
+     * fully resolved using indexes and all resources must be scanned.
+     */
+    private static final QueryFilterVisitor<Set<String>, Map<JsonPointer, Index>> INDEX_FILTER =
+            new QueryFilterVisitor<Set<String>, Map<JsonPointer, Index>>() {
 
                 @Override
-                public FilterResult visitAndFilter(final Resource p,
+                public Set<String> visitAndFilter(final Map<JsonPointer, Index> p,
                         final List<QueryFilter> subFilters) {
-                    FilterResult result = FilterResult.TRUE;
+                    // Intersect the candidates starting with the smallest.
+                    final List<Set<String>> candidates = new ArrayList<Set<String>>();
                     for (final QueryFilter subFilter : subFilters) {
-                        final FilterResult r = subFilter.accept(this, p);
-                        if (r.ordinal() < result.ordinal()) {
-                            result = r;
+                        final Set<String> ids = subFilter.accept(this, p);
+                        if (ids != null) {
+                            if (ids.isEmpty()) {
+                                return ids;
+                            }
+                            candidates.add(ids);
                         }
-                        if (result == FilterResult.FALSE) {
-                            break;
+                    }
+                    if (candidates.isEmpty()) {
+                        return null;
+                    }
+                    Collections.sort(candidates, new Comparator<Set<String>>() {
+                        @Override
+                        public int compare(final Set<String> s1, final Set<String> s2) {
+                            return s1.size() - s2.size();
                         }
+                    });
+                    final Set<String> result = new HashSet<String>(candidates.get(0));
+                    for (int i = 1; i < candidates.size() && !result.isEmpty(); i++) {
+                        result.retainAll(candidates.get(i));
                     }
                     return result;
                 }
 
                 @Override
-                public FilterResult visitBooleanLiteralFilter(final Resource p, final boolean value) {
-                    return FilterResult.valueOf(value);
+                public Set<String> visitBooleanLiteralFilter(final Map<JsonPointer, Index> p,
+                        final boolean value) {
+                    return value ? null : Collections.<String> emptySet();
                 }
 
                 @Override
-                public FilterResult visitContainsFilter(final Resource p, final JsonPointer field,
-                        final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)) {
-                            if (valueAssertion instanceof String) {
-                                final String s1 =
-                                        ((String) valueAssertion).toLowerCase(Locale.ENGLISH);
-                                final String s2 = ((String) value).toLowerCase(Locale.ENGLISH);
-                                if (s2.contains(s1)) {
-                                    return FilterResult.TRUE;
-                                }
-                            } else {
-                                // Use equality matching for numbers and booleans.
-                                if (compareValues(valueAssertion, value) == 0) {
-                                    return FilterResult.TRUE;
-                                }
-                            }
-                        }
-                    }
-                    return FilterResult.FALSE;
+                public Set<String> visitContainsFilter(final Map<JsonPointer, Index> p,
+                        final JsonPointer field, final Object valueAssertion) {
+                    return null;
                 }
 
                 @Override
-                public FilterResult visitEqualsFilter(final Resource p, final JsonPointer field,
-                        final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)
-                                && compareValues(valueAssertion, value) == 0) {
-                            return FilterResult.TRUE;
-                        }
-                    }
-                    return FilterResult.FALSE;
+                public Set<String> visitEqualsFilter(final Map<JsonPointer, Index> p,
+                        final JsonPointer field, final Object valueAssertion) {
+                    final Index index = p.get(field);
+                    return index != null ? index.lookupEqualTo(valueAssertion) : null;
                 }
 
                 @Override
-                public FilterResult visitExtendedMatchFilter(final Resource p,
+                public Set<String> visitExtendedMatchFilter(final Map<JsonPointer, Index> p,
                         final JsonPointer field, final String matchingRuleId,
                         final Object valueAssertion) {
-                    // This backend does not support any extended filters.
-                    return FilterResult.UNDEFINED;
+                    return null;
                 }
 
                 @Override
-                public FilterResult visitGreaterThanFilter(final Resource p,
+                public Set<String> visitGreaterThanFilter(final Map<JsonPointer, Index> p,
                         final JsonPointer field, final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)
-                                && compareValues(valueAssertion, value) < 0) {
-                            return FilterResult.TRUE;
-                        }
-                    }
-                    return FilterResult.FALSE;
+                    final Index index = getOrderingIndex(p, field);
+                    return index != null ? index.lookupGreaterThan(valueAssertion, false) : null;
                 }
 
                 @Override
-                public FilterResult visitGreaterThanOrEqualToFilter(final Resource p,
-                        final JsonPointer field, final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)
-                                && compareValues(valueAssertion, value) <= 0) {
-                            return FilterResult.TRUE;
-                        }
-                    }
-                    return FilterResult.FALSE;
+                public Set<String> visitGreaterThanOrEqualToFilter(
+                        final Map<JsonPointer, Index> p, final JsonPointer field,
+                        final Object valueAssertion) {
+                    final Index index = getOrderingIndex(p, field);
+                    return index != null ? index.lookupGreaterThan(valueAssertion, true) : null;
                 }
 
                 @Override
-                public FilterResult visitLessThanFilter(final Resource p, final JsonPointer field,
-                        final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)
-                                && compareValues(valueAssertion, value) > 0) {
-                            return FilterResult.TRUE;
-                        }
-                    }
-                    return FilterResult.FALSE;
+                public Set<String> visitLessThanFilter(final Map<JsonPointer, Index> p,
+                        final JsonPointer field, final Object valueAssertion) {
+                    final Index index = getOrderingIndex(p, field);
+                    return index != null ? index.lookupLessThan(valueAssertion, false) : null;
                 }
 
                 @Override
-                public FilterResult visitLessThanOrEqualToFilter(final Resource p,
+                public Set<String> visitLessThanOrEqualToFilter(final Map<JsonPointer, Index> p,
                         final JsonPointer field, final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)
-                                && compareValues(valueAssertion, value) >= 0) {
-                            return FilterResult.TRUE;
-                        }
-                    }
-                    return FilterResult.FALSE;
+                    final Index index = getOrderingIndex(p, field);
+                    return index != null ? index.lookupLessThan(valueAssertion, true) : null;
                 }
 
                 @Override
-                public FilterResult visitNotFilter(final Resource p, final QueryFilter subFilter) {
-                    switch (subFilter.accept(this, p)) {
-                    case FALSE:
-                        return FilterResult.TRUE;
-                    case UNDEFINED:
-                        return FilterResult.UNDEFINED;
-                    default: // TRUE
-                        return FilterResult.FALSE;
-                    }
+                public Set<String> visitNotFilter(final Map<JsonPointer, Index> p,
+                        final QueryFilter subFilter) {
+                    return null;
                 }
 
                 @Override
-                public FilterResult visitOrFilter(final Resource p,
+                public Set<String> visitOrFilter(final Map<JsonPointer, Index> p,
                         final List<QueryFilter> subFilters) {
-                    FilterResult result = FilterResult.FALSE;
+                    final Set<String> result = new HashSet<String>();
                     for (final QueryFilter subFilter : subFilters) {
-                        final FilterResult r = subFilter.accept(this, p);
-                        if (r.ordinal() > result.ordinal()) {
-                            result = r;
-                        }
-                        if (result == FilterResult.TRUE) {
-                            break;
+                        final Set<String> ids = subFilter.accept(this, p);
+                        if (ids == null) {
+                            // At least one sub-filter requires a full scan.
+                            return null;
                         }
+                        result.addAll(ids);
                     }
                     return result;
                 }
 
                 @Override
-                public FilterResult visitPresentFilter(final Resource p, final JsonPointer field) {
-                    final JsonValue value = p.getContent().get(field);
-                    return FilterResult.valueOf(value != null);
+                public Set<String> visitPresentFilter(final Map<JsonPointer, Index> p,
+                        final JsonPointer field) {
+                    return null;
                 }
 
                 @Override
-                public FilterResult visitStartsWithFilter(final Resource p,
+                public Set<String> visitStartsWithFilter(final Map<JsonPointer, Index> p,
                         final JsonPointer field, final Object valueAssertion) {
-                    for (final Object value : getValues(p, field)) {
-                        if (isCompatible(valueAssertion, value)) {
-                            if (valueAssertion instanceof String) {
-                                final String s1 =
-                                        ((String) valueAssertion).toLowerCase(Locale.ENGLISH);
-                                final String s2 = ((String) value).toLowerCase(Locale.ENGLISH);
-                                if (s2.startsWith(s1)) {
-                                    return FilterResult.TRUE;
-                                }
-                            } else {
-                                // Use equality matching for numbers and booleans.
-                                if (compareValues(valueAssertion, value) == 0) {
-                                    return FilterResult.TRUE;
-                                }
-                            }
-                        }
+                    if (!(valueAssertion instanceof String)) {
+                        // Use equality matching for numbers and booleans.
+                        return visitEqualsFilter(p, field, valueAssertion);
                     }
-                    return FilterResult.FALSE;
+                    final Index index = getOrderingIndex(p, field);
+                    return index != null ? index.lookupStartsWith((String) valueAssertion) : null;
                 }
 
-                private List<Object> getValues(final Resource resource, final JsonPointer field) {
-                    final JsonValue value = resource.getContent().get(field);
-                    if (value == null) {
-                        return Collections.emptyList();
-                    } else if (value.isList()) {
-                        return value.asList();
-                    } else {
-                        return Collections.singletonList(value.getObject());
-                    }
+                private Index getOrderingIndex(final Map<JsonPointer, Index> p,
+                        final JsonPointer field) {
+                    final Index index = p.get(field);
+                    return index != null && index.isOrdered ? index : null;
                 }
-
             };
 
+    /*
+     * The number of locks used for serializing updates to resources, which
+     * must be a power of two.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    /*
+     * The default size of each log file used by persistent backends.
+     */
+    private static final int DEFAULT_LOG_SIZE = 16 * 1024 * 1024;
+
+    /*
+     * The size of each buffer used for storing resources off-heap.
+     */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /*
+     * Recorded in snapshots for resources which did not exist when the
+     * snapshot was created.
+     */
+    private static final Resource NO_RESOURCE = new Resource(null, null, null);
+
+    private static final JsonPointer ID_POINTER = new JsonPointer(Resource.FIELD_CONTENT_ID);
+    private static final JsonPointer REVISION_POINTER = new JsonPointer(
+            Resource.FIELD_CONTENT_REVISION);
+
     private static final Comparator<Object> VALUE_COMPARATOR = new Comparator<Object>() {
         @Override
         public int compare(final Object o1, final Object o2) {
@@ -314,27 +593,320 @@ public final class MemoryBackend implements CollectionResourceProvider {
         }
     }
 
+    /*
+     * Decodes the ID and sort key values of the last resource returned by the
+     * previous page, returning a resource containing only those values.
+     */
+    private static Resource decodeKeyset(final String keyset, final List<SortKey> sortKeys)
+            throws IOException {
+        final byte[] bytes = Base64url.decode(keyset);
+        if (bytes == null) {
+            throw new IOException("Malformed keyset");
+        }
+        final Object values = BinaryJson.readValue(ByteBuffer.wrap(bytes));
+        if (!(values instanceof List) || ((List<?>) values).size() != sortKeys.size() + 1
+                || !(((List<?>) values).get(0) instanceof String)) {
+            throw new IOException("Malformed keyset");
+        }
+        final List<?> list = (List<?>) values;
+        final JsonValue content = new JsonValue(new LinkedHashMap<String, Object>());
+        for (int i = 0; i < sortKeys.size(); i++) {
+            if (list.get(i + 1) != null) {
+                content.putPermissive(sortKeys.get(i).getField(), list.get(i + 1));
+            }
+        }
+        return new Resource((String) list.get(0), null, content);
+    }
+
+    /*
+     * Encodes the ID and sort key values of the last resource of a page, which
+     * are all that is needed to find the first resource of the next page.
+     */
+    private static String encodeKeyset(final Resource resource, final List<SortKey> sortKeys) {
+        final List<Object> values = new ArrayList<Object>(sortKeys.size() + 1);
+        values.add(resource.getId());
+        for (final SortKey sortKey : sortKeys) {
+            final List<Object> sortValues =
+                    ResourceComparator.getValuesSorted(resource, sortKey.getField());
+            values.add(sortValues.isEmpty() ? null : sortValues.get(0));
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            BinaryJson.writeValue(new DataOutputStream(bytes), values);
+        } catch (final IOException e) {
+            // Should not happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+        return Base64url.encode(bytes.toByteArray());
+    }
+
+    private static List<Object> getIndexableValues(final Resource resource,
+            final JsonPointer field) {
+        final JsonValue value = resource.getContent().get(field);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        final List<Object> values =
+                value.isList() ? value.asList() : Collections.singletonList(value.getObject());
+        final List<Object> indexableValues = new ArrayList<Object>(values.size());
+        for (final Object v : values) {
+            if (v instanceof String || v instanceof Number || v instanceof Boolean) {
+                indexableValues.add(v);
+            }
+        }
+        return indexableValues;
+    }
+
     private static boolean isCompatible(final Object v1, final Object v2) {
         return (v1 instanceof String && v2 instanceof String)
                 || (v1 instanceof Number && v2 instanceof Number)
                 || (v1 instanceof Boolean && v2 instanceof Boolean);
     }
 
+    /*
+     * Normalize a value such that two values are equal according to
+     * equals/hashCode if and only if compareValues() returns 0 for them.
+     * Strings are compared ignoring case, and numbers by their double value.
+     */
+    private static Object normalizeValue(final Object value) {
+        if (value instanceof String) {
+            final String s = (String) value;
+            final char[] chars = new char[s.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+            }
+            return new String(chars);
+        } else if (value instanceof Number) {
+            return Double.valueOf(((Number) value).doubleValue());
+        } else {
+            return value;
+        }
+    }
+
     /*
      * Throughout this map backend we take care not to invoke result handlers
      * while holding locks since result handlers may perform blocking IO
      * operations.
      */
 
+    private final Map<JsonPointer, Index> indexes = new ConcurrentHashMap<JsonPointer, Index>();
     private final AtomicLong nextResourceId = new AtomicLong();
-    private final Map<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
-    private final Object writeLock = new Object();
+    private final ReentrantLock[] locks = newLocks();
+    private final ConcurrentMap<String, Resource> resources;
+    private volatile int sortSizeLimit = 0;
+    /** Snapshot IDs are random so that paged results cookies cannot be guessed. */
+    private final SecureRandom snapshotIds = new SecureRandom();
+    private final List<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>();
+    private volatile long snapshotTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private volatile int maxRetainedSnapshots = 100;
+    private final MemoryBackendStore store;
 
     /**
      * Creates a new in-memory collection containing no resources.
      */
     public MemoryBackend() {
-        // No implementation required.
+        this.resources = new ConcurrentHashMap<String, Resource>();
+        this.store = null;
+    }
+
+    /**
+     * Creates a new persistent in-memory collection which records updates in
+     * the provided directory. Any resources previously persisted in the
+     * directory are recovered. The backend should be closed using
+     * {@link #close()} once it is no longer needed.
+     *
+     * @param directory
+     *            The directory in which updates are recorded, which will be
+     *            created if it does not already exist.
+     * @throws IOException
+     *             If the persisted resources could not be recovered.
+     */
+    public MemoryBackend(final File directory) throws IOException {
+        this(directory, false, DEFAULT_LOG_SIZE);
+    }
+
+    /**
+     * Creates a new in-memory collection which may be persistent, and which
+     * may store resources outside of the Java heap.
+     * <p>
+     * Resources stored off-heap are encoded in a compact binary form, which
+     * significantly reduces the heap usage and garbage collection overhead of
+     * large collections. However, resources must then be decoded whenever
+     * they are read, or evaluated against a query filter which cannot be
+     * fully resolved using indexes.
+     *
+     * @param directory
+     *            The directory in which updates are recorded, or {@code null}
+     *            if the collection should not be persistent.
+     * @param storeOffHeap
+     *            {@code true} if resources should be stored outside of the
+     *            Java heap.
+     * @throws IOException
+     *             If the persisted resources could not be recovered.
+     */
+    public MemoryBackend(final File directory, final boolean storeOffHeap) throws IOException {
+        this(directory, storeOffHeap, DEFAULT_LOG_SIZE);
+    }
+
+    /*
+     * Creates a backend whose log files, if any, have the provided size.
+     */
+    MemoryBackend(final File directory, final boolean storeOffHeap, final int logSize)
+            throws IOException {
+        this.resources =
+                storeOffHeap ? new OffHeapResourceMap(SLAB_SIZE)
+                        : new ConcurrentHashMap<String, Resource>();
+        this.store =
+                directory != null ? new MemoryBackendStore(directory, logSize, resources,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                awaitUpdates();
+                            }
+                        }) : null;
+        long maxId = -1;
+        for (final String id : resources.keySet()) {
+            try {
+                maxId = Math.max(maxId, Long.parseLong(id));
+            } catch (final NumberFormatException e) {
+                // Not a generated resource ID.
+            }
+        }
+        nextResourceId.set(maxId + 1);
+    }
+
+    /**
+     * Closes the write-ahead log if this backend is persistent. Subsequent
+     * attempts to update resources will fail.
+     *
+     * @throws IOException
+     *             If the write-ahead log could not be closed.
+     */
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Sets the maximum number of resources which may be retained in memory
+     * while performing server side sorting. Sorted queries which request paged
+     * results only need to retain the resources in the requested page when
+     * continuing from a paged results cookie, or up to and including the
+     * requested page when using an offset, whereas sorted queries which do not
+     * request paged results need to retain all matching resources. Queries
+     * exceeding the limit will fail with a {@link ForbiddenException}. The
+     * default is {@code 0}, meaning no limit.
+     *
+     * @param limit
+     *            The maximum number of resources to sort, or {@code 0} if
+     *            there is no limit.
+     * @return This backend.
+     */
+    public MemoryBackend setSortSizeLimit(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative sort size limit");
+        }
+        this.sortSizeLimit = limit;
+        return this;
+    }
+
+    /**
+     * Sets the length of time after which the snapshot read by a paged query
+     * is discarded if no further pages have been requested. Subsequent pages
+     * requested using a paged results cookie which refers to a discarded
+     * snapshot read a new snapshot, so they may reflect updates made since the
+     * first page was read. Updates are slightly more expensive while
+     * snapshots are retained. The default is 5 minutes.
+     *
+     * @param timeout
+     *            The snapshot timeout.
+     * @param unit
+     *            The unit of the timeout.
+     * @return This backend.
+     */
+    public MemoryBackend setSnapshotTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative snapshot timeout");
+        }
+        this.snapshotTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of snapshots which are retained for paged
+     * queries. When the limit is exceeded the oldest snapshots which are not
+     * being read are discarded before they expire, and subsequent pages
+     * requested using a paged results cookie which refers to them read a new
+     * snapshot, as if they had expired. Each update is recorded in every retained
+     * snapshot, so this bounds the cost of updates when clients abandon paged
+     * queries. The default is 100.
+     *
+     * @param limit
+     *            The maximum number of retained snapshots.
+     * @return This backend.
+     */
+    public MemoryBackend setMaxRetainedSnapshots(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative snapshot limit");
+        }
+        this.maxRetainedSnapshots = limit;
+        return this;
+    }
+
+    /**
+     * Adds a hash based index for the specified field which will be used in
+     * order to optimize equality query filters. Any existing index for the
+     * field will be replaced. Multi-valued fields are indexed using each of
+     * their values, and values which are not strings, numbers, or booleans are
+     * ignored.
+     * <p>
+     * Indexes are maintained whenever resources are created, updated, patched,
+     * or deleted through this backend. Modifying resource content returned from
+     * this backend directly is not supported once indexes have been added.
+     *
+     * @param field
+     *            The field to be indexed.
+     * @return This backend.
+     */
+    public MemoryBackend addEqualityIndex(final JsonPointer field) {
+        return addIndex(new Index(field, false));
+    }
+
+    /**
+     * Adds an ordered index for the specified field which will be used in
+     * order to optimize equality, ordering ({@code gt}, {@code ge}, {@code lt},
+     * {@code le}), and starts with query filters. Any existing index for the
+     * field will be replaced. Multi-valued fields are indexed using each of
+     * their values, and values which are not strings, numbers, or booleans are
+     * ignored.
+     * <p>
+     * Indexes are maintained whenever resources are created, updated, patched,
+     * or deleted through this backend. Modifying resource content returned from
+     * this backend directly is not supported once indexes have been added.
+     *
+     * @param field
+     *            The field to be indexed.
+     * @return This backend.
+     */
+    public MemoryBackend addOrderingIndex(final JsonPointer field) {
+        return addIndex(new Index(field, true));
+    }
+
+    /**
+     * Removes any index previously added for the specified field.
+     *
+     * @param field
+     *            The indexed field.
+     * @return {@code true} if an index was removed.
+     */
+    public boolean removeIndex(final JsonPointer field) {
+        lockAll();
+        try {
+            return indexes.remove(field) != null;
+        } finally {
+            unlockAll();
+        }
     }
 
     /**
@@ -346,10 +918,25 @@ public final class MemoryBackend implements CollectionResourceProvider {
         try {
             if (request.getAction().equals("clear")) {
                 final int size;
-                synchronized (writeLock) {
+                final long position;
+                lockAll();
+                try {
                     size = resources.size();
+                    position = log(MemoryBackendStore.newClearRecord());
+                    closeExpiredSnapshots();
+                    for (final Snapshot snapshot : snapshots) {
+                        for (final Resource resource : resources.values()) {
+                            snapshot.preserve(resource.getId(), resource);
+                        }
+                    }
                     resources.clear();
+                    for (final Index index : indexes.values()) {
+                        index.clear();
+                    }
+                } finally {
+                    unlockAll();
                 }
+                sync(position);
                 final JsonValue result = new JsonValue(new LinkedHashMap<String, Object>(1));
                 result.put("cleared", size);
                 handler.handleResult(result);
@@ -379,21 +966,21 @@ public final class MemoryBackend implements CollectionResourceProvider {
     @Override
     public void createInstance(final ServerContext context, final CreateRequest request,
             final ResultHandler<Resource> handler) {
-        final JsonValue value = request.getContent();
         final String id = request.getNewResourceId();
         final String rev = "0";
         try {
-            final Resource resource;
+            final JsonValue value = getImmutableContent(request.getContent());
+            Resource resource;
+            long position;
             while (true) {
                 final String eid =
                         id != null ? id : String.valueOf(nextResourceId.getAndIncrement());
-                final Resource tmp = new Resource(eid, rev, value);
-                synchronized (writeLock) {
-                    final Resource existingResource = resources.put(eid, tmp);
-                    if (existingResource != null) {
+                final Resource tmp = new Resource(eid, rev, withIdAndRevision(value, eid, rev));
+                final ReentrantLock lock = getLock(eid);
+                lock.lock();
+                try {
+                    if (resources.containsKey(eid)) {
                         if (id != null) {
-                            // Already exists - put the existing resource back.
-                            resources.put(id, existingResource);
                             throw new PreconditionFailedException("The resource with ID '" + id
                                     + "' could not be created because "
                                     + "there is already another resource with the same ID");
@@ -402,13 +989,16 @@ public final class MemoryBackend implements CollectionResourceProvider {
                         }
                     } else {
                         // Add succeeded.
-                        addIdAndRevision(tmp);
+                        position = commit(eid, null, tmp);
                         resource = tmp;
                         break;
                     }
+                } finally {
+                    lock.unlock();
                 }
             }
-            handler.handleResult(resource);
+            sync(position);
+            handler.handleResult(filterResource(resource, request.getFields()));
         } catch (final ResourceException e) {
             handler.handleError(e);
         }
@@ -423,11 +1013,17 @@ public final class MemoryBackend implements CollectionResourceProvider {
         final String rev = request.getRevision();
         try {
             final Resource resource;
-            synchronized (writeLock) {
+            final long position;
+            final ReentrantLock lock = getLock(id);
+            lock.lock();
+            try {
                 resource = getResourceForUpdate(id, rev);
-                resources.remove(id);
+                position = commit(id, resource, null);
+            } finally {
+                lock.unlock();
             }
-            handler.handleResult(resource);
+            sync(position);
+            handler.handleResult(filterResource(resource, request.getFields()));
         } catch (final ResourceException e) {
             handler.handleError(e);
         }
@@ -441,75 +1037,33 @@ public final class MemoryBackend implements CollectionResourceProvider {
             final PatchRequest request, final ResultHandler<Resource> handler) {
         final String rev = request.getRevision();
         try {
-            final Resource resource;
-            synchronized (writeLock) {
-                final Resource existingResource = getResourceForUpdate(id, rev);
-                final String newRev = getNextRevision(existingResource.getRevision());
-                final JsonValue newContent = existingResource.getContent().copy();
-                for (final PatchOperation operation : request.getPatchOperations()) {
-                    try {
-                        if (operation.isAdd()) {
-                            newContent.putPermissive(operation.getField(), operation.getValue()
-                                    .getObject());
-                        } else if (operation.isRemove()) {
-                            if (operation.getValue().isNull()) {
-                                // Remove entire value.
-                                newContent.remove(operation.getField());
-                            } else {
-                                // Find matching value(s) and remove (assumes reference to array).
-                                final JsonValue value = newContent.get(operation.getField());
-                                if (value != null) {
-                                    if (value.isList()) {
-                                        final Object valueToBeRemoved =
-                                                operation.getValue().getObject();
-                                        final Iterator<Object> iterator = value.asList().iterator();
-                                        while (iterator.hasNext()) {
-                                            if (valueToBeRemoved.equals(iterator.next())) {
-                                                iterator.remove();
-                                            }
-                                        }
-                                    } else {
-                                        // Single valued field.
-                                        final Object valueToBeRemoved =
-                                                operation.getValue().getObject();
-                                        if (valueToBeRemoved.equals(value.getObject())) {
-                                            newContent.remove(operation.getField());
-                                        }
-                                    }
-                                }
-                            }
-                        } else if (operation.isReplace()) {
-                            newContent.remove(operation.getField());
-                            if (!operation.getValue().isNull()) {
-                                newContent.putPermissive(operation.getField(), operation.getValue()
-                                        .getObject());
-                            }
-                        } else if (operation.isIncrement()) {
-                            final JsonValue value = newContent.get(operation.getField());
-                            final Number amount = operation.getValue().asNumber();
-                            if (value == null) {
-                                throw new BadRequestException("The field '" + operation.getField()
-                                        + "' does not exist");
-                            } else if (value.isList()) {
-                                final List<Object> elements = value.asList();
-                                for (int i = 0; i < elements.size(); i++) {
-                                    elements.set(i, increment(operation, elements.get(i), amount));
-                                }
-                            } else {
-                                newContent.put(operation.getField(), increment(operation, value
-                                        .getObject(), amount));
-                            }
-                        }
-                    } catch (final JsonValueException e) {
-                        throw new ConflictException("The field '" + operation.getField()
-                                + "' does not exist");
-                    }
+            /*
+             * Apply the patch without holding the resource's lock: the patched
+             * content shares all of the members of the existing content which
+             * are not on the path to a patched field, so the lock only needs to
+             * be held while checking that the resource has not been updated in
+             * the meantime and committing the change. If it has been updated
+             * then the patch is applied again while holding the lock. The
+             * revision alone does not identify the state of the resource since
+             * it is reset if the resource is deleted and created again.
+             */
+            final Resource existingResource = getResourceForUpdate(id, rev);
+            Resource resource = patch(existingResource, request);
+            final long position;
+            final ReentrantLock lock = getLock(id);
+            lock.lock();
+            try {
+                final Resource currentResource = getResourceForUpdate(id, rev);
+                if (currentResource != existingResource
+                        && !isSameState(currentResource, existingResource)) {
+                    resource = patch(currentResource, request);
                 }
-                resource = new Resource(id, newRev, newContent);
-                addIdAndRevision(resource);
-                resources.put(id, resource);
+                position = commit(id, currentResource, resource);
+            } finally {
+                lock.unlock();
             }
-            handler.handleResult(resource);
+            sync(position);
+            handler.handleResult(filterResource(resource, request.getFields()));
         } catch (final ResourceException e) {
             handler.handleError(e);
         }
@@ -530,65 +1084,183 @@ public final class MemoryBackend implements CollectionResourceProvider {
         } else {
             // No filtering or query by filter.
             final QueryFilter filter = request.getQueryFilter();
+            final CompiledQueryFilter matcher = filter != null ? filter.compile() : null;
 
             // If paged results are requested then decode the cookie in order to determine
-            // the index of the first result to be returned.
+            // the snapshot to be read and the position of the first result to be returned,
+            // which is either an index or the last resource returned by the previous page.
             final int pageSize = request.getPageSize();
             final String pagedResultsCookie = request.getPagedResultsCookie();
             final boolean pagedResultsRequested = pageSize > 0;
+            final List<SortKey> sortKeys = request.getSortKeys();
+            closeExpiredSnapshots();
+            final Snapshot snapshot;
             final int firstResultIndex;
+            final Resource lastPageResource;
             if (!pagedResultsRequested || pagedResultsCookie == null
                     || pagedResultsCookie.isEmpty() || request.getPagedResultsOffset() > 0) {
                 firstResultIndex = Math.max(0, request.getPagedResultsOffset() - 1);
+                // Only subsequent pages need to read the same snapshot.
+                snapshot = pagedResultsRequested ? openSnapshot() : null;
+                lastPageResource = null;
             } else {
+                final int separator = pagedResultsCookie.indexOf(':');
+                int index = -1;
+                long snapshotId = 0;
+                Resource keyset = null;
                 try {
-                    firstResultIndex = Integer.parseInt(pagedResultsCookie);
+                    if (separator < 0) {
+                        // Index based cookie.
+                        index = Integer.parseInt(pagedResultsCookie);
+                    } else {
+                        index = 0;
+                        snapshotId = Long.parseLong(pagedResultsCookie.substring(0, separator));
+                        keyset = decodeKeyset(pagedResultsCookie.substring(separator + 1),
+                                sortKeys);
+                    }
                 } catch (final NumberFormatException e) {
+                    index = -1;
+                } catch (final IOException e) {
+                    index = -1;
+                }
+                if (index < 0) {
                     handler.handleError(new BadRequestException("Invalid paged results cookie"));
                     return;
                 }
+                firstResultIndex = index;
+                lastPageResource = keyset;
+                if (keyset == null) {
+                    snapshot = openSnapshot();
+                } else {
+                    // Continue from the same position in a new snapshot if it has been discarded.
+                    final Snapshot retained = getSnapshot(snapshotId);
+                    snapshot = retained != null ? retained : openSnapshot();
+                }
             }
             final int lastResultIndex =
-                    pagedResultsRequested ? firstResultIndex + pageSize : Integer.MAX_VALUE;
-
-            // Select, filter, and return the results. These can be streamed if server
-            // side sorting has not been requested.
-            int resultIndex = 0;
-            if (request.getSortKeys().isEmpty()) {
-                // No sorting so stream the results.
-                for (final Resource resource : resources.values()) {
-                    if (filter == null || filter.accept(RESOURCE_FILTER, resource).toBoolean()) {
-                        if (resultIndex >= firstResultIndex && resultIndex < lastResultIndex) {
-                            handler.handleResource(resource);
+                    pagedResultsRequested ? (int) Math.min((long) firstResultIndex + pageSize,
+                            Integer.MAX_VALUE) : Integer.MAX_VALUE;
+
+            // Select, filter, and return the results from the snapshot. These can be streamed
+            // if neither server side sorting nor paged results have been requested, otherwise
+            // the results are sorted, by ID if no sort keys were requested, so that pages are
+            // stable. The query completes immediately, without paged results information, if
+            // the handler asks for the remaining results to be skipped. Only the requested
+            // fields of each result are returned.
+            final List<JsonPointer> fields = request.getFields();
+            final Collection<Resource> current = getCandidates(filter);
+            final Iterable<Resource> candidates =
+                    snapshot == null ? current : new Iterable<Resource>() {
+                        @Override
+                        public Iterator<Resource> iterator() {
+                            return new SnapshotIterator(snapshot, current.iterator());
+                        }
+                    };
+            boolean retainSnapshot = false;
+            String nextCookie = null;
+            try {
+                int resultIndex = 0;
+                if (!pagedResultsRequested && sortKeys.isEmpty()) {
+                    // No sorting so stream the results.
+                    for (final Resource resource : candidates) {
+                        if (matcher == null || matcher.matches(resource)) {
+                            if (resultIndex >= firstResultIndex
+                                    && !handler.handleResource(filterResource(resource, fields))) {
+                                handler.handleResult(new QueryResult());
+                                return;
+                            }
+                            resultIndex++;
                         }
-                        resultIndex++;
                     }
-                }
-            } else {
-                // Server side sorting: aggregate the result set then sort. A robust implementation
-                // would need to impose administrative limits in order to control memory utilization.
-                final List<Resource> results = new ArrayList<Resource>();
-                for (final Resource resource : resources.values()) {
-                    if (filter == null || filter.accept(RESOURCE_FILTER, resource).toBoolean()) {
-                        results.add(resource);
+                } else if (pagedResultsRequested) {
+                    // Server side sorting of a single page: only the resources up to and
+                    // including the requested page need to be retained, so use a bounded
+                    // max-heap whose head is the resource which will be evicted next. When
+                    // continuing from a previous page the resources up to and including the
+                    // last resource of the previous page are skipped (keyset paging), so only
+                    // the requested page is retained regardless of how deep it is.
+                    final int maxResults = lastResultIndex;
+                    if (!sortKeys.isEmpty() && isSortSizeLimitExceeded(maxResults)) {
+                        handler.handleError(newSortSizeLimitExceededException());
+                        return;
                     }
-                }
-                Collections.sort(results, new ResourceComparator(request.getSortKeys()));
-                for (final Resource resource : results) {
-                    if (resultIndex >= firstResultIndex && resultIndex < lastResultIndex) {
-                        handler.handleResource(resource);
+                    final Comparator<Resource> comparator = new ResourceComparator(sortKeys);
+                    final PriorityQueue<Resource> heap =
+                            new PriorityQueue<Resource>(Math.max(1, Math.min(maxResults,
+                                    current.size())), Collections.reverseOrder(comparator));
+                    final Set<String> heapIds = new HashSet<String>();
+                    for (final Resource resource : candidates) {
+                        if ((matcher == null || matcher.matches(resource))
+                                && (lastPageResource == null || comparator.compare(resource,
+                                        lastPageResource) > 0)
+                                && !heapIds.contains(resource.getId())) {
+                            // A duplicate which is not in the heap is not in the page either.
+                            if (heap.size() < maxResults) {
+                                heap.add(resource);
+                                heapIds.add(resource.getId());
+                            } else if (comparator.compare(resource, heap.peek()) < 0) {
+                                heapIds.remove(heap.poll().getId());
+                                heap.add(resource);
+                                heapIds.add(resource.getId());
+                            }
+                            resultIndex++;
+                        }
+                    }
+                    final List<Resource> results = new ArrayList<Resource>(heap);
+                    Collections.sort(results, comparator);
+                    if (resultIndex > lastResultIndex) {
+                        // Subsequent pages must read the same snapshot.
+                        try {
+                            nextCookie = snapshot.id + ":"
+                                    + encodeKeyset(results.get(results.size() - 1), sortKeys);
+                        } catch (final IllegalArgumentException e) {
+                            handler.handleError(new InternalServerErrorException(
+                                    "The paged results cookie could not be encoded: "
+                                            + e.getMessage(), e));
+                            return;
+                        }
+                        retainSnapshot = true;
+                    }
+                    for (int i = firstResultIndex; i < results.size(); i++) {
+                        if (!handler.handleResource(filterResource(results.get(i), fields))) {
+                            handler.handleResult(new QueryResult());
+                            return;
+                        }
+                    }
+                } else {
+                    // Server side sorting of the entire result set: aggregate the result set
+                    // then sort, subject to the administrative limit.
+                    final List<Resource> results = new ArrayList<Resource>();
+                    for (final Resource resource : candidates) {
+                        if (matcher == null || matcher.matches(resource)) {
+                            results.add(resource);
+                            if (isSortSizeLimitExceeded(results.size())) {
+                                handler.handleError(newSortSizeLimitExceededException());
+                                return;
+                            }
+                        }
+                    }
+                    Collections.sort(results, new ResourceComparator(sortKeys));
+                    for (final Resource resource : results) {
+                        if (resultIndex >= firstResultIndex
+                                && !handler.handleResource(filterResource(resource, fields))) {
+                            handler.handleResult(new QueryResult());
+                            return;
+                        }
+                        resultIndex++;
                     }
-                    resultIndex++;
                 }
-            }
 
-            if (pagedResultsRequested) {
-                final String nextCookie =
-                        resultIndex > lastResultIndex ? String.valueOf(lastResultIndex) : null;
-                final int remaining = Math.max(resultIndex - lastResultIndex, 0);
-                handler.handleResult(new QueryResult(nextCookie, remaining));
-            } else {
-                handler.handleResult(new QueryResult());
+                if (pagedResultsRequested) {
+                    final int remaining = Math.max(resultIndex - lastResultIndex, 0);
+                    handler.handleResult(new QueryResult(nextCookie, remaining));
+                } else {
+                    handler.handleResult(new QueryResult());
+                }
+            } finally {
+                if (snapshot != null) {
+                    releaseSnapshot(snapshot, retainSnapshot);
+                }
             }
         }
     }
@@ -605,7 +1277,7 @@ public final class MemoryBackend implements CollectionResourceProvider {
                 throw new NotFoundException("The resource with ID '" + id
                         + "' could not be read because it does not exist");
             }
-            handler.handleResult(resource);
+            handler.handleResult(filterResource(resource, request.getFields()));
         } catch (final ResourceException e) {
             handler.handleError(e);
         }
@@ -619,36 +1291,154 @@ public final class MemoryBackend implements CollectionResourceProvider {
             final UpdateRequest request, final ResultHandler<Resource> handler) {
         final String rev = request.getRevision();
         try {
+            final JsonValue newContent = getImmutableContent(request.getContent());
             final Resource resource;
-            synchronized (writeLock) {
+            final long position;
+            final ReentrantLock lock = getLock(id);
+            lock.lock();
+            try {
                 final Resource existingResource = getResourceForUpdate(id, rev);
                 final String newRev = getNextRevision(existingResource.getRevision());
-                resource = new Resource(id, newRev, request.getContent());
-                addIdAndRevision(resource);
-                resources.put(id, resource);
+                resource = new Resource(id, newRev, withIdAndRevision(newContent, id, newRev));
+                position = commit(id, existingResource, resource);
+            } finally {
+                lock.unlock();
             }
-            handler.handleResult(resource);
+            sync(position);
+            handler.handleResult(filterResource(resource, request.getFields()));
         } catch (final ResourceException e) {
             handler.handleError(e);
         }
     }
 
+    private MemoryBackend addIndex(final Index index) {
+        lockAll();
+        try {
+            for (final Resource resource : resources.values()) {
+                index.add(resource);
+            }
+            indexes.put(index.field, index);
+        } finally {
+            unlockAll();
+        }
+        return this;
+    }
+
+    private void addToIndexes(final Resource resource) {
+        for (final Index index : indexes.values()) {
+            index.add(resource);
+        }
+    }
+
     /*
-     * Add the ID and revision to the JSON content so that they are included
-     * with subsequent responses. We shouldn't really update the passed in
-     * content in case it is shared by other components, but we'll do it here
-     * anyway for simplicity.
+     * Waits for the updates which are in progress to complete.
+     */
+    private void awaitUpdates() {
+        for (final ReentrantLock lock : locks) {
+            lock.lock();
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Discards snapshots which have not been used by a query recently, as well
+     * as the oldest snapshots which are not being read if too many are
+     * retained. Called by updates as well as queries so that abandoned
+     * snapshots do not accumulate changes while there are no queries.
      */
-    private void addIdAndRevision(final Resource resource) throws ResourceException {
-        final JsonValue content = resource.getContent();
+    private void closeExpiredSnapshots() {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        final long expiryTime = System.currentTimeMillis() - snapshotTimeoutMillis;
+        int excess = snapshots.size() - maxRetainedSnapshots;
+        for (final Snapshot snapshot : snapshots) {
+            // Snapshots are listed in the order in which they were opened.
+            if (snapshot.closeIfExpired(excess > 0 ? Long.MAX_VALUE : expiryTime)) {
+                snapshots.remove(snapshot);
+                excess--;
+            }
+        }
+    }
+
+    /*
+     * Replaces the existing resource, which is null when creating a resource,
+     * with the new resource, which is null when deleting a resource, updating
+     * the indexes and logging the update if this backend is persistent.
+     * Returns the log position which must be passed to sync() once the
+     * resource's lock has been released.
+     */
+    private long commit(final String id, final Resource existingResource,
+            final Resource resource) throws ResourceException {
         try {
-            content.asMap().put(Resource.FIELD_CONTENT_ID, resource.getId());
-            content.asMap().put(Resource.FIELD_CONTENT_REVISION, resource.getRevision());
-        } catch (final JsonValueException e) {
+            /*
+             * Log the update before applying it so that an update which
+             * cannot be persisted is never seen by a snapshot being written
+             * in the background. Snapshots wait for updates in progress, so
+             * they still include every update in the preceding logs.
+             */
+            final byte[] record = store == null ? null : resource != null ? MemoryBackendStore
+                    .newPutRecord(resource) : MemoryBackendStore.newDeleteRecord(id);
+            final long position = log(record);
+            closeExpiredSnapshots();
+            for (final Snapshot snapshot : snapshots) {
+                snapshot.preserve(id, existingResource);
+            }
+            replace(id, existingResource, resource);
+            return position;
+        } catch (final IllegalArgumentException e) {
+            // The content could not be encoded for persistent or off-heap storage.
+            throw new BadRequestException(
+                    "The request could not be processed because the provided "
+                            + "content cannot be stored: " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Returns the resources which may match the filter. Candidates selected
+     * using indexes must still be checked against the filter since the filter
+     * may be only partially resolved by the indexes.
+     */
+    private Collection<Resource> getCandidates(final QueryFilter filter) {
+        if (filter == null || indexes.isEmpty()) {
+            return resources.values();
+        }
+        final Set<String> ids = filter.accept(INDEX_FILTER, indexes);
+        if (ids == null) {
+            return resources.values();
+        }
+        final List<Resource> candidates = new ArrayList<Resource>(ids.size());
+        for (final String id : ids) {
+            final Resource resource = resources.get(id);
+            if (resource != null) {
+                candidates.add(resource);
+            }
+        }
+        return candidates;
+    }
+
+    /*
+     * Returns an immutable copy of the provided content so that the stored
+     * resource is not affected by subsequent changes to the request.
+     */
+    private JsonValue getImmutableContent(final JsonValue content) throws ResourceException {
+        if (!content.isMap()) {
             throw new BadRequestException(
                     "The request could not be processed because the provided "
                             + "content is not a JSON object");
         }
+        return content.toImmutable();
+    }
+
+    /*
+     * Returns the lock which must be held while updating the resource having
+     * the provided ID.
+     */
+    private ReentrantLock getLock(final String id) {
+        int h = id.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return locks[h & (LOCK_COUNT - 1)];
     }
 
     private String getNextRevision(final String rev) throws ResourceException {
@@ -673,6 +1463,241 @@ public final class MemoryBackend implements CollectionResourceProvider {
         return existingResource;
     }
 
+    /*
+     * Returns the retained snapshot having the provided ID, preventing it from
+     * being closed until it is released, or null if it has been closed.
+     */
+    private Snapshot getSnapshot(final long id) {
+        for (final Snapshot snapshot : snapshots) {
+            if (snapshot.id == id) {
+                return snapshot.acquire() ? snapshot : null;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Returns true if the resources have the same revision and content, such
+     * as when off-heap resources are decoded again.
+     */
+    private boolean isSameState(final Resource resource1, final Resource resource2) {
+        return resource1.getRevision().equals(resource2.getRevision())
+                && resource1.getContent().getObject().equals(resource2.getContent().getObject());
+    }
+
+    private boolean isSortSizeLimitExceeded(final int size) {
+        final int limit = sortSizeLimit;
+        return limit > 0 && size > limit;
+    }
+
+    /*
+     * Acquires all of the locks in order to prevent any resources from being
+     * updated, e.g. while an index is being built.
+     */
+    private void lockAll() {
+        for (final ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    /*
+     * Appends the record to the write-ahead log, if this backend is
+     * persistent, returning the position which must be made durable.
+     */
+    private long log(final byte[] record) throws ResourceException {
+        if (store == null) {
+            return 0;
+        }
+        try {
+            return store.append(record);
+        } catch (final IOException e) {
+            throw new InternalServerErrorException("The update could not be persisted: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private static ReentrantLock[] newLocks() {
+        final ReentrantLock[] locks = new ReentrantLock[LOCK_COUNT];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private ResourceException newSortSizeLimitExceededException() {
+        return new ForbiddenException("The query could not be processed because it "
+                + "requires more than " + sortSizeLimit + " resources to be sorted");
+    }
+
+    /*
+     * Creates a snapshot of the current resources for a query. Updates which
+     * were in progress when the snapshot was registered may not have
+     * preserved the previous resources, so wait for them to complete.
+     */
+    private Snapshot openSnapshot() {
+        final Snapshot snapshot = new Snapshot(newSnapshotId());
+        snapshot.acquire();
+        snapshots.add(snapshot);
+        awaitUpdates();
+        return snapshot;
+    }
+
+    private long newSnapshotId() {
+        long id;
+        boolean isUnique;
+        do {
+            id = snapshotIds.nextLong();
+            isUnique = true;
+            for (final Snapshot snapshot : snapshots) {
+                if (snapshot.id == id) {
+                    isUnique = false;
+                    break;
+                }
+            }
+        } while (!isUnique);
+        return id;
+    }
+
+    private Resource patch(final Resource existingResource, final PatchRequest request)
+            throws ResourceException {
+        final String id = existingResource.getId();
+        final String newRev = getNextRevision(existingResource.getRevision());
+        JsonValue newContent = existingResource.getContent();
+        for (final PatchOperation operation : request.getPatchOperations()) {
+            try {
+                if (operation.isAdd()) {
+                    newContent = newContent.with(operation.getField(), operation
+                            .getValue().getObject());
+                } else if (operation.isRemove()) {
+                    if (operation.getValue().isNull()) {
+                        // Remove entire value.
+                        newContent = newContent.without(operation.getField());
+                    } else {
+                        // Find matching value(s) and remove (assumes reference to array).
+                        final JsonValue value = newContent.get(operation.getField());
+                        if (value != null) {
+                            if (value.isList()) {
+                                final Object valueToBeRemoved =
+                                        operation.getValue().getObject();
+                                final List<Object> remainingElements =
+                                        new ArrayList<Object>(value.size());
+                                for (final Object element : value.asList()) {
+                                    if (!valueToBeRemoved.equals(element)) {
+                                        remainingElements.add(element);
+                                    }
+                                }
+                                newContent = newContent.with(operation.getField(),
+                                        remainingElements);
+                            } else {
+                                // Single valued field.
+                                final Object valueToBeRemoved =
+                                        operation.getValue().getObject();
+                                if (valueToBeRemoved.equals(value.getObject())) {
+                                    newContent = newContent.without(operation.getField());
+                                }
+                            }
+                        }
+                    }
+                } else if (operation.isReplace()) {
+                    newContent = newContent.without(operation.getField());
+                    if (!operation.getValue().isNull()) {
+                        newContent = newContent.with(operation.getField(), operation
+                                .getValue().getObject());
+                    }
+                } else if (operation.isIncrement()) {
+                    final JsonValue value = newContent.get(operation.getField());
+                    final Number amount = operation.getValue().asNumber();
+                    if (value == null) {
+                        throw new BadRequestException("The field '" + operation.getField()
+                                + "' does not exist");
+                    } else if (value.isList()) {
+                        final List<Object> elements = value.asList();
+                        final List<Object> newElements =
+                                new ArrayList<Object>(elements.size());
+                        for (final Object element : elements) {
+                            newElements.add(increment(operation, element, amount));
+                        }
+                        newContent = newContent.with(operation.getField(), newElements);
+                    } else {
+                        newContent = newContent.with(operation.getField(), increment(
+                                operation, value.getObject(), amount));
+                    }
+                }
+            } catch (final JsonValueException e) {
+                throw new ConflictException("The field '" + operation.getField()
+                        + "' does not exist");
+            }
+        }
+        return new Resource(id, newRev, withIdAndRevision(newContent, id, newRev));
+    }
+
+    /*
+     * Releases a snapshot once a query has completed, closing it if it is not
+     * needed for subsequent pages.
+     */
+    private void releaseSnapshot(final Snapshot snapshot, final boolean retain) {
+        if (snapshot.release(!retain)) {
+            snapshots.remove(snapshot);
+        }
+    }
+
+    private void removeFromIndexes(final Resource resource) {
+        for (final Index index : indexes.values()) {
+            index.remove(resource);
+        }
+    }
+
+    private void replace(final String id, final Resource existingResource,
+            final Resource resource) {
+        if (resource != null) {
+            resources.put(id, resource);
+        } else {
+            resources.remove(id);
+        }
+        if (existingResource != null) {
+            removeFromIndexes(existingResource);
+        }
+        if (resource != null) {
+            addToIndexes(resource);
+        }
+    }
+
+    /*
+     * Waits for logged updates up to the provided position to become durable,
+     * if this backend is persistent.
+     */
+    private void sync(final long position) throws ResourceException {
+        if (store != null) {
+            try {
+                store.sync(position);
+            } catch (final IOException e) {
+                throw new InternalServerErrorException("The update could not be persisted: "
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /*
+     * Add the ID and revision to the JSON content so that they are included
+     * with subsequent responses.
+     */
+    private JsonValue withIdAndRevision(final JsonValue content, final String id,
+            final String rev) throws ResourceException {
+        try {
+            return content.with(ID_POINTER, id).with(REVISION_POINTER, rev);
+        } catch (final JsonValueException e) {
+            throw new BadRequestException(
+                    "The request could not be processed because the provided "
+                            + "content is not a JSON object");
+        }
+    }
+
     private Object increment(final PatchOperation operation, final Object object,
             final Number amount) throws BadRequestException {
         if (object instanceof Long) {
@@ -0,0 +1,525 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * The persistent storage used by a {@link MemoryBackend}, consisting of a
+ * write-ahead log of resource updates and snapshots of the entire collection.
+ * <p>
+ * Each update is appended to a memory-mapped log file as a record containing
+ * its length, a CRC32 checksum, and either the new state of the resource or
+ * the ID of the deleted resource. Records are written while holding the
+ * resource's lock, before the in-memory collection is updated, and are
+ * made durable by {@link #sync(long)} once the lock has been released. The
+ * log is forced to disk once for all of the records appended by concurrent
+ * updates (group commit).
+ * <p>
+ * When the log file is full a new log file is started and a snapshot of the
+ * collection is written by a background thread, so that updates are not
+ * delayed while the collection is written, after which the files superseded
+ * by the previous snapshot are deleted. Before writing a snapshot the
+ * writer waits for the updates in progress to be applied, since their
+ * records may already be in the preceding log. The previous snapshot and the logs
+ * which follow it are kept until the next snapshot is written, because the
+ * directory cannot be forced to disk using the Java 6 APIs: after a crash the
+ * rename of the new snapshot may have been lost even though later deletions
+ * were not. If a snapshot cannot be written then the older files are
+ * retained and the snapshot is attempted again after the next log file is
+ * started. A final snapshot is written when the store is closed.
+ * Each log and snapshot file has a generation number: the snapshot
+ * having generation {@code N} contains at least the updates recorded in the
+ * log files preceding generation {@code N}. Since a snapshot may also include
+ * some later updates, records are idempotent: replaying the logs from
+ * generation {@code N} onwards on top of the snapshot yields the most recent
+ * state of the collection.
+ */
+final class MemoryBackendStore implements Closeable {
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** The size of the length and checksum preceding each record. */
+    private static final int HEADER_SIZE = 8;
+
+    /** The maximum size of each region of a snapshot which is mapped when recovering. */
+    private static final int MAX_MAPPED_REGION_SIZE = 1 << 30;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private final File directory;
+    private final int logSize;
+    private final Map<String, Resource> resources;
+    private final Runnable updateBarrier;
+
+    /** Guards the current log file and the appended position. */
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private long generation;
+    private long appended;
+    private boolean isClosed;
+
+    /** The appended position up to which the log is known to be durable. */
+    private volatile long durable;
+
+    /** The generation of the most recent snapshot which needs to be written. */
+    private volatile long pendingSnapshot;
+
+    /** Serializes forcing of the log. */
+    private final Object syncLock = new Object();
+
+    /** Serializes writing of snapshots. */
+    private final Object snapshotLock = new Object();
+
+    /** The generation of the most recent snapshot which has been written. */
+    private volatile long lastSnapshot;
+
+    /** The generation of the most recent snapshot which could not be written. */
+    private volatile long failedSnapshot;
+
+    private final AtomicBoolean isSnapshotScheduled = new AtomicBoolean();
+    private final ExecutorService snapshotWriter = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "MemoryBackend snapshot writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Creates a new store which persists the provided resources in the
+     * provided directory, replaying any previously persisted updates into the
+     * resources.
+     *
+     * @param directory
+     *            The directory containing the log and snapshot files.
+     * @param logSize
+     *            The size of each log file.
+     * @param resources
+     *            The in-memory collection of resources, which should be empty.
+     * @param updateBarrier
+     *            Waits for the updates which have been logged but not yet
+     *            applied to the resources to complete.
+     * @throws IOException
+     *             If the persisted resources could not be read, or if a new
+     *             log file could not be created.
+     */
+    MemoryBackendStore(final File directory, final int logSize,
+            final Map<String, Resource> resources, final Runnable updateBarrier)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory '" + directory + "'");
+        }
+        this.directory = directory;
+        this.logSize = logSize;
+        this.resources = resources;
+        this.updateBarrier = updateBarrier;
+        this.generation = recover() + 1;
+        openLog(logSize);
+
+        // Compact the recovered updates into a new snapshot.
+        this.pendingSnapshot = generation;
+        writeSnapshot();
+    }
+
+    /**
+     * Returns a record containing the new state of a resource.
+     *
+     * @param resource
+     *            The updated resource.
+     * @return The record.
+     * @throws IllegalArgumentException
+     *             If the resource contains values which are not JSON values.
+     */
+    static byte[] newPutRecord(final Resource resource) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_PUT);
+            BinaryJson.writeResource(out, resource);
+            return bytes.toByteArray();
+        } catch (final IOException e) {
+            // Should not happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a record indicating that a resource has been deleted.
+     *
+     * @param id
+     *            The ID of the deleted resource.
+     * @return The record.
+     */
+    static byte[] newDeleteRecord(final String id) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_DELETE);
+            BinaryJson.writeString(out, id);
+            return bytes.toByteArray();
+        } catch (final IOException e) {
+            // Should not happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a record indicating that all resources have been deleted.
+     *
+     * @return The record.
+     */
+    static byte[] newClearRecord() {
+        return new byte[] { OP_CLEAR };
+    }
+
+    /**
+     * Appends a record to the log, starting a new log file if the current log
+     * file is full. The record will not be durable until {@link #sync(long)}
+     * has been called with the returned position.
+     *
+     * @param record
+     *            The record to be appended.
+     * @return The position in the log following the record.
+     * @throws IOException
+     *             If the log is closed or a new log file could not be created.
+     */
+    synchronized long append(final byte[] record) throws IOException {
+        if (isClosed) {
+            throw new IOException("The log has been closed");
+        }
+        final int size = HEADER_SIZE + record.length;
+        if (log.remaining() < size) {
+            // Make the full log durable before moving to the next one.
+            log.force();
+            durable = appended;
+            channel.close();
+            generation++;
+            openLog(Math.max(logSize, size));
+            pendingSnapshot = generation;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        log.putInt(record.length);
+        log.putInt((int) crc.getValue());
+        log.put(record);
+        appended += size;
+        return appended;
+    }
+
+    /**
+     * Makes the log durable up to and including the provided position, and
+     * schedules a snapshot if the log has been switched to a new file since
+     * the last snapshot was written.
+     *
+     * @param position
+     *            The position returned when appending the last record which
+     *            needs to be durable.
+     * @throws IOException
+     *             If the log could not be forced to disk.
+     */
+    void sync(final long position) throws IOException {
+        if (durable < position) {
+            synchronized (syncLock) {
+                // Another thread may have forced our record while we were waiting.
+                if (durable < position) {
+                    final MappedByteBuffer buffer;
+                    final long target;
+                    synchronized (this) {
+                        buffer = log;
+                        target = appended;
+                    }
+                    buffer.force();
+                    synchronized (this) {
+                        durable = Math.max(durable, target);
+                    }
+                }
+            }
+        }
+        scheduleSnapshot();
+    }
+
+    /**
+     * Forces the log to disk and closes it, waits for any snapshot being
+     * written in the background, and then writes a final snapshot if the log
+     * has been switched to a new file since the last snapshot was written.
+     * Subsequent attempts to append records will fail.
+     *
+     * @throws IOException
+     *             If the log could not be closed or the final snapshot could
+     *             not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            log.force();
+            durable = appended;
+            channel.close();
+        }
+        snapshotWriter.shutdown();
+        try {
+            while (!snapshotWriter.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting for the snapshot to complete.
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a snapshot to be written");
+        }
+        writeSnapshot();
+    }
+
+    private File getFile(final String prefix, final long generation) {
+        return new File(directory, prefix + generation);
+    }
+
+    /*
+     * Returns the existing files having the provided prefix ordered by
+     * generation.
+     */
+    private TreeMap<Long, File> getFiles(final String prefix) {
+        final TreeMap<Long, File> files = new TreeMap<Long, File>();
+        final File[] children = directory.listFiles();
+        if (children != null) {
+            for (final File file : children) {
+                final String name = file.getName();
+                if (name.startsWith(prefix) && !name.endsWith(TMP_SUFFIX)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(prefix.length())), file);
+                    } catch (final NumberFormatException e) {
+                        // Not one of our files.
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private void openLog(final int size) throws IOException {
+        final RandomAccessFile file =
+                new RandomAccessFile(getFile(LOG_PREFIX, generation), "rw");
+        try {
+            file.setLength(size);
+            channel = file.getChannel();
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Loads the most recent snapshot and replays the logs which follow it,
+     * returning the most recent generation found.
+     */
+    private long recover() throws IOException {
+        final TreeMap<Long, File> snapshots = getFiles(SNAPSHOT_PREFIX);
+        final TreeMap<Long, File> logs = getFiles(LOG_PREFIX);
+        long first = 0;
+        if (!snapshots.isEmpty()) {
+            first = snapshots.lastKey();
+            final File snapshot = snapshots.lastEntry().getValue();
+            final RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+            try {
+                // Map the snapshot a region at a time, since it may be larger than a buffer.
+                final FileChannel snapshotChannel = file.getChannel();
+                final long length = snapshotChannel.size();
+                long position = 0;
+                while (position < length) {
+                    final long size = Math.min(length - position, MAX_MAPPED_REGION_SIZE);
+                    final int replayed = replay(snapshotChannel.map(
+                            FileChannel.MapMode.READ_ONLY, position, size));
+                    // Only the last region may end with a partial record.
+                    if (replayed == 0 || (position + size == length && replayed != size)) {
+                        throw new IOException("The snapshot '" + snapshot + "' is corrupt");
+                    }
+                    position += replayed;
+                }
+            } finally {
+                file.close();
+            }
+        }
+        for (final File logFile : logs.tailMap(first, true).values()) {
+            final RandomAccessFile file = new RandomAccessFile(logFile, "r");
+            try {
+                // A torn or partially written record marks the end of the log.
+                replay(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+            } finally {
+                file.close();
+            }
+        }
+        long last = first;
+        if (!logs.isEmpty()) {
+            last = Math.max(last, logs.lastKey());
+        }
+        return last;
+    }
+
+    /*
+     * Applies the valid records in the buffer to the resources, returning the
+     * position of the first byte following the last valid record.
+     */
+    private int replay(final ByteBuffer buffer) throws IOException {
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+            final byte[] record = new byte[length];
+            buffer.get(record);
+            final CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            final ByteBuffer in = ByteBuffer.wrap(record);
+            switch (in.get()) {
+            case OP_PUT:
+                final Resource resource = BinaryJson.readResource(in);
+                resources.put(resource.getId(), resource);
+                break;
+            case OP_DELETE:
+                resources.remove(BinaryJson.readString(in));
+                break;
+            case OP_CLEAR:
+                resources.clear();
+                break;
+            default:
+                throw new IOException("Unrecognized log record type");
+            }
+        }
+        return buffer.position();
+    }
+
+    /*
+     * Writes a snapshot in the background if the log has been switched to a
+     * new file since the last snapshot was written, unless one is already
+     * being written or the previous attempt failed and the log has not been
+     * switched since.
+     */
+    private void scheduleSnapshot() {
+        if (pendingSnapshot > Math.max(lastSnapshot, failedSnapshot)
+                && isSnapshotScheduled.compareAndSet(false, true)) {
+            try {
+                snapshotWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Catch up with any log switches made while writing.
+                            while (pendingSnapshot > lastSnapshot) {
+                                writeSnapshot();
+                            }
+                        } catch (final IOException e) {
+                            // The superseded files are kept, so no updates are lost.
+                            failedSnapshot = pendingSnapshot;
+                        } finally {
+                            isSnapshotScheduled.set(false);
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // The store is being closed, which writes the final snapshot.
+                isSnapshotScheduled.set(false);
+            }
+        }
+    }
+
+    /*
+     * Writes a snapshot of the resources for the most recent pending
+     * generation, and then deletes the files which it supersedes.
+     */
+    private void writeSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            final long snapshotGeneration = pendingSnapshot;
+            if (snapshotGeneration <= lastSnapshot) {
+                // Already written by another thread.
+                return;
+            }
+            // Include the updates recorded in the logs preceding this generation.
+            updateBarrier.run();
+            final File tmp = new File(directory, SNAPSHOT_PREFIX + snapshotGeneration + TMP_SUFFIX);
+            final FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                final OutputStream out = new BufferedOutputStream(file);
+                final CRC32 crc = new CRC32();
+                final byte[] header = new byte[HEADER_SIZE];
+                for (final Resource resource : resources.values()) {
+                    final byte[] record = newPutRecord(resource);
+                    crc.reset();
+                    crc.update(record);
+                    ByteBuffer.wrap(header).putInt(record.length).putInt((int) crc.getValue());
+                    out.write(header);
+                    out.write(record);
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(getFile(SNAPSHOT_PREFIX, snapshotGeneration))) {
+                throw new IOException("Unable to rename snapshot '" + tmp + "'");
+            }
+            lastSnapshot = snapshotGeneration;
+
+            // The logs and snapshots preceding the previous snapshot are no longer needed.
+            final NavigableMap<Long, File> olderSnapshots =
+                    getFiles(SNAPSHOT_PREFIX).headMap(snapshotGeneration, false);
+            if (olderSnapshots.isEmpty()) {
+                return;
+            }
+            final long previousSnapshot = olderSnapshots.lastKey();
+            final List<File> obsolete = new ArrayList<File>();
+            obsolete.addAll(getFiles(LOG_PREFIX).headMap(previousSnapshot).values());
+            obsolete.addAll(olderSnapshots.headMap(previousSnapshot).values());
+            for (final File obsoleteFile : obsolete) {
+                obsoleteFile.delete();
+            }
+        }
+    }
+}
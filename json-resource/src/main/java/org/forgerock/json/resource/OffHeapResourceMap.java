@@ -0,0 +1,603 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent map of resources keyed on their ID which stores resources
+ * outside of the Java heap, used by {@link MemoryBackend}.
+ * <p>
+ * Resources are encoded using {@link BinaryJson} and appended to large direct
+ * byte buffers ("slabs"). Each resource is decoded whenever it is retrieved
+ * from the map, so callers should avoid retrieving the same resource
+ * repeatedly. The location of each resource is stored in a set of open
+ * addressing hash tables holding the IDs and the locations as primitive
+ * longs, each table being guarded by its own lock.
+ * <p>
+ * Replacing or removing a resource leaves its old encoding in its slab. Once
+ * less than a quarter of a slab is in use the remaining resources are copied
+ * to the current slab by a background thread shared by all maps, so that
+ * updates are not delayed by compaction, after which the slab is released. Slabs are never
+ * modified once they have been filled, so resources may be decoded without
+ * holding any locks.
+ */
+final class OffHeapResourceMap extends AbstractMap<String, Resource> implements
+        ConcurrentMap<String, Resource> {
+
+    /**
+     * A direct byte buffer containing encoded resources, each preceded by
+     * its length.
+     */
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final AtomicBoolean isCompacting = new AtomicBoolean();
+        private final AtomicInteger liveBytes = new AtomicInteger();
+
+        private Slab(final int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * An open addressing hash table using linear probing which maps IDs to
+     * locations. Segments are not thread safe and must be locked by callers.
+     */
+    private static final class Segment {
+        private String[] keys = new String[16];
+        private long[] locations = new long[16];
+        private int size;
+
+        private void clear() {
+            Arrays.fill(keys, null);
+            size = 0;
+        }
+
+        private long get(final String key) {
+            final int i = indexOf(key);
+            return keys[i] != null ? locations[i] : NOT_FOUND;
+        }
+
+        private int indexOf(final String key) {
+            final int mask = keys.length - 1;
+            for (int i = slot(key, mask);; i = (i + 1) & mask) {
+                final String k = keys[i];
+                if (k == null || k.equals(key)) {
+                    return i;
+                }
+            }
+        }
+
+        private String[] keys() {
+            final String[] copy = new String[size];
+            int n = 0;
+            for (final String key : keys) {
+                if (key != null) {
+                    copy[n++] = key;
+                }
+            }
+            return copy;
+        }
+
+        private long put(final String key, final long location) {
+            final int i = indexOf(key);
+            if (keys[i] != null) {
+                final long previous = locations[i];
+                locations[i] = location;
+                return previous;
+            }
+            keys[i] = key;
+            locations[i] = location;
+            if (++size * 4 > keys.length * 3) {
+                resize();
+            }
+            return NOT_FOUND;
+        }
+
+        /*
+         * Removes the key, shifting back any subsequent keys in the same probe
+         * sequence so that no tombstones are required.
+         */
+        private long remove(final String key) {
+            int i = indexOf(key);
+            if (keys[i] == null) {
+                return NOT_FOUND;
+            }
+            final long previous = locations[i];
+            final int mask = keys.length - 1;
+            for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+                final int home = slot(keys[j], mask);
+                final boolean isInPlace = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!isInPlace) {
+                    keys[i] = keys[j];
+                    locations[i] = locations[j];
+                    i = j;
+                }
+            }
+            keys[i] = null;
+            size--;
+            return previous;
+        }
+
+        private void resize() {
+            final String[] oldKeys = keys;
+            final long[] oldLocations = locations;
+            keys = new String[oldKeys.length * 2];
+            locations = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    final int j = indexOf(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    locations[j] = oldLocations[i];
+                }
+            }
+        }
+    }
+
+    /** Compacts the slabs of all maps. */
+    private static final ExecutorService COMPACTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "OffHeapResourceMap compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final long NOT_FOUND = -1;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+
+    private static int hash(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static int slot(final String key, final int mask) {
+        return (hash(key) >>> SEGMENT_BITS) & mask;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final int slabSize;
+
+    /** Guards allocation within the current slab and changes to the slabs. */
+    private final Object allocationLock = new Object();
+    private volatile Slab[] slabs = new Slab[0];
+    private Slab current;
+    private int currentIndex;
+
+    /**
+     * Creates a new empty map.
+     *
+     * @param slabSize
+     *            The size of each slab, which should be much larger than the
+     *            encoded size of a typical resource.
+     */
+    OffHeapResourceMap(final int slabSize) {
+        this.slabSize = slabSize;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        synchronized (allocationLock) {
+            slabs = new Slab[0];
+            current = null;
+        }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        final Segment segment = segmentFor((String) key);
+        synchronized (segment) {
+            return segment.get((String) key) != NOT_FOUND;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Resource>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Resource>>() {
+            @Override
+            public Iterator<Map.Entry<String, Resource>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapResourceMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Resource get(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final Segment segment = segmentFor((String) key);
+        final long location;
+        final ByteBuffer buffer;
+        synchronized (segment) {
+            location = segment.get((String) key);
+            if (location == NOT_FOUND) {
+                return null;
+            }
+            buffer = slabs[slabIndex(location)].buffer;
+        }
+        return decode(buffer, offset(location));
+    }
+
+    @Override
+    public Resource put(final String key, final Resource value) {
+        final long location = store(encode(value));
+        final Segment segment = segmentFor(key);
+        final long previous;
+        final ByteBuffer previousBuffer;
+        synchronized (segment) {
+            previous = segment.put(key, location);
+            previousBuffer = previous != NOT_FOUND ? slabs[slabIndex(previous)].buffer : null;
+        }
+        return release(previousBuffer, previous);
+    }
+
+    @Override
+    public Resource putIfAbsent(final String key, final Resource value) {
+        final long location = store(encode(value));
+        final Segment segment = segmentFor(key);
+        final long existing;
+        final ByteBuffer existingBuffer;
+        synchronized (segment) {
+            existing = segment.get(key);
+            if (existing == NOT_FOUND) {
+                segment.put(key, location);
+                return null;
+            }
+            existingBuffer = slabs[slabIndex(existing)].buffer;
+        }
+        release(null, location);
+        return decode(existingBuffer, offset(existing));
+    }
+
+    @Override
+    public Resource remove(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final Segment segment = segmentFor((String) key);
+        final long previous;
+        final ByteBuffer previousBuffer;
+        synchronized (segment) {
+            previous = segment.remove((String) key);
+            if (previous == NOT_FOUND) {
+                return null;
+            }
+            previousBuffer = slabs[slabIndex(previous)].buffer;
+        }
+        return release(previousBuffer, previous);
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        if (!(key instanceof String) || value == null) {
+            return false;
+        }
+        final Segment segment = segmentFor((String) key);
+        final long previous;
+        synchronized (segment) {
+            previous = segment.get((String) key);
+            if (previous == NOT_FOUND
+                    || !value.equals(decode(slabs[slabIndex(previous)].buffer,
+                            offset(previous)))) {
+                return false;
+            }
+            segment.remove((String) key);
+        }
+        release(null, previous);
+        return true;
+    }
+
+    @Override
+    public Resource replace(final String key, final Resource value) {
+        final long location = store(encode(value));
+        final Segment segment = segmentFor(key);
+        final long previous;
+        final ByteBuffer previousBuffer;
+        synchronized (segment) {
+            previous = segment.get(key);
+            if (previous != NOT_FOUND) {
+                segment.put(key, location);
+                previousBuffer = slabs[slabIndex(previous)].buffer;
+            } else {
+                previousBuffer = null;
+            }
+        }
+        if (previous == NOT_FOUND) {
+            release(null, location);
+            return null;
+        }
+        return release(previousBuffer, previous);
+    }
+
+    @Override
+    public boolean replace(final String key, final Resource oldValue, final Resource newValue) {
+        final long location = store(encode(newValue));
+        final Segment segment = segmentFor(key);
+        long previous;
+        synchronized (segment) {
+            previous = segment.get(key);
+            if (previous == NOT_FOUND
+                    || !oldValue.equals(decode(slabs[slabIndex(previous)].buffer,
+                            offset(previous)))) {
+                previous = NOT_FOUND;
+            } else {
+                segment.put(key, location);
+            }
+        }
+        if (previous == NOT_FOUND) {
+            release(null, location);
+            return false;
+        }
+        release(null, previous);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Iterates over the entries of each segment in turn. The keys of each
+     * segment are copied when the segment is reached and the resources are
+     * decoded as they are returned, skipping resources which have since been
+     * removed.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Resource>> {
+        private int segmentIndex = 0;
+        private String[] keys = new String[0];
+        private int keyIndex = 0;
+        private Map.Entry<String, Resource> next = advance();
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Resource> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<String, Resource> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Map.Entry<String, Resource> advance() {
+            while (true) {
+                while (keyIndex < keys.length) {
+                    final String key = keys[keyIndex++];
+                    final Resource resource = get(key);
+                    if (resource != null) {
+                        return new SimpleImmutableEntry<String, Resource>(key, resource);
+                    }
+                }
+                if (segmentIndex == segments.length) {
+                    return null;
+                }
+                final Segment segment = segments[segmentIndex++];
+                synchronized (segment) {
+                    keys = segment.keys();
+                }
+                keyIndex = 0;
+            }
+        }
+    }
+
+    /*
+     * Copies the resources which are still in use out of the slab, which
+     * allows the slab to be released. Once the slab has been released its
+     * index may be reused by a new slab, so a location only refers to a record
+     * in this slab while the slab is still registered.
+     */
+    private void compact(final int slabIndex, final Slab slab) {
+        final ByteBuffer buffer = slab.buffer.duplicate();
+        final int end;
+        synchronized (allocationLock) {
+            end = slab.buffer.position();
+        }
+        for (int offset = 0; offset < end && slab.liveBytes.get() > 0;) {
+            final int length = buffer.getInt(offset);
+            buffer.position(offset + 4);
+            final String key;
+            try {
+                key = BinaryJson.readString(buffer);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+            final long location = ((long) slabIndex << 32) | offset;
+            boolean isMoved = false;
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                if (segment.get(key) == location && isRegistered(slabIndex, slab)) {
+                    final byte[] bytes = new byte[length];
+                    buffer.position(offset + 4);
+                    buffer.get(bytes);
+                    segment.put(key, store(bytes));
+                    isMoved = true;
+                }
+            }
+            if (isMoved) {
+                release(null, location);
+            }
+            offset += 4 + length;
+        }
+    }
+
+    private Resource decode(final ByteBuffer buffer, final int offset) {
+        final ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4);
+        try {
+            return BinaryJson.readResource(record);
+        } catch (final IOException e) {
+            // Should not happen since the resource was encoded by this map.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] encode(final Resource resource) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            BinaryJson.writeResource(new DataOutputStream(bytes), resource);
+        } catch (final IOException e) {
+            // Should not happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private boolean isRegistered(final int slabIndex, final Slab slab) {
+        synchronized (allocationLock) {
+            final Slab[] currentSlabs = slabs;
+            return slabIndex < currentSlabs.length && currentSlabs[slabIndex] == slab;
+        }
+    }
+
+    private int offset(final long location) {
+        return (int) location;
+    }
+
+    /*
+     * Marks the resource at the location as no longer in use, returning the
+     * resource decoded from the provided buffer if it is not null. The slab
+     * containing the resource is compacted or released if it is mostly or
+     * entirely unused.
+     */
+    private Resource release(final ByteBuffer buffer, final long location) {
+        if (location == NOT_FOUND) {
+            return null;
+        }
+        // Decode first since the slab may be released: the buffer remains valid until then.
+        final Resource resource = buffer != null ? decode(buffer, offset(location)) : null;
+        final int slabIndex = slabIndex(location);
+        final Slab slab;
+        final boolean isCurrent;
+        synchronized (allocationLock) {
+            slab = slabs[slabIndex];
+            isCurrent = slab == current;
+            final int size = 4 + slab.buffer.getInt(offset(location));
+            if (slab.liveBytes.addAndGet(-size) == 0 && !isCurrent) {
+                slabs[slabIndex] = null;
+                return resource;
+            }
+        }
+        if (!isCurrent && slab.liveBytes.get() < slab.buffer.capacity() / 4
+                && slab.isCompacting.compareAndSet(false, true)) {
+            COMPACTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact(slabIndex, slab);
+                }
+            });
+        }
+        return resource;
+    }
+
+    private Segment segmentFor(final String key) {
+        return segments[hash(key) & (SEGMENT_COUNT - 1)];
+    }
+
+    private int slabIndex(final long location) {
+        return (int) (location >>> 32);
+    }
+
+    /*
+     * Appends the encoded resource to the current slab, allocating a new slab
+     * if there is not enough space, and returns its location.
+     */
+    private long store(final byte[] bytes) {
+        final int size = 4 + bytes.length;
+        synchronized (allocationLock) {
+            if (current == null || current.buffer.remaining() < size) {
+                // Reuse the first released slab index.
+                final Slab[] oldSlabs = slabs;
+                int index = 0;
+                while (index < oldSlabs.length && oldSlabs[index] != null) {
+                    index++;
+                }
+                final Slab[] newSlabs =
+                        index < oldSlabs.length ? oldSlabs.clone() : Arrays.copyOf(oldSlabs,
+                                oldSlabs.length + 1);
+                current = new Slab(Math.max(slabSize, size));
+                currentIndex = index;
+                newSlabs[index] = current;
+                slabs = newSlabs;
+
+                // The previous slab may already be unused.
+                for (int i = 0; i < newSlabs.length; i++) {
+                    if (newSlabs[i] != null && newSlabs[i] != current
+                            && newSlabs[i].liveBytes.get() == 0) {
+                        newSlabs[i] = null;
+                    }
+                }
+            }
+            final int offset = current.buffer.position();
+            current.buffer.putInt(bytes.length);
+            current.buffer.put(bytes);
+            current.liveBytes.addAndGet(size);
+            return ((long) currentIndex << 32) | offset;
+        }
+    }
+}
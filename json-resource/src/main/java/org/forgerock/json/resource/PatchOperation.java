@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS. All rights reserved.
+ * Copyright 2013-2014 ForgeRock AS. All rights reserved.
  */
 
 package org.forgerock.json.resource;
@@ -188,7 +188,7 @@ public final class PatchOperation {
      *             If the value is {@code null}.
      */
     public static PatchOperation add(final String field, final Object value) {
-        return add(new JsonPointer(field), value);
+        return add(JsonPointer.valueOf(field), value);
     }
 
     /**
@@ -236,7 +236,7 @@ public final class PatchOperation {
      *             If the amount is {@code null}.
      */
     public static PatchOperation increment(final String field, final Number amount) {
-        return increment(new JsonPointer(field), amount);
+        return increment(JsonPointer.valueOf(field), amount);
     }
 
     /**
@@ -280,7 +280,7 @@ public final class PatchOperation {
      */
     public static PatchOperation operation(final String operation, final String field,
             final Object value) {
-        return operation(operation, new JsonPointer(field), value);
+        return operation(operation, JsonPointer.valueOf(field), value);
     }
 
     /**
@@ -319,7 +319,7 @@ public final class PatchOperation {
      * @return The new patch operation.
      */
     public static PatchOperation remove(final String field) {
-        return remove(new JsonPointer(field));
+        return remove(JsonPointer.valueOf(field));
     }
 
     /**
@@ -334,7 +334,7 @@ public final class PatchOperation {
      * @return The new patch operation.
      */
     public static PatchOperation remove(final String field, final Object value) {
-        return remove(new JsonPointer(field), value);
+        return remove(JsonPointer.valueOf(field), value);
     }
 
     /**
@@ -366,7 +366,7 @@ public final class PatchOperation {
      * @return The new patch operation.
      */
     public static PatchOperation replace(final String field, final Object value) {
-        return replace(new JsonPointer(field), value);
+        return replace(JsonPointer.valueOf(field), value);
     }
 
     /**
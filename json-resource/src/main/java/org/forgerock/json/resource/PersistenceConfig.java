@@ -11,10 +11,16 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.json.fluent.JsonValue;
+
 /**
  * The configuration which should be used when persisting {@code ServerContext}
  * instances to and from their JSON representation.
@@ -97,6 +103,13 @@ public final class PersistenceConfig {
     private final ClassLoader classLoader;
     private final ConnectionProvider connectionProvider;
 
+    /**
+     * The persistence constructors of the context implementation classes
+     * which have been loaded using this configuration, keyed on class name.
+     */
+    private final ConcurrentMap<String, Constructor<? extends Context>> contextConstructors =
+            new ConcurrentHashMap<String, Constructor<? extends Context>>();
+
     private PersistenceConfig(final ConnectionProvider provider, final ClassLoader classLoader) {
         this.connectionProvider = provider;
         this.classLoader = classLoader != null ? classLoader : PersistenceConfig.class
@@ -125,4 +138,30 @@ public final class PersistenceConfig {
         return connectionProvider;
     }
 
+    /**
+     * Returns the constructor which should be used for restoring contexts
+     * having the provided implementation class name from their persisted
+     * representation. Constructors are cached, so that the class loading and
+     * reflective constructor lookup are only performed once per class.
+     *
+     * @param className
+     *            The name of the context implementation class.
+     * @return The constructor having the same declaration as
+     *         {@link AbstractContext#AbstractContext(JsonValue, PersistenceConfig)}.
+     * @throws Exception
+     *             If the class could not be loaded or does not have the
+     *             required constructor.
+     */
+    Constructor<? extends Context> getContextConstructor(final String className)
+            throws Exception {
+        Constructor<? extends Context> constructor = contextConstructors.get(className);
+        if (constructor == null) {
+            final Class<? extends Context> clazz =
+                    Class.forName(className, true, classLoader).asSubclass(AbstractContext.class);
+            constructor = clazz.getDeclaredConstructor(JsonValue.class, PersistenceConfig.class);
+            contextConstructors.put(className, constructor);
+        }
+        return constructor;
+    }
+
 }
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
- * Copyright © 2012 ForgeRock AS. All rights reserved.
+ * Copyright © 2012-2014 ForgeRock AS. All rights reserved.
  */
 
 package org.forgerock.json.resource;
@@ -684,7 +684,7 @@ public final class QueryFilter {
      */
     public static QueryFilter comparisonFilter(final String field, final String operator,
             final Object valueAssertion) {
-        return comparisonFilter(new JsonPointer(field), operator, valueAssertion);
+        return comparisonFilter(JsonPointer.valueOf(field), operator, valueAssertion);
     }
 
     /**
@@ -712,7 +712,7 @@ public final class QueryFilter {
      * @return The newly created {@code contains} filter.
      */
     public static QueryFilter contains(final String field, final Object valueAssertion) {
-        return contains(new JsonPointer(field), valueAssertion);
+        return contains(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -740,7 +740,7 @@ public final class QueryFilter {
      * @return The newly created {@code equality} filter.
      */
     public static QueryFilter equalTo(final String field, final Object valueAssertion) {
-        return equalTo(new JsonPointer(field), valueAssertion);
+        return equalTo(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -768,7 +768,7 @@ public final class QueryFilter {
      * @return The newly created {@code greater than} filter.
      */
     public static QueryFilter greaterThan(final String field, final Object valueAssertion) {
-        return greaterThan(new JsonPointer(field), valueAssertion);
+        return greaterThan(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -797,7 +797,7 @@ public final class QueryFilter {
      * @return The newly created {@code greater than or equal to} filter.
      */
     public static QueryFilter greaterThanOrEqualTo(final String field, final Object valueAssertion) {
-        return greaterThanOrEqualTo(new JsonPointer(field), valueAssertion);
+        return greaterThanOrEqualTo(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -825,7 +825,7 @@ public final class QueryFilter {
      * @return The newly created {@code less than} filter.
      */
     public static QueryFilter lessThan(final String field, final Object valueAssertion) {
-        return lessThan(new JsonPointer(field), valueAssertion);
+        return lessThan(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -853,7 +853,7 @@ public final class QueryFilter {
      * @return The newly created {@code less than or equal to} filter.
      */
     public static QueryFilter lessThanOrEqualTo(final String field, final Object valueAssertion) {
-        return lessThanOrEqualTo(new JsonPointer(field), valueAssertion);
+        return lessThanOrEqualTo(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -924,7 +924,7 @@ public final class QueryFilter {
      * @return The newly created {@code presence} filter.
      */
     public static QueryFilter present(final String field) {
-        return present(new JsonPointer(field));
+        return present(JsonPointer.valueOf(field));
     }
 
     /**
@@ -952,7 +952,7 @@ public final class QueryFilter {
      * @return The newly created {@code starts with} filter.
      */
     public static QueryFilter startsWith(final String field, final Object valueAssertion) {
-        return startsWith(new JsonPointer(field), valueAssertion);
+        return startsWith(JsonPointer.valueOf(field), valueAssertion);
     }
 
     /**
@@ -1057,7 +1057,7 @@ public final class QueryFilter {
             return valueOfIllegalArgument(tokenizer);
         } else {
             // Assertion.
-            final JsonPointer pointer = new JsonPointer(nextToken);
+            final JsonPointer pointer = JsonPointer.valueOf(nextToken);
             if (!tokenizer.hasNext()) {
                 return valueOfIllegalArgument(tokenizer);
             }
@@ -1105,6 +1105,19 @@ public final class QueryFilter {
         this.pimpl = pimpl;
     }
 
+    /**
+     * Compiles this query filter into a form which can be efficiently matched
+     * against many JSON resources. Compiling a filter is relatively expensive,
+     * so callers should compile a filter once and then reuse it for all of the
+     * resources being matched, for example, once per query request.
+     *
+     * @return The compiled form of this query filter.
+     * @see CompiledQueryFilter
+     */
+    public CompiledQueryFilter compile() {
+        return new CompiledQueryFilter(this);
+    }
+
     /**
      * Applies a {@code QueryFilterVisitor} to this {@code QueryFilter}.
      *
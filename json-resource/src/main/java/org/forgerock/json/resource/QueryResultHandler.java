@@ -25,6 +25,16 @@ package org.forgerock.json.resource;
  * followed by {@link #handleResult} or {@link #handleError} indicating that no
  * more JSON resources will be returned.
  * <p>
+ * A handler may ask for the remaining resources to be skipped by returning
+ * {@code false} from {@link #handleResource}, for example because the client
+ * has disconnected or because a size limit has been reached. Request handlers
+ * and filters which produce or forward query results must honor this: once
+ * {@code false} has been returned they should stop producing resources as
+ * soon as possible, must not invoke {@code handleResource} again, and should
+ * then complete the query by invoking {@link #handleResult} or
+ * {@link #handleError} as usual. Handlers which wrap other handlers must
+ * return {@code false} whenever the wrapped handler does.
+ * <p>
  * Implementations of these methods should complete in a timely manner so as to
  * avoid keeping the invoking thread from dispatching to other completion
  * handlers.
@@ -67,7 +77,9 @@ public interface QueryResultHandler extends ResultHandler<QueryResult> {
      * @return {@code true} if this handler should continue to be notified of
      *         any remaining matching JSON resources, or {@code false} if the
      *         remaining JSON resources should be skipped for some reason (e.g.
-     *         a client side size limit has been reached).
+     *         a client side size limit has been reached or the client has
+     *         disconnected), in which case this method will not be invoked
+     *         again for the query.
      */
     boolean handleResource(Resource resource);
 
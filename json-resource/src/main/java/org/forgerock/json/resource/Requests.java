@@ -60,7 +60,7 @@ public final class Requests {
         public final T addField(final String... fields) {
             try {
                 for (final String field : fields) {
-                    this.fields.add(new JsonPointer(field));
+                    this.fields.add(JsonPointer.valueOf(field));
                 }
             } catch (final JsonException e) {
                 throw new IllegalArgumentException(e.getMessage());
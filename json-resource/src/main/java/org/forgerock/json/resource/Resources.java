@@ -17,10 +17,11 @@ package org.forgerock.json.resource;
 
 import static org.forgerock.json.resource.RoutingMode.EQUALS;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -71,7 +72,9 @@ public final class Resources {
                 final Collection<Resource> resources = new LinkedList<Resource>();
                 final QueryResult result = syncHandler.handleQuery(context, request, resources);
                 for (final Resource resource : resources) {
-                    handler.handleResource(resource);
+                    if (!handler.handleResource(resource)) {
+                        break;
+                    }
                 }
                 handler.handleResult(result);
             } catch (final ResourceException e) {
@@ -360,6 +363,26 @@ public final class Resources {
         }
     }
 
+    /**
+     * The content of a resource which has been filtered using
+     * {@link #filterResource(JsonValue, Collection)}, which records the fields
+     * which were used so that it is not filtered again.
+     */
+    private static final class FilteredContent extends LinkedHashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+        private final transient List<JsonPointer> fields;
+
+        private FilteredContent(final Collection<JsonPointer> fields) {
+            super(fields.size());
+            this.fields = new ArrayList<JsonPointer>(fields);
+        }
+
+        private boolean isFilteredBy(final Collection<JsonPointer> fields) {
+            return this.fields != null && this.fields.size() == fields.size()
+                    && this.fields.containsAll(fields);
+        }
+    }
+
     /**
      * A future resource which acts as a result handler.
      */
@@ -573,6 +596,12 @@ public final class Resources {
      * provided JSON value. If the list of fields is empty then the value is
      * returned unchanged.
      * <p>
+     * Filtering is idempotent: if the provided JSON value was returned by this
+     * method using the same fields then it is returned unchanged. Resource
+     * providers may therefore use this method in order to avoid building
+     * fields which have not been requested, without the filtered resource
+     * being filtered again by front-end implementations.
+     * <p>
      * <b>NOTE:</b> this method only performs a shallow copy of extracted
      * fields, so changes to the filtered JSON value may impact the original
      * JSON value, and vice-versa.
@@ -587,8 +616,11 @@ public final class Resources {
             final Collection<JsonPointer> fields) {
         if (fields.isEmpty() || resource.isNull() || resource.size() == 0) {
             return resource;
+        } else if (resource.getObject() instanceof FilteredContent
+                && ((FilteredContent) resource.getObject()).isFilteredBy(fields)) {
+            return resource;
         } else {
-            final Map<String, Object> filtered = new LinkedHashMap<String, Object>(fields.size());
+            final FilteredContent filtered = new FilteredContent(fields);
             for (final JsonPointer field : fields) {
                 if (field.isEmpty()) {
                     // Special case - copy resource fields (assumes Map).
@@ -609,7 +641,8 @@ public final class Resources {
     /**
      * Returns a JSON object containing only the specified fields from the
      * provided resource. If the list of fields is empty then the resource is
-     * returned unchanged.
+     * returned unchanged. Like {@link #filterResource(JsonValue, Collection)},
+     * filtering is idempotent.
      * <p>
      * <b>NOTE:</b> this method only performs a shallow copy of extracted
      * fields, so changes to the filtered resource may impact the original
@@ -83,6 +83,14 @@ public final class Router implements RequestHandler {
     private volatile RequestHandler defaultRoute = null;
     private final Set<UriRoute> routes = new CopyOnWriteArraySet<UriRoute>();
 
+    /*
+     * An index of the routes which is rebuilt whenever routes are added or
+     * removed. Modifications are serialized so that the index is always
+     * consistent with the set of routes once all modifications have completed.
+     */
+    private volatile UriRouteTrie routeTrie = UriRouteTrie.EMPTY;
+    private final Object routesLock = new Object();
+
     /**
      * Creates a new router with no routes defined.
      */
@@ -101,6 +109,7 @@ public final class Router implements RequestHandler {
     public Router(final Router router) {
         this.defaultRoute = router.defaultRoute;
         this.routes.addAll(router.routes);
+        this.routeTrie = new UriRouteTrie(routes);
     }
 
     /**
@@ -113,7 +122,10 @@ public final class Router implements RequestHandler {
      */
     public Router addAllRoutes(final Router router) {
         if (this != router) {
-            routes.addAll(router.routes);
+            synchronized (routesLock) {
+                routes.addAll(router.routes);
+                routeTrie = new UriRouteTrie(routes);
+            }
         }
         return this;
     }
@@ -302,7 +314,10 @@ public final class Router implements RequestHandler {
      * @return This router.
      */
     public Router removeAllRoutes() {
-        routes.clear();
+        synchronized (routesLock) {
+            routes.clear();
+            routeTrie = UriRouteTrie.EMPTY;
+        }
         return this;
     }
 
@@ -316,8 +331,13 @@ public final class Router implements RequestHandler {
      */
     public boolean removeRoute(final Route... routes) {
         boolean isModified = false;
-        for (final Route route : routes) {
-            isModified |= this.routes.remove(route);
+        synchronized (routesLock) {
+            for (final Route route : routes) {
+                isModified |= this.routes.remove(route);
+            }
+            if (isModified) {
+                routeTrie = new UriRouteTrie(this.routes);
+            }
         }
         return isModified;
     }
@@ -336,19 +356,16 @@ public final class Router implements RequestHandler {
     }
 
     Route addRoute(final UriRoute route) {
-        routes.add(route);
+        synchronized (routesLock) {
+            routes.add(route);
+            routeTrie = new UriRouteTrie(routes);
+        }
         return route;
     }
 
     private RouteMatcher getBestRoute(final ServerContext context, final Request request)
             throws ResourceException {
-        RouteMatcher bestMatcher = null;
-        for (final UriRoute route : routes) {
-            final RouteMatcher matcher = route.getRouteMatcher(context, request);
-            if (matcher != null && matcher.isBetterMatchThan(bestMatcher)) {
-                bestMatcher = matcher;
-            }
-        }
+        final RouteMatcher bestMatcher = routeTrie.getBestRouteMatcher(context, request);
         if (bestMatcher != null) {
             return bestMatcher;
         }
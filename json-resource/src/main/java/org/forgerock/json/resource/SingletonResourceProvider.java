@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
- * Copyright © 2012 ForgeRock AS. All rights reserved.
+ * Copyright © 2012-2014 ForgeRock AS. All rights reserved.
  */
 
 package org.forgerock.json.resource;
@@ -35,9 +35,12 @@ import org.forgerock.json.fluent.JsonValue;
  * only be performed once while processing a request. It is therefore the
  * responsibility of front-end implementations (e.g. HTTP listeners, Servlets,
  * etc) to perform field filtering. Request handler and resource provider
- * implementations SHOULD NOT filter fields, but MAY choose to optimise their
- * processing in order to return a resource containing only the fields targeted
- * by the field filters.
+ * implementations SHOULD NOT filter fields themselves, but MAY choose to
+ * optimise their processing in order to return a resource containing only the
+ * fields targeted by the field filters by using
+ * {@link Resources#filterResource(Resource, java.util.Collection)}. Resources
+ * which have been filtered in this way are not filtered again by front-end
+ * implementations.
  */
 public interface SingletonResourceProvider {
 
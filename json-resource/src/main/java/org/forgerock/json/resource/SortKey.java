@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions Copyrighted [year] [name of copyright owner]".
  *
- * Copyright 2012 ForgeRock AS. All rights reserved.
+ * Copyright 2012-2014 ForgeRock AS. All rights reserved.
  */
 
 package org.forgerock.json.resource;
@@ -47,7 +47,7 @@ public final class SortKey {
      */
     public static SortKey ascendingOrder(final String field) {
         try {
-            return ascendingOrder(new JsonPointer(field));
+            return ascendingOrder(JsonPointer.valueOf(field));
         } catch (JsonException e) {
             throw new IllegalArgumentException(e.getMessage());
         }
@@ -75,7 +75,7 @@ public final class SortKey {
      */
     public static SortKey descendingOrder(final String field) {
         try {
-            return descendingOrder(new JsonPointer(field));
+            return descendingOrder(JsonPointer.valueOf(field));
         } catch (JsonException e) {
             throw new IllegalArgumentException(e.getMessage());
         }
@@ -98,6 +98,7 @@ final class UriRoute implements Route {
 
     private final class UriTemplate {
         private final RoutingMode mode;
+        private final String normalizedUriTemplate;
         private final Pattern regex;
         private final String uriTemplate;
         private final List<String> variables = new LinkedList<String>();
@@ -161,6 +162,7 @@ final class UriRoute implements Route {
             }
 
             this.uriTemplate = uriTemplate;
+            this.normalizedUriTemplate = t;
             this.mode = mode;
             this.regex = Pattern.compile(builder.toString());
         }
@@ -252,6 +254,18 @@ final class UriRoute implements Route {
         return builder.toString();
     }
 
+    RoutingMode getMode() {
+        return template.mode;
+    }
+
+    /*
+     * Returns the URI template without any leading or trailing slash, which is
+     * the form matched against resource names.
+     */
+    String getNormalizedUriTemplate() {
+        return template.normalizedUriTemplate;
+    }
+
     RequestHandler getRequestHandler() {
         return handler;
     }
@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.resource;
+
+import static org.forgerock.json.resource.RoutingMode.EQUALS;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.json.resource.UriRoute.RouteMatcher;
+
+/**
+ * An immutable index of the routes registered with a {@link Router}, organized
+ * as a trie of URI template path elements. Literal path elements are resolved
+ * using a hash lookup and path elements containing template variables are
+ * grouped together, so that only the routes whose templates could possibly
+ * match a resource name need to be evaluated. The cost of finding the best
+ * route is therefore proportional to the depth of the resource name rather
+ * than the number of routes.
+ * <p>
+ * Each candidate route is still matched using its regular expression, and
+ * candidates are evaluated in registration order, so the selected route is the
+ * same as when evaluating all of the routes in turn.
+ */
+final class UriRouteTrie {
+    /** The indexes of the candidate routes found for a resource name. */
+    private static final class Candidates {
+        private int count;
+        private int[] routes = new int[4];
+
+        private void addAll(final int[] newRoutes) {
+            if (count + newRoutes.length > routes.length) {
+                final int newLength = Math.max(routes.length * 2, count + newRoutes.length);
+                routes = Arrays.copyOf(routes, newLength);
+            }
+            System.arraycopy(newRoutes, 0, routes, count, newRoutes.length);
+            count += newRoutes.length;
+        }
+    }
+
+    private static final class Node {
+        private int[] equalsRoutes = NO_ROUTES;
+        private final Map<String, Node> literalChildren = new HashMap<String, Node>();
+        private int[] startsWithRoutes = NO_ROUTES;
+        private Node variableChild;
+
+        private Node getOrCreateChild(final String element) {
+            if (element.indexOf('{') >= 0) {
+                if (variableChild == null) {
+                    variableChild = new Node();
+                }
+                return variableChild;
+            }
+            Node child = literalChildren.get(element);
+            if (child == null) {
+                child = new Node();
+                literalChildren.put(element, child);
+            }
+            return child;
+        }
+    }
+
+    private static final String[] NO_ELEMENTS = new String[0];
+    private static final int[] NO_ROUTES = new int[0];
+
+    /** An empty trie which does not contain any routes. */
+    static final UriRouteTrie EMPTY = new UriRouteTrie();
+
+    private static int[] append(final int[] routes, final int route) {
+        final int[] newRoutes = Arrays.copyOf(routes, routes.length + 1);
+        newRoutes[routes.length] = route;
+        return newRoutes;
+    }
+
+    /*
+     * Splits a resource name or template into its path elements. Unlike
+     * String.split() empty elements are retained since they can only be
+     * matched by templates having the same empty elements.
+     */
+    private static String[] split(final String path) {
+        if (path.isEmpty()) {
+            return NO_ELEMENTS;
+        }
+        int count = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+        final String[] elements = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            final int end = path.indexOf('/', start);
+            elements[i] = path.substring(start, end);
+            start = end + 1;
+        }
+        elements[count - 1] = path.substring(start);
+        return elements;
+    }
+
+    private final Node root = new Node();
+    private final UriRoute[] routes;
+
+    /**
+     * Creates a new trie containing the provided routes.
+     *
+     * @param routes
+     *            The routes in registration order.
+     */
+    UriRouteTrie(final Collection<UriRoute> routes) {
+        this.routes = routes.toArray(new UriRoute[routes.size()]);
+        for (int i = 0; i < this.routes.length; i++) {
+            final UriRoute route = this.routes[i];
+            Node node = root;
+            for (final String element : split(route.getNormalizedUriTemplate())) {
+                node = node.getOrCreateChild(element);
+            }
+            if (route.getMode() == EQUALS) {
+                node.equalsRoutes = append(node.equalsRoutes, i);
+            } else {
+                node.startsWithRoutes = append(node.startsWithRoutes, i);
+            }
+        }
+    }
+
+    private UriRouteTrie() {
+        this.routes = new UriRoute[0];
+    }
+
+    /**
+     * Returns the route which best matches the request's resource name, or
+     * {@code null} if no routes match.
+     *
+     * @param context
+     *            The request context.
+     * @param request
+     *            The request to be routed.
+     * @return The route which best matches the request, or {@code null}.
+     */
+    RouteMatcher getBestRouteMatcher(final ServerContext context, final Request request) {
+        if (routes.length == 0) {
+            return null;
+        }
+        final Candidates candidates = new Candidates();
+        findCandidates(root, split(request.getResourceName()), 0, candidates);
+        Arrays.sort(candidates.routes, 0, candidates.count);
+        RouteMatcher bestMatcher = null;
+        for (int i = 0; i < candidates.count; i++) {
+            final RouteMatcher matcher =
+                    routes[candidates.routes[i]].getRouteMatcher(context, request);
+            if (matcher != null && matcher.isBetterMatchThan(bestMatcher)) {
+                bestMatcher = matcher;
+            }
+        }
+        return bestMatcher;
+    }
+
+    private void findCandidates(final Node node, final String[] elements, final int depth,
+            final Candidates candidates) {
+        candidates.addAll(node.startsWithRoutes);
+        if (depth == elements.length) {
+            candidates.addAll(node.equalsRoutes);
+            return;
+        }
+        final Node literalChild = node.literalChildren.get(elements[depth]);
+        if (literalChild != null) {
+            findCandidates(literalChild, elements, depth + 1, candidates);
+        }
+        if (node.variableChild != null) {
+            findCandidates(node.variableChild, elements, depth + 1, candidates);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.forgerock.json.fluent.JsonValue.array;
+import static org.forgerock.json.fluent.JsonValue.field;
+import static org.forgerock.json.fluent.JsonValue.object;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link BinaryJson}.
+ */
+@SuppressWarnings("javadoc")
+public final class BinaryJsonTest {
+
+    @Test
+    public void testWriteAndReadValue() throws Exception {
+        final Object value =
+                object(field("name", "alice"), field("age", 30), field("roles", array("sales",
+                        null, true, 1.5)));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryJson.writeValue(new DataOutputStream(bytes), value);
+        assertThat(BinaryJson.readValue(ByteBuffer.wrap(bytes.toByteArray()))).isEqualTo(value);
+    }
+
+    @DataProvider
+    public Object[][] malformedValues() {
+        // Lengths which exceed the remaining bytes must fail before allocating anything.
+        return new Object[][] {
+            { ByteBuffer.allocate(9).put((byte) 9).putInt(Integer.MAX_VALUE) },
+            { ByteBuffer.allocate(9).put((byte) 9).putInt(-1) },
+            { ByteBuffer.allocate(9).put((byte) 9).putInt(5) },
+            { ByteBuffer.allocate(9).put((byte) 10).putInt(Integer.MAX_VALUE) },
+            { ByteBuffer.allocate(9).put((byte) 10).putInt(-1) },
+            { ByteBuffer.allocate(9).put((byte) 11).putInt(Integer.MAX_VALUE) },
+            { ByteBuffer.allocate(9).put((byte) 11).putInt(1) },
+        };
+    }
+
+    @Test(dataProvider = "malformedValues", expectedExceptions = IOException.class)
+    public void testReadMalformedValue(final ByteBuffer in) throws Exception {
+        in.rewind();
+        BinaryJson.readValue(in);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.resource;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.forgerock.json.fluent.JsonValue.array;
+import static org.forgerock.json.fluent.JsonValue.field;
+import static org.forgerock.json.fluent.JsonValue.json;
+import static org.forgerock.json.fluent.JsonValue.object;
+
+import org.forgerock.json.fluent.JsonValue;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the CompiledQueryFilter class.
+ */
+@SuppressWarnings("javadoc")
+public final class CompiledQueryFilterTest {
+
+    private static final JsonValue CONTENT = json(object(
+            field("name", "Alice"),
+            field("age", 20),
+            field("balance", 3.5),
+            field("isAdmin", false),
+            field("nickname", null),
+            field("roles", array("sales", "IT")),
+            field("address", object(field("city", "Grenoble")))));
+
+    @DataProvider
+    public Object[][] matchData() {
+        return new Object[][] {
+            // @formatter:off
+            { "true", true },
+            { "false", false },
+            { "/name eq \"alice\"", true },
+            { "/name eq \"bob\"", false },
+            { "/name eq 20", false },
+            { "/age eq 20", true },
+            { "/age eq 20.0", true },
+            { "/age gt 19", true },
+            { "/age gt 20", false },
+            { "/age ge 20", true },
+            { "/age lt 20", false },
+            { "/age le 20", true },
+            { "/balance gt 3", true },
+            { "/isAdmin eq false", true },
+            { "/isAdmin lt true", true },
+            { "/name co \"LIC\"", true },
+            { "/name sw \"al\"", true },
+            { "/name sw \"li\"", false },
+            { "/age sw 20", true },
+            { "/name gt \"ALF\"", true },
+            { "/roles eq \"it\"", true },
+            { "/roles/0 eq \"sales\"", true },
+            { "/roles/1 eq \"sales\"", false },
+            { "/roles/2 pr", false },
+            { "/address/city eq \"grenoble\"", true },
+            { "/address/city/0 pr", false },
+            { "/nickname pr", true },
+            { "/nickname eq \"x\"", false },
+            { "/missing pr", false },
+            { "!(/missing pr)", true },
+            { "/name eq \"alice\" and /age gt 30", false },
+            { "/name eq \"alice\" or /age gt 30", true },
+            // Extended filters are undefined, even when negated.
+            { "/name regex \"al.*\"", false },
+            { "!(/name regex \"al.*\")", false },
+            { "/name regex \"al.*\" or /age eq 20", true },
+            { "/name regex \"al.*\" and /age eq 20", false },
+            // @formatter:on
+        };
+    }
+
+    @Test(dataProvider = "matchData")
+    public void testMatches(final String filterString, final boolean expected) {
+        final CompiledQueryFilter filter = QueryFilter.valueOf(filterString).compile();
+        assertThat(filter.matches(CONTENT)).isEqualTo(expected);
+    }
+
+    @Test
+    public void testMatchesResource() {
+        final CompiledQueryFilter filter = QueryFilter.valueOf("/name eq \"alice\"").compile();
+        assertThat(filter.matches(new Resource("0", "0", CONTENT))).isTrue();
+        assertThat(filter.getQueryFilter().toString()).isEqualTo("/name eq \"alice\"");
+    }
+}
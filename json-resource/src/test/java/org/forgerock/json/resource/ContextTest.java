@@ -139,6 +139,28 @@ public final class ContextTest {
         }
     }
 
+    @Test
+    public void testLookupReturnsNearestContext() throws Exception {
+        final Context root = new RootContext("root-id");
+        final ServerContext server = new ServerContext(root);
+        final InternalServerContext internal = new InternalServerContext(server);
+        final ServerContext server2 = new ServerContext(internal);
+
+        // Repeat the lookups in order to check the results of indexed lookups.
+        for (int i = 0; i < 2; i++) {
+            assertThat(server2.asContext(ServerContext.class)).isSameAs(server2);
+            assertThat(server2.asContext(InternalServerContext.class)).isSameAs(internal);
+            assertThat(server2.asContext(ClientContext.class)).isSameAs(internal);
+            assertThat(server2.asContext(Context.class)).isSameAs(server2);
+            assertThat(server2.getContext(server.getContextName())).isSameAs(server2);
+            assertThat(server2.getContext(internal.getContextName())).isSameAs(internal);
+            assertThat(server2.containsContext(SecurityContext.class)).isFalse();
+            assertThat(server2.containsContext("security")).isFalse();
+            assertThat(server.containsContext(InternalServerContext.class)).isFalse();
+            assertThat(server.asContext(ServerContext.class)).isSameAs(server);
+        }
+    }
+
     @Test
     public void testGetContext() throws Exception {
         final Context root = new RootContext("root-id");
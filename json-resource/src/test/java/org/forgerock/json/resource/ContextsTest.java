@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link Contexts}.
+ */
+@SuppressWarnings("javadoc")
+public final class ContextsTest {
+
+    @Test
+    public void testToBytesFromBytes() {
+        final Map<String, Object> authorizationId = new LinkedHashMap<String, Object>();
+        authorizationId.put("id", "alice");
+        authorizationId.put("groups", Arrays.asList("admin", "users"));
+        authorizationId.put("level", 3);
+        final RootContext root = new RootContext("root-id");
+        final SecurityContext security = new SecurityContext(root, "alice", authorizationId);
+        final AdviceContext advice = new AdviceContext(security);
+        advice.putAdvice("Warning", "version is not supported");
+        final ServerContext server = new ServerContext("server-id", advice);
+        final RouterContext router =
+                new RouterContext(server, "users", Collections.singletonMap("id", "alice"));
+
+        final Context restored = Contexts.fromBytes(Contexts.toBytes(router), config());
+        assertThat(restored).isInstanceOf(RouterContext.class);
+        assertThat(restored.toJsonValue().getObject()).isEqualTo(router.toJsonValue().getObject());
+        assertThat(restored.asContext(RouterContext.class).getUriTemplateVariables()).isEqualTo(
+                router.getUriTemplateVariables());
+        assertThat(restored.asContext(SecurityContext.class).getAuthorizationId()).isEqualTo(
+                authorizationId);
+        assertThat(restored.asContext(AdviceContext.class).getAdvices()).isEqualTo(
+                advice.getAdvices());
+        assertThat(restored.getId()).isEqualTo("server-id");
+        assertThat(restored.asContext(RootContext.class).getId()).isEqualTo("root-id");
+        assertThat(restored.asContext(RootContext.class).isRootContext()).isTrue();
+    }
+
+    @Test
+    public void testToBytesFromBytesRootContext() {
+        final RootContext root = new RootContext("root-id");
+        final Context restored = Contexts.fromBytes(Contexts.toBytes(root), config());
+        assertThat(restored).isInstanceOf(RootContext.class);
+        assertThat(restored.getId()).isEqualTo("root-id");
+        assertThat(restored.getParent()).isNull();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFromBytesTruncated() {
+        final byte[] bytes = Contexts.toBytes(new ServerContext(new RootContext("root-id")));
+        Contexts.fromBytes(Arrays.copyOf(bytes, bytes.length - 1), config());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFromBytesUnknownClass() {
+        final RootContext root = new RootContext("root-id");
+        root.data.put("class", "org.forgerock.json.resource.UnknownContext");
+        Contexts.fromBytes(Contexts.toBytes(root), config());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testToBytesUnsupportedValue() {
+        final Map<String, Object> authorizationId = new HashMap<String, Object>();
+        authorizationId.put("id", new Object());
+        Contexts.toBytes(new SecurityContext(new RootContext(), "alice", authorizationId));
+    }
+
+    private PersistenceConfig config() {
+        return PersistenceConfig.builder().connectionProvider(mock(ConnectionProvider.class))
+                .build();
+    }
+}
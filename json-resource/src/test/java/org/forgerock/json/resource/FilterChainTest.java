@@ -15,16 +15,21 @@
  */
 package org.forgerock.json.resource;
 
+import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import java.util.Collections;
 
 import org.forgerock.json.fluent.JsonValue;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -138,6 +143,52 @@ public final class FilterChainTest {
         verifyZeroInteractions(filter2, target);
     }
 
+    @Test
+    public void testFiltersCanBeUpdated() {
+        final RequestHandler target = target();
+        final Filter filter1 = filter();
+        final Filter filter2 = filter();
+        final FilterChain chain = new FilterChain(target, filter1);
+        final ServerContext context = context(target);
+        final ReadRequest request = Requests.newReadRequest("read");
+        final ResultHandler<Resource> handler = handler();
+
+        chain.getFilters().add(filter2);
+        chain.getFilters().remove(filter1);
+        chain.handleRead(context, request, handler);
+        final InOrder inOrder = inOrder(filter1, filter2, target, handler);
+        inOrder.verify(filter2).filterRead(same(context), same(request), same(handler),
+                any(RequestHandler.class));
+        inOrder.verify(target).handleRead(context, request, handler);
+        inOrder.verify(handler).handleResult(RESOURCE);
+        verifyZeroInteractions(filter1);
+
+        chain.getFilters().clear();
+        chain.handleRead(context, request, handler);
+        inOrder.verify(target).handleRead(context, request, handler);
+        inOrder.verify(handler).handleResult(RESOURCE);
+        verifyNoMoreInteractions(filter2);
+    }
+
+    @Test
+    public void testFiltersAreInvokedWithSameNextHandler() {
+        final RequestHandler target = target();
+        final Filter filter1 = filter();
+        final Filter filter2 = filter();
+        final FilterChain chain = new FilterChain(target, filter1, filter2);
+        final ServerContext context = context(target);
+        final ReadRequest request = Requests.newReadRequest("read");
+        final ResultHandler<Resource> handler = handler();
+
+        // Traversing the chain should not allocate a new cursor for each request.
+        chain.handleRead(context, request, handler);
+        chain.handleRead(context, request, handler);
+        final ArgumentCaptor<RequestHandler> next = ArgumentCaptor.forClass(RequestHandler.class);
+        verify(filter1, times(2)).filterRead(same(context), same(request), same(handler),
+                next.capture());
+        assertThat(next.getAllValues().get(0)).isSameAs(next.getAllValues().get(1));
+    }
+
     @Test
     public void testHandleAction() {
         final RequestHandler target = target();
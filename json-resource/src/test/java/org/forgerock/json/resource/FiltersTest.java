@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
@@ -22,6 +22,7 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -151,6 +152,7 @@ public final class FiltersTest {
     }
 
     private static final class MockRequestHandler implements RequestHandler {
+        final List<Boolean> queryResourceResults = new LinkedList<Boolean>();
         Request request;
         private final boolean returnError;
 
@@ -194,8 +196,8 @@ public final class FiltersTest {
             if (returnError) {
                 handler.handleError(ERROR);
             } else {
-                handler.handleResource(RESOURCE1);
-                handler.handleResource(RESOURCE2);
+                queryResourceResults.add(handler.handleResource(RESOURCE1));
+                queryResourceResults.add(handler.handleResource(RESOURCE2));
                 handler.handleResult(QUERY_RESULT);
             }
         }
@@ -280,6 +282,24 @@ public final class FiltersTest {
         assertThat(condition.matches(null, request)).isEqualTo(andExpected);
     }
 
+    @Test
+    public void testAsFilterQueryStopsWhenHandlerReturnsFalse() {
+        final MockFilter filter = new MockFilter(false);
+        final Filter wrapped = Filters.asFilter(filter);
+        final MockRequestHandler next = new MockRequestHandler(false);
+        final ServerContext context = mock(ServerContext.class);
+        final QueryResultHandler handler = mock(QueryResultHandler.class);
+        when(handler.handleResource(any(Resource.class))).thenReturn(false);
+        wrapped.filterQuery(context, QUERY_REQUEST, handler, next);
+
+        // Check post-conditions: the filter should not see the second resource.
+        assertThat(next.queryResourceResults).containsExactly(false, false);
+        assertThat(filter.queryResources).containsExactly(RESOURCE1);
+        verify(handler).handleResource(RESOURCE1);
+        verify(handler).handleResult(QUERY_RESULT);
+        verifyNoMoreInteractions(handler);
+    }
+
     @Test(dataProvider = "requestTypes")
     @SuppressWarnings({ "rawtypes" })
     public void testAsFilterContinueWithError(final RequestType type) {
@@ -524,8 +544,13 @@ public final class FiltersTest {
 
     @SuppressWarnings({ "rawtypes" })
     private ResultHandler mockHandler(final RequestType type) {
-        return type == RequestType.QUERY ? mock(QueryResultHandler.class)
-                : mock(ResultHandler.class);
+        if (type == RequestType.QUERY) {
+            final QueryResultHandler handler = mock(QueryResultHandler.class);
+            when(handler.handleResource(any(Resource.class))).thenReturn(true);
+            return handler;
+        } else {
+            return mock(ResultHandler.class);
+        }
     }
 
     private Request request(final RequestType type) {
@@ -11,12 +11,13 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock Inc.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.assertions.Fail.fail;
+import static org.forgerock.json.fluent.JsonValue.array;
 import static org.forgerock.json.fluent.JsonValue.field;
 import static org.forgerock.json.fluent.JsonValue.object;
 import static org.forgerock.json.resource.PatchOperation.add;
@@ -35,9 +36,17 @@ import static org.forgerock.json.resource.TestUtils.asResource;
 import static org.forgerock.json.resource.TestUtils.content;
 import static org.forgerock.json.resource.TestUtils.ctx;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.forgerock.json.fluent.JsonPointer;
 import org.forgerock.json.fluent.JsonValue;
 import org.testng.annotations.Test;
 
@@ -147,6 +156,290 @@ public final class MemoryBackendTest {
                 userBobWithIdAndRev(0, 1).getObject());
     }
 
+    @Test
+    public void testPatchInstanceSharesUnmodifiedContent() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", content(object(field("name", "alice"),
+                field("address", object(field("city", "Grenoble")))))));
+        final Resource before = connection.read(ctx(), newReadRequest("users/0"));
+        final Resource after =
+                connection.patch(ctx(), newPatchRequest("users/0", replace("/name", "bob")));
+        assertThat(before.getContent().get("name").asString()).isEqualTo("alice");
+        assertThat(after.getContent().get("name").asString()).isEqualTo("bob");
+        assertThat(after.getContent().get("address").getObject()).isSameAs(
+                before.getContent().get("address").getObject());
+    }
+
+    @Test
+    public void testPatchInstanceReappliesPatchAfterConcurrentUpdate() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", "0", content(object(field("name",
+                "alice"), field("roles", array("sales", "it"))))));
+        final Resource resource =
+                connection.patch(ctx(), newPatchRequest("users/0", remove("/roles",
+                        new ConcurrentUpdate("sales") {
+                            @Override
+                            void update() throws ResourceException {
+                                connection.update(ctx(), newUpdateRequest("users/0", content(
+                                        object(field("name", "bob"), field("roles", array(
+                                                "sales", "it", "hr"))))));
+                            }
+                        })));
+        assertThat(resource.getRevision()).isEqualTo("2");
+        assertThat(resource.getContent().get("name").asString()).isEqualTo("bob");
+        assertThat(resource.getContent().get("roles").asList()).containsExactly("it", "hr");
+    }
+
+    @Test
+    public void testPatchInstanceReappliesPatchAfterConcurrentRecreate() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", "0", content(object(field("name",
+                "alice"), field("roles", array("sales", "it"))))));
+        final Resource resource =
+                connection.patch(ctx(), newPatchRequest("users/0", remove("/roles",
+                        new ConcurrentUpdate("sales") {
+                            @Override
+                            void update() throws ResourceException {
+                                // The recreated resource has the same revision.
+                                connection.delete(ctx(), newDeleteRequest("users/0"));
+                                connection.create(ctx(), newCreateRequest("users", "0", content(
+                                        object(field("name", "bob"), field("roles", array(
+                                                "sales", "it", "hr"))))));
+                            }
+                        })));
+        assertThat(resource.getRevision()).isEqualTo("1");
+        assertThat(resource.getContent().get("name").asString()).isEqualTo("bob");
+        assertThat(resource.getContent().get("roles").asList()).containsExactly("it", "hr");
+    }
+
+    @Test
+    public void testStoredContentIsIsolatedFromClients() throws Exception {
+        final Connection connection = getConnection();
+        final JsonValue content = userAlice();
+        connection.create(ctx(), newCreateRequest("users", content));
+        content.put("name", "bob");
+        final Resource resource = connection.read(ctx(), newReadRequest("users/0"));
+        assertThat(resource.getContent().getObject()).isEqualTo(
+                userAliceWithIdAndRev(0, 0).getObject());
+        try {
+            resource.getContent().put("name", "bob");
+            fail("Expected stored content to be immutable");
+        } catch (final UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPersistentBackendRecoversResources() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            MemoryBackend users = new MemoryBackend(directory);
+            Connection connection = getConnection(users);
+            connection.create(ctx(), newCreateRequest("users", userAlice()));
+            connection.create(ctx(), newCreateRequest("users", userBob()));
+            connection.create(ctx(), newCreateRequest("users", "carol", userAlice()));
+            connection.patch(ctx(), newPatchRequest("users/0", replace("/name", "alice2")));
+            connection.delete(ctx(), newDeleteRequest("users/1"));
+            users.close();
+
+            users = new MemoryBackend(directory);
+            users.addEqualityIndex(new JsonPointer("name"));
+            connection = getConnection(users);
+            final Resource alice = connection.read(ctx(), newReadRequest("users/0"));
+            assertThat(alice.getRevision()).isEqualTo("1");
+            assertThat(alice.getContent().get("name").asString()).isEqualTo("alice2");
+            assertThat(connection.read(ctx(), newReadRequest("users/carol")).getContent().get(
+                    "age").asInteger()).isEqualTo(20);
+            try {
+                connection.read(ctx(), newReadRequest("users/1"));
+                fail("Read succeeded unexpectedly");
+            } catch (final NotFoundException e) {
+                // Expected.
+            }
+
+            // Generated IDs follow the highest recovered ID and indexes include recovered resources.
+            assertThat(connection.create(ctx(), newCreateRequest("users", userBob())).getId())
+                    .isEqualTo("1");
+            final List<Resource> results = new ArrayList<Resource>();
+            connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                    QueryFilter.equalTo("name", "alice2")), results);
+            assertThat(results).hasSize(1);
+            users.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testOffHeapBackend() throws Exception {
+        final MemoryBackend users = new MemoryBackend(null, true);
+        users.addEqualityIndex(new JsonPointer("name"));
+        final Connection connection = getConnection(users);
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        connection.patch(ctx(), newPatchRequest("users/0", increment("/age", 1)));
+        connection.delete(ctx(), newDeleteRequest("users/1"));
+        final Resource resource = connection.read(ctx(), newReadRequest("users/0"));
+        assertThat(resource.getRevision()).isEqualTo("1");
+        assertThat(resource.getContent().get("age").asInteger()).isEqualTo(21);
+
+        final List<Resource> results = new ArrayList<Resource>();
+        connection.query(ctx(), newQueryRequest("users"), results);
+        assertThat(results).containsOnly(resource);
+        results.clear();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.equalTo("name", "alice")), results);
+        assertThat(results).containsOnly(resource);
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testOffHeapBackendRejectsUnsupportedValues() throws Exception {
+        final Connection connection = getConnection(new MemoryBackend(null, true));
+        connection.create(ctx(), newCreateRequest("users", content(object(field("test",
+                new Object())))));
+    }
+
+    @Test
+    public void testPersistentOffHeapBackendRecoversResources() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            MemoryBackend users = new MemoryBackend(directory, true);
+            getConnection(users).create(ctx(), newCreateRequest("users", userAlice()));
+            users.close();
+            users = new MemoryBackend(directory, true);
+            assertThat(getConnection(users).read(ctx(), newReadRequest("users/0")).getContent()
+                    .getObject()).isEqualTo(userAliceWithIdAndRev(0, 0).getObject());
+            users.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPersistentBackendDoesNotApplyUpdatesWhichCannotBeLogged() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            final MemoryBackend users = new MemoryBackend(directory);
+            final Connection connection = getConnection(users);
+            connection.create(ctx(), newCreateRequest("users", userAlice()));
+            users.close();
+            try {
+                connection.patch(ctx(), newPatchRequest("users/0", replace("/name", "alice2")));
+                fail("Patch succeeded unexpectedly");
+            } catch (final InternalServerErrorException e) {
+                // Expected.
+            }
+            final Resource alice = connection.read(ctx(), newReadRequest("users/0"));
+            assertThat(alice.getRevision()).isEqualTo("0");
+            assertThat(alice.getContent().get("name").asString()).isEqualTo("alice");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPersistentBackendRecoversWithoutLatestSnapshot() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            MemoryBackend users = new MemoryBackend(directory, false, 256);
+            Connection connection = getConnection(users);
+            for (int i = 0; i < 20; i++) {
+                connection.create(ctx(), newCreateRequest("users", "user" + i, userAlice()));
+            }
+            users.close();
+
+            // Simulate a crash which lost the rename of the most recent snapshot.
+            File latest = null;
+            for (final File file : directory.listFiles()) {
+                if (file.getName().startsWith("snapshot-")
+                        && (latest == null || Long.parseLong(file.getName().substring(9)) > Long
+                                .parseLong(latest.getName().substring(9)))) {
+                    latest = file;
+                }
+            }
+            assertThat(latest.delete()).isTrue();
+
+            users = new MemoryBackend(directory, false, 256);
+            connection = getConnection(users);
+            final List<Resource> results = new ArrayList<Resource>();
+            connection.query(ctx(), newQueryRequest("users"), results);
+            assertThat(results).hasSize(20);
+            users.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPersistentBackendWritesSnapshots() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            // Use small log files so that many snapshots are written.
+            MemoryBackend users = new MemoryBackend(directory, false, 256);
+            Connection connection = getConnection(users);
+            for (int i = 0; i < 50; i++) {
+                connection.create(ctx(), newCreateRequest("users", userAlice()));
+                connection.patch(ctx(), newPatchRequest("users/" + i, increment("/age", i)));
+            }
+            connection.action(ctx(), newActionRequest("users", "clear"));
+            for (int i = 0; i < 10; i++) {
+                connection.create(ctx(), newCreateRequest("users", "user" + i, userBob()));
+            }
+            users.close();
+
+            // Superseded log and snapshot files are deleted.
+            assertThat(directory.list().length).isLessThan(10);
+
+            users = new MemoryBackend(directory, false, 256);
+            connection = getConnection(users);
+            final List<Resource> results = new ArrayList<Resource>();
+            connection.query(ctx(), newQueryRequest("users"), results);
+            assertThat(results).hasSize(10);
+            users.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPersistentBackendIgnoresTornRecords() throws Exception {
+        final File directory = newTemporaryDirectory();
+        try {
+            MemoryBackend users = new MemoryBackend(directory);
+            Connection connection = getConnection(users);
+            connection.create(ctx(), newCreateRequest("users", userAlice()));
+            connection.update(ctx(), newUpdateRequest("users/0", userBob()));
+            users.close();
+
+            // Corrupt the checksum of the last record.
+            final File log = new File(directory, "log-1");
+            final RandomAccessFile file = new RandomAccessFile(log, "rw");
+            try {
+                int position = 0;
+                int lastRecord = 0;
+                file.seek(0);
+                for (int length = file.readInt(); length != 0; length = file.readInt()) {
+                    lastRecord = position;
+                    position += 8 + length;
+                    file.seek(position);
+                }
+                file.seek(lastRecord + 4);
+                file.writeInt(0);
+            } finally {
+                file.close();
+            }
+
+            users = new MemoryBackend(directory);
+            connection = getConnection(users);
+            final Resource resource = connection.read(ctx(), newReadRequest("users/0"));
+            assertThat(resource.getRevision()).isEqualTo("0");
+            assertThat(resource.getContent().get("name").asString()).isEqualTo("alice");
+            users.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
     @Test
     public void testQueryCollection() throws Exception {
         final Connection connection = getConnection();
@@ -173,6 +466,415 @@ public final class MemoryBackendTest {
         assertThat(resource.getContent().getObject()).isEqualTo(object(field("_id", "0")));
     }
 
+    @Test
+    public void testQueryCollectionWithIndexes() throws Exception {
+        final MemoryBackend users = new MemoryBackend();
+        users.addEqualityIndex(new JsonPointer("name"));
+        users.addOrderingIndex(new JsonPointer("age"));
+        final Connection connection = getConnection(users);
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+
+        final Collection<Resource> results = new ArrayList<Resource>();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.equalTo("name", "ALICE")), results);
+        assertThat(results).containsOnly(asResource(userAliceWithIdAndRev(0, 0)));
+
+        results.clear();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.greaterThan("age", 25)), results);
+        assertThat(results).containsOnly(asResource(userBobWithIdAndRev(1, 0)));
+
+        results.clear();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.or(QueryFilter.equalTo("name", "bob"), QueryFilter.lessThanOrEqualTo(
+                        "age", 20))), results);
+        assertThat(results).containsOnly(asResource(userAliceWithIdAndRev(0, 0)),
+                asResource(userBobWithIdAndRev(1, 0)));
+
+        // Indexes must track updates and deletes.
+        connection.update(ctx(), newUpdateRequest("users/0", userBob()));
+        connection.delete(ctx(), newDeleteRequest("users/1"));
+        results.clear();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.equalTo("name", "alice")), results);
+        assertThat(results).isEmpty();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.and(QueryFilter.equalTo("name", "bob"), QueryFilter.greaterThan(
+                        "age", 25))), results);
+        assertThat(results).containsOnly(asResource(userBobWithIdAndRev(0, 1)));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final int threadCount = 8;
+        final int updateCount = 200;
+        final MemoryBackend users = new MemoryBackend();
+        users.addEqualityIndex(new JsonPointer("role"));
+        final Connection connection = getConnection(users);
+        connection.create(ctx(), newCreateRequest("users", "counter", content(object(field(
+                "role", "counter"), field("count", 0)))));
+
+        // Each thread increments the shared counter and repeatedly updates its own resource.
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final String id = "user" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        connection.create(ctx(), newCreateRequest("users", id, userAlice()));
+                        for (int j = 0; j < updateCount; j++) {
+                            connection.patch(ctx(), newPatchRequest("users/counter", increment(
+                                    "/count", 1)));
+                            connection.update(ctx(), newUpdateRequest("users/" + id,
+                                    j % 2 == 0 ? userAlice() : userBob()));
+                        }
+                    } catch (final Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors).isEmpty();
+
+        final Resource counter = connection.read(ctx(), newReadRequest("users/counter"));
+        assertThat(counter.getRevision()).isEqualTo(String.valueOf(threadCount * updateCount));
+        assertThat(counter.getContent().get("count").asInteger()).isEqualTo(
+                threadCount * updateCount);
+
+        // The last update of each thread's resource was bob, so the index must only contain bob.
+        final Collection<Resource> results = new ArrayList<Resource>();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.equalTo("role", "sales")), results);
+        assertThat(results).isEmpty();
+        connection.query(ctx(), newQueryRequest("users").setQueryFilter(
+                QueryFilter.equalTo("role", "it")), results);
+        assertThat(results).hasSize(threadCount);
+    }
+
+    @Test
+    public void testQueryCollectionWithSortedPagedResults() throws Exception {
+        final Connection connection = getConnection();
+        for (int i = 0; i < 10; i++) {
+            connection.create(ctx(), newCreateRequest("users", content(object(field("age",
+                    i % 3)))));
+        }
+        final List<String> ids = new ArrayList<String>();
+        String cookie = null;
+        do {
+            final List<Resource> results = new ArrayList<Resource>();
+            final QueryResult result =
+                    connection.query(ctx(), newQueryRequest("users").addSortKey("-age")
+                            .setPageSize(4).setPagedResultsCookie(cookie), results);
+            for (final Resource resource : results) {
+                ids.add(resource.getId());
+            }
+            cookie = result.getPagedResultsCookie();
+        } while (cookie != null);
+        assertThat(ids).containsExactly("2", "5", "8", "1", "4", "7", "0", "3", "6", "9");
+    }
+
+    @Test
+    public void testQueryCollectionWithDeepSortedPagedResults() throws Exception {
+        // Each page continues from the last resource of the previous page, so only a single
+        // page is ever sorted regardless of how deep the page is.
+        final Connection connection = getConnection(new MemoryBackend().setSortSizeLimit(3));
+        for (int i = 0; i < 10; i++) {
+            connection.create(ctx(), newCreateRequest("users", content(object(field("age",
+                    i % 3)))));
+        }
+        final List<String> ids = new ArrayList<String>();
+        final List<Integer> remaining = new ArrayList<Integer>();
+        String cookie = null;
+        do {
+            final List<Resource> results = new ArrayList<Resource>();
+            final QueryResult result =
+                    connection.query(ctx(), newQueryRequest("users").addSortKey("-age")
+                            .setPageSize(3).setPagedResultsCookie(cookie), results);
+            ids.addAll(ids(results));
+            remaining.add(result.getRemainingPagedResults());
+            cookie = result.getPagedResultsCookie();
+        } while (cookie != null);
+        assertThat(ids).containsExactly("2", "5", "8", "1", "4", "7", "0", "3", "6", "9");
+        assertThat(remaining).containsExactly(7, 4, 1, 0);
+    }
+
+    @Test
+    public void testQueryCollectionWithFilteredPagedResults() throws Exception {
+        final Connection connection = getConnection();
+        for (int i = 0; i < 10; i++) {
+            connection.create(ctx(), newCreateRequest("users", content(object(field("age", i)))));
+        }
+        final QueryRequest request =
+                newQueryRequest("users").setQueryFilter(
+                        QueryFilter.greaterThanOrEqualTo(new JsonPointer("age"), 5)).setPageSize(
+                        2);
+        final List<Resource> results = new ArrayList<Resource>();
+        QueryResult result = connection.query(ctx(), request, results);
+        assertThat(ids(results)).containsExactly("5", "6");
+        assertThat(result.getRemainingPagedResults()).isEqualTo(3);
+
+        results.clear();
+        result = connection.query(ctx(), request.setPagedResultsCookie(
+                result.getPagedResultsCookie()), results);
+        assertThat(ids(results)).containsExactly("7", "8");
+        assertThat(result.getRemainingPagedResults()).isEqualTo(1);
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testQueryCollectionWithInvalidCookie() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final QueryResult result =
+                connection.query(ctx(), newQueryRequest("users").setPageSize(1),
+                        new ArrayList<Resource>());
+        final String cookie = result.getPagedResultsCookie();
+        connection.query(ctx(), newQueryRequest("users").setPageSize(1).setPagedResultsCookie(
+                cookie.substring(0, cookie.indexOf(':') + 1) + "!"), new ArrayList<Resource>());
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testQueryCollectionWithNegativeIndexCookie() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        connection.query(ctx(), newQueryRequest("users").setPageSize(1).setPagedResultsCookie("-1"),
+                new ArrayList<Resource>());
+    }
+
+    @Test
+    public void testQueryCollectionCookiesAreNotSequential() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final QueryRequest request = newQueryRequest("users").setPageSize(1);
+        final String cookie1 =
+                connection.query(ctx(), request, new ArrayList<Resource>()).getPagedResultsCookie();
+        final String cookie2 =
+                connection.query(ctx(), request, new ArrayList<Resource>()).getPagedResultsCookie();
+        final long id1 = Long.parseLong(cookie1.substring(0, cookie1.indexOf(':')));
+        final long id2 = Long.parseLong(cookie2.substring(0, cookie2.indexOf(':')));
+        assertThat(Math.abs(id2 - id1)).isGreaterThan(1L);
+    }
+
+    @Test
+    public void testQueryCollectionPagesReadSnapshot() throws Exception {
+        final Connection connection = getConnection();
+        for (int i = 0; i < 6; i++) {
+            connection.create(ctx(), newCreateRequest("users", "user" + i, content(object(field(
+                    "age", i)))));
+        }
+        final List<Resource> results = new ArrayList<Resource>();
+        QueryResult result =
+                connection.query(ctx(), newQueryRequest("users").setPageSize(2), results);
+        assertThat(ids(results)).containsExactly("user0", "user1");
+
+        // Changes made after the first page must not be visible in subsequent pages.
+        connection.create(ctx(), newCreateRequest("users", "user00", userAlice()));
+        connection.delete(ctx(), newDeleteRequest("users/user2"));
+        connection.patch(ctx(), newPatchRequest("users/user3", replace("/age", 30)));
+        connection.action(ctx(), newActionRequest("users", "clear"));
+        connection.create(ctx(), newCreateRequest("users", "user4", userBob()));
+
+        results.clear();
+        result = connection.query(ctx(), newQueryRequest("users").setPageSize(2)
+                .setPagedResultsCookie(result.getPagedResultsCookie()), results);
+        assertThat(ids(results)).containsExactly("user2", "user3");
+        assertThat(results.get(1).getContent().get("age").asInteger()).isEqualTo(3);
+
+        results.clear();
+        result = connection.query(ctx(), newQueryRequest("users").setPageSize(2)
+                .setPagedResultsCookie(result.getPagedResultsCookie()), results);
+        assertThat(ids(results)).containsExactly("user4", "user5");
+        assertThat(results.get(0).getContent().get("age").asInteger()).isEqualTo(4);
+        assertThat(result.getPagedResultsCookie()).isNull();
+
+        // A new query reads the current resources.
+        results.clear();
+        connection.query(ctx(), newQueryRequest("users").setPageSize(2), results);
+        assertThat(ids(results)).containsExactly("user4");
+    }
+
+    @Test
+    public void testQueryCollectionPageIgnoresResourcesDeletedAfterBeingRead() throws Exception {
+        final Connection connection = getConnection();
+        for (int i = 0; i < 8; i++) {
+            connection.create(ctx(), newCreateRequest("users", "user" + i, content(object(field(
+                    "age", i)))));
+        }
+        // Delete all of the other resources while the query is reading the collection, some of
+        // which will already have been read.
+        connection.create(ctx(), newCreateRequest("users", "trigger", content(object(field("age",
+                new ConcurrentUpdateNumber(8) {
+                    @Override
+                    void update() throws ResourceException {
+                        for (int i = 0; i < 8; i++) {
+                            connection.delete(ctx(), newDeleteRequest("users/user" + i));
+                        }
+                    }
+                })))));
+        final List<Resource> results = new ArrayList<Resource>();
+        final QueryResult result = connection.query(ctx(), newQueryRequest("users")
+                .addSortKey("age").setPageSize(10), results);
+        assertThat(ids(results)).containsExactly("user0", "user1", "user2", "user3", "user4",
+                "user5", "user6", "user7", "trigger");
+        assertThat(result.getPagedResultsCookie()).isNull();
+    }
+
+    @Test
+    public void testQueryCollectionReadsSnapshotWithIndexes() throws Exception {
+        final MemoryBackend users = new MemoryBackend();
+        users.addEqualityIndex(new JsonPointer("role"));
+        final Connection connection = getConnection(users);
+        for (int i = 0; i < 4; i++) {
+            connection.create(ctx(), newCreateRequest("users", "user" + i, userAlice()));
+        }
+        final QueryRequest request =
+                newQueryRequest("users").setQueryFilter(QueryFilter.equalTo("role", "sales"))
+                        .setPageSize(2);
+        final List<Resource> results = new ArrayList<Resource>();
+        final QueryResult result = connection.query(ctx(), request, results);
+
+        // Resources which no longer match the indexes must still be returned.
+        connection.update(ctx(), newUpdateRequest("users/user2", userBob()));
+        connection.delete(ctx(), newDeleteRequest("users/user3"));
+        results.clear();
+        connection.query(ctx(), request.setPagedResultsCookie(result.getPagedResultsCookie()),
+                results);
+        assertThat(ids(results)).containsExactly("user2", "user3");
+    }
+
+    @Test
+    public void testQueryCollectionWithExpiredCookie() throws Exception {
+        final Connection connection =
+                getConnection(new MemoryBackend().setSnapshotTimeout(0, TimeUnit.SECONDS));
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final QueryRequest request = newQueryRequest("users").addSortKey("-name").setPageSize(1);
+        final List<Resource> results = new ArrayList<Resource>();
+        QueryResult result = connection.query(ctx(), request, results);
+        assertThat(ids(results)).containsExactly("1");
+        Thread.sleep(10);
+
+        // The next page continues from the last resource of the previous page, even though
+        // it no longer exists, in the current state of the collection.
+        connection.delete(ctx(), newDeleteRequest("users/1"));
+        connection.create(ctx(), newCreateRequest("users", content(object(field("name",
+                "aaron")))));
+        results.clear();
+        result = connection.query(ctx(), request.setPagedResultsCookie(
+                result.getPagedResultsCookie()), results);
+        assertThat(ids(results)).containsExactly("0");
+        results.clear();
+        result = connection.query(ctx(), request.setPagedResultsCookie(
+                result.getPagedResultsCookie()), results);
+        assertThat(ids(results)).containsExactly("2");
+        assertThat(result.getPagedResultsCookie()).isNull();
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testQueryCollectionWithCookieForDifferentSortKeys() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final QueryResult result = connection.query(ctx(), newQueryRequest("users")
+                .addSortKey("name").setPageSize(1), new ArrayList<Resource>());
+        connection.query(ctx(), newQueryRequest("users").setPageSize(1).setPagedResultsCookie(
+                result.getPagedResultsCookie()), new ArrayList<Resource>());
+    }
+
+    @Test
+    public void testQueryCollectionDiscardsOldestSnapshots() throws Exception {
+        final Connection connection =
+                getConnection(new MemoryBackend().setMaxRetainedSnapshots(2));
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final QueryRequest request = newQueryRequest("users").setPageSize(1);
+        final List<String> cookies = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            cookies.add(connection.query(ctx(), request, new ArrayList<Resource>())
+                    .getPagedResultsCookie());
+        }
+        // The limit is enforced by updates as well as queries.
+        connection.update(ctx(), newUpdateRequest("users/1", content(object(field("name",
+                "bob2")))));
+
+        // The oldest snapshot has been discarded, so its next page reads the update.
+        final List<Resource> results = new ArrayList<Resource>();
+        connection.query(ctx(), request.setPagedResultsCookie(cookies.get(0)), results);
+        assertThat(ids(results)).containsExactly("1");
+        assertThat(results.get(0).getContent().get("name").asString()).isEqualTo("bob2");
+        for (final String cookie : cookies.subList(1, 3)) {
+            results.clear();
+            connection.query(ctx(), request.setPagedResultsCookie(cookie), results);
+            assertThat(ids(results)).containsExactly("1");
+            assertThat(results.get(0).getContent().get("name").asString()).isEqualTo("bob");
+        }
+    }
+
+    @Test(expectedExceptions = ForbiddenException.class)
+    public void testQueryCollectionWithSortSizeLimitExceeded() throws Exception {
+        final Connection connection = getConnection(new MemoryBackend().setSortSizeLimit(1));
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        connection.query(ctx(), newQueryRequest("users").addSortKey("name"),
+                new ArrayList<Resource>());
+    }
+
+    @Test
+    public void testQueryCollectionWithSortSizeLimitAndPagedResults() throws Exception {
+        final Connection connection = getConnection(new MemoryBackend().setSortSizeLimit(1));
+        connection.create(ctx(), newCreateRequest("users", userAlice()));
+        connection.create(ctx(), newCreateRequest("users", userBob()));
+        final List<Resource> results = new ArrayList<Resource>();
+        final QueryResult result =
+                connection.query(ctx(), newQueryRequest("users").addSortKey("-name")
+                        .setPageSize(1), results);
+        assertThat(results).containsOnly(asResource(userBobWithIdAndRev(1, 0)));
+        assertThat(result.getRemainingPagedResults()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueryCollectionStopsWhenHandlerReturnsFalse() throws Exception {
+        final Connection connection = getConnection();
+        for (int i = 0; i < 5; i++) {
+            connection.create(ctx(), newCreateRequest("users", content(object(field("age", i)))));
+        }
+        final List<Resource> results = new ArrayList<Resource>();
+        final QueryResultHandler handler = new QueryResultHandler() {
+            @Override
+            public void handleError(final ResourceException error) {
+                // Ignore - handled by the connection.
+            }
+
+            @Override
+            public boolean handleResource(final Resource resource) {
+                results.add(resource);
+                return false;
+            }
+
+            @Override
+            public void handleResult(final QueryResult result) {
+                // Ignore - handled by the connection.
+            }
+        };
+        for (final QueryRequest request : Arrays.asList(newQueryRequest("users"),
+                newQueryRequest("users").addSortKey("-age"), newQueryRequest("users")
+                        .addSortKey("-age").setPageSize(3))) {
+            results.clear();
+            final QueryResult result = connection.query(ctx(), request, handler);
+            assertThat(results).hasSize(1);
+            assertThat(result.getPagedResultsCookie()).isNull();
+        }
+    }
+
     @Test(expectedExceptions = BadRequestException.class)
     public void testQueryInstance() throws Exception {
         final Connection connection = getConnection();
@@ -210,6 +912,18 @@ public final class MemoryBackendTest {
         assertThat(resource.getContent().getObject()).isEqualTo(object(field("_id", "0")));
     }
 
+    @Test
+    public void testQueryCollectionWithNestedFieldFilter() throws Exception {
+        final Connection connection = getConnection();
+        connection.create(ctx(), newCreateRequest("users", content(object(field("name",
+                object(field("first", "alice"), field("last", "smith")))))));
+        final List<Resource> results = new ArrayList<Resource>();
+        connection.query(ctx(), newQueryRequest("users").addField("/name/first"), results);
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).getContent().getObject()).isEqualTo(
+                object(field("first", "alice")));
+    }
+
     @Test(expectedExceptions = BadRequestException.class)
     public void testUpdateCollection() throws Exception {
         final Connection connection = getConnection();
@@ -227,8 +941,115 @@ public final class MemoryBackendTest {
                 userBobWithIdAndRev(0, 1).getObject());
     }
 
+    private static File newTemporaryDirectory() throws IOException {
+        final File directory = File.createTempFile("memorybackend", null);
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static List<String> ids(final List<Resource> resources) {
+        final List<String> ids = new ArrayList<String>();
+        for (final Resource resource : resources) {
+            ids.add(resource.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * A patch value which performs an update the first time that it is
+     * compared with the content of the resource being patched, simulating an
+     * update made concurrently with the patch.
+     */
+    private abstract static class ConcurrentUpdate {
+        private final String value;
+        private boolean isUpdated;
+
+        private ConcurrentUpdate(final String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!isUpdated) {
+                isUpdated = true;
+                try {
+                    update();
+                } catch (final ResourceException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return value.equals(obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        abstract void update() throws ResourceException;
+    }
+
+    /**
+     * A number which performs an update the first time that it is compared
+     * with another number, simulating an update made concurrently with a
+     * query.
+     */
+    @SuppressWarnings("serial")
+    private abstract static class ConcurrentUpdateNumber extends Number {
+        private final int value;
+        private boolean isUpdated;
+
+        private ConcurrentUpdateNumber(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public double doubleValue() {
+            if (!isUpdated) {
+                isUpdated = true;
+                try {
+                    update();
+                } catch (final ResourceException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        abstract void update() throws ResourceException;
+    }
+
     private Connection getConnection() {
-        final MemoryBackend users = new MemoryBackend();
+        return getConnection(new MemoryBackend());
+    }
+
+    private Connection getConnection(final MemoryBackend users) {
         final Router router = new Router();
         router.addRoute("users", users);
         return newInternalConnection(router);
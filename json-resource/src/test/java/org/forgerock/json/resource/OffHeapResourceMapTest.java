@@ -0,0 +1,179 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+package org.forgerock.json.resource;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.forgerock.json.fluent.JsonValue.array;
+import static org.forgerock.json.fluent.JsonValue.field;
+import static org.forgerock.json.fluent.JsonValue.object;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.forgerock.json.fluent.JsonValue;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link OffHeapResourceMap}.
+ */
+@SuppressWarnings("javadoc")
+public final class OffHeapResourceMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final OffHeapResourceMap map = new OffHeapResourceMap(1024);
+        final Resource alice = resource("alice", 0);
+        assertThat(map.put("alice", alice)).isNull();
+        assertThat(map.get("alice")).isEqualTo(alice);
+        assertThat(map.get("alice").getContent().getObject()).isEqualTo(
+                alice.getContent().getObject());
+        assertThat(map.containsKey("alice")).isTrue();
+        assertThat(map.containsKey("bob")).isFalse();
+        assertThat(map.get("bob")).isNull();
+
+        final Resource alice2 = resource("alice", 1);
+        assertThat(map.put("alice", alice2)).isEqualTo(alice);
+        assertThat(map.get("alice")).isEqualTo(alice2);
+        assertThat(map.size()).isEqualTo(1);
+        assertThat(map.remove("alice")).isEqualTo(alice2);
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.remove("alice")).isNull();
+    }
+
+    @Test
+    public void testConcurrentMapMethods() {
+        final OffHeapResourceMap map = new OffHeapResourceMap(1024);
+        final Resource alice = resource("alice", 0);
+        final Resource alice2 = resource("alice", 1);
+        assertThat(map.putIfAbsent("alice", alice)).isNull();
+        assertThat(map.putIfAbsent("alice", alice2)).isEqualTo(alice);
+        assertThat(map.replace("alice", alice2, alice)).isFalse();
+        assertThat(map.replace("alice", alice, alice2)).isTrue();
+        assertThat(map.get("alice")).isEqualTo(alice2);
+        assertThat(map.replace("bob", alice)).isNull();
+        assertThat(map.containsKey("bob")).isFalse();
+        assertThat(map.remove("alice", alice)).isFalse();
+        assertThat(map.remove("alice", alice2)).isTrue();
+        assertThat(map.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testValueTypes() {
+        final OffHeapResourceMap map = new OffHeapResourceMap(1024);
+        final JsonValue content =
+                new JsonValue(object(field("null", null), field("boolean", true), field("int", 1),
+                        field("long", Long.MAX_VALUE), field("double", 1.5), field("decimal",
+                                new BigDecimal("1.25")), field("string", "été"), field(
+                                "array", array(1, "two", array(), object())), field("object",
+                                object(field("nested", object(field("a", "b")))))));
+        map.put("test", new Resource("test", "0", content));
+        assertThat(map.get("test").getContent().getObject()).isEqualTo(content.getObject());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedValueType() {
+        final OffHeapResourceMap map = new OffHeapResourceMap(1024);
+        map.put("test", new Resource("test", "0", new JsonValue(object(field("object",
+                new Object())))));
+    }
+
+    @Test
+    public void testRandomUpdatesMatchHashMap() {
+        // Small slabs ensure that slabs are frequently compacted and released.
+        final OffHeapResourceMap map = new OffHeapResourceMap(512);
+        final Map<String, Resource> expected = new HashMap<String, Resource>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            final String id = String.valueOf(random.nextInt(500));
+            if (random.nextInt(4) == 0) {
+                assertThat(map.remove(id)).isEqualTo(expected.remove(id));
+            } else {
+                final Resource resource = resource(id, i);
+                assertThat(map.put(id, resource)).isEqualTo(expected.put(id, resource));
+            }
+        }
+        assertThat(map.size()).isEqualTo(expected.size());
+        assertThat(map).isEqualTo(expected);
+        for (int i = 0; i < 500; i++) {
+            final String id = String.valueOf(i);
+            assertThat(map.get(id)).isEqualTo(expected.get(id));
+        }
+        map.clear();
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.get("1")).isNull();
+    }
+
+    @Test
+    public void testConcurrentUpdatesAndCompaction() throws Exception {
+        // Records have the same size so that new records are likely to reuse the offsets of
+        // records in slabs which are being compacted.
+        final OffHeapResourceMap map = new OffHeapResourceMap(512);
+        final int threadCount = 4;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Map<String, Resource> expected = new HashMap<String, Resource>();
+                        final Random random = new Random(seed);
+                        for (int i = 0; i < 50000; i++) {
+                            final String id = seed + "-" + (10 + random.nextInt(20));
+                            if (random.nextInt(4) == 0) {
+                                assertSameContent(map.remove(id), expected.remove(id));
+                            } else {
+                                final Resource resource = resource(id, 10000 + i);
+                                assertSameContent(map.put(id, resource), expected.put(id,
+                                        resource));
+                            }
+                        }
+                        for (final Map.Entry<String, Resource> entry : expected.entrySet()) {
+                            assertSameContent(map.get(entry.getKey()), entry.getValue());
+                        }
+                    } catch (final Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors).isEmpty();
+    }
+
+    private void assertSameContent(final Resource actual, final Resource expected) {
+        if (expected == null) {
+            assertThat(actual).isNull();
+        } else {
+            assertThat(actual.getContent().getObject()).isEqualTo(
+                    expected.getContent().getObject());
+        }
+    }
+
+    private Resource resource(final String id, final int revision) {
+        return new Resource(id, String.valueOf(revision), new JsonValue(object(field("_id", id),
+                field("_rev", String.valueOf(revision)), field("name", "user" + id))));
+    }
+}
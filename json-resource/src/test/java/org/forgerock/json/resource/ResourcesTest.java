@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2012-2013 ForgeRock AS.
+ * Copyright 2012-2014 ForgeRock AS.
  */
 package org.forgerock.json.resource;
 
@@ -160,6 +160,23 @@ public final class ResourcesTest {
                 expected.getObject());
     }
 
+    @Test(dataProvider = "testFilterData")
+    public void testFilterIsIdempotent(List<JsonPointer> filter, JsonValue content,
+            JsonValue expected) {
+        final JsonValue filtered = Resources.filterResource(content, filter);
+        assertThat((Object) Resources.filterResource(filtered, filter)).isSameAs(filtered);
+        assertThat(Resources.filterResource(filtered, filter).getObject()).isEqualTo(
+                expected.getObject());
+    }
+
+    @Test
+    public void testFilterWithDifferentFieldsIsNotIdempotent() {
+        final JsonValue content = content(object(field("a", "1"), field("b", "2")));
+        final JsonValue filtered = Resources.filterResource(content, filter("/a", "/b"));
+        assertThat(Resources.filterResource(filtered, filter("/a")).getObject()).isEqualTo(
+                object(field("a", "1")));
+    }
+
     @DataProvider
     public Object[][] testCollectionResourceProviderData() {
         // @formatter:off
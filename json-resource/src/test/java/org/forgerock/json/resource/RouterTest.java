@@ -149,6 +149,26 @@ public final class RouterTest {
         router.addRoute(RoutingMode.EQUALS, template, h);
     }
 
+    @Test
+    public void testRemovedRouteIsNoLongerMatched() throws ResourceException {
+        final Router router = new Router();
+        final RequestHandler h1 = mock(RequestHandler.class);
+        final Route r1 = router.addRoute(RoutingMode.EQUALS, "users/{userId}", h1);
+        final RequestHandler h2 = mock(RequestHandler.class);
+        router.addRoute(RoutingMode.STARTS_WITH, "users", h2);
+        router.removeRoute(r1);
+
+        final ServerContext c = newServerContext(router);
+        final ReadRequest r = newReadRequest("users/alice");
+        router.handleRead(c, r, null);
+        final ArgumentCaptor<RouterContext> rc = ArgumentCaptor.forClass(RouterContext.class);
+        final ArgumentCaptor<ReadRequest> rr = ArgumentCaptor.forClass(ReadRequest.class);
+        verify(h2).handleRead(rc.capture(), rr.capture(), Matchers.<ResultHandler<Resource>> any());
+        verifyZeroInteractions(h1);
+        checkRouterContext(rc, c, "users");
+        assertThat(rr.getValue().getResourceName()).isEqualTo("alice");
+    }
+
     @Test
     public void testMultipleRoutePrecedence() throws ResourceException {
         final Router router = new Router();
@@ -0,0 +1,297 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.forgerock.json.jose.exceptions.JwsVerifyingException;
+import org.forgerock.json.jose.exceptions.JwtRuntimeException;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.JwsHeader;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.util.Reject;
+
+/**
+ * Reconstructs and verifies batches of signed JWTs in parallel, such as when revalidating many sessions at once.
+ * <p>
+ * Each batch is processed in two phases, both split into tasks which run on the provided ExecutorService. First,
+ * the JWTs are reconstructed from their compact serialization. Then they are grouped by the key id and algorithm in
+ * their header, a SigningHandler is resolved once for each group, and the signatures of each group are verified.
+ * Keeping each task to a single key allows the signing handlers to reuse their per-thread cryptographic engines.
+ * <p>
+ * A JWT which cannot be reconstructed or verified does not affect the rest of its batch: its {@link Result} holds
+ * the reason instead.
+ *
+ * @since 2.4.0
+ */
+public class BatchJwtVerifier {
+
+    /**
+     * The result of reconstructing and verifying a single JWT of a batch.
+     */
+    public static final class Result {
+        private final String jwtString;
+        private final SignedJwt jwt;
+        private final boolean verified;
+        private final RuntimeException exception;
+
+        private Result(String jwtString, SignedJwt jwt, boolean verified, RuntimeException exception) {
+            this.jwtString = jwtString;
+            this.jwt = jwt;
+            this.verified = verified;
+            this.exception = exception;
+        }
+
+        /**
+         * Gets the JWT string which was verified.
+         *
+         * @return The JWT string.
+         */
+        public String getJwtString() {
+            return jwtString;
+        }
+
+        /**
+         * Gets the reconstructed JWT, which must not be trusted unless {@link #isVerified()} is <code>true</code>.
+         *
+         * @return The reconstructed JWT, or <code>null</code> if the JWT string could not be reconstructed.
+         */
+        public SignedJwt getJwt() {
+            return jwt;
+        }
+
+        /**
+         * Whether the signature of the JWT is valid.
+         *
+         * @return <code>true</code> if the JWT was reconstructed and its signature is valid.
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+
+        /**
+         * Gets the exception which prevented the JWT from being reconstructed or verified, including any exception
+         * thrown while resolving its SigningHandler. A JWT whose signature is simply not valid has no exception.
+         *
+         * @return The exception, or <code>null</code>.
+         */
+        public RuntimeException getException() {
+            return exception;
+        }
+    }
+
+    private static final class Group {
+        private final String keyId;
+        private final JwsAlgorithm algorithm;
+
+        private Group(String keyId, JwsAlgorithm algorithm) {
+            this.keyId = keyId;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) o;
+            return algorithm == other.algorithm && (keyId == null ? other.keyId == null : keyId.equals(other.keyId));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * algorithm.hashCode() + (keyId == null ? 0 : keyId.hashCode());
+        }
+    }
+
+    private final JwtReconstruction jwtReconstruction;
+    private final SigningHandlerResolver signingHandlerResolver;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Constructs a new BatchJwtVerifier which splits each batch into as many tasks as there are available
+     * processors.
+     *
+     * @param signingHandlerResolver The resolver of the SigningHandlers used to verify the JWTs.
+     * @param executor The ExecutorService on which to reconstruct and verify the JWTs.
+     */
+    public BatchJwtVerifier(SigningHandlerResolver signingHandlerResolver, ExecutorService executor) {
+        this(new JwtReconstruction(), signingHandlerResolver, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new BatchJwtVerifier.
+     *
+     * @param jwtReconstruction The JwtReconstruction used to reconstruct the JWTs.
+     * @param signingHandlerResolver The resolver of the SigningHandlers used to verify the JWTs.
+     * @param executor The ExecutorService on which to reconstruct and verify the JWTs.
+     * @param parallelism The number of tasks to split each phase of a batch into.
+     */
+    public BatchJwtVerifier(JwtReconstruction jwtReconstruction, SigningHandlerResolver signingHandlerResolver,
+            ExecutorService executor, int parallelism) {
+        Reject.ifNull(jwtReconstruction, "JwtReconstruction cannot be null.");
+        Reject.ifNull(signingHandlerResolver, "SigningHandlerResolver cannot be null.");
+        Reject.ifNull(executor, "ExecutorService cannot be null.");
+        Reject.ifTrue(parallelism <= 0, "Parallelism must be positive.");
+        this.jwtReconstruction = jwtReconstruction;
+        this.signingHandlerResolver = signingHandlerResolver;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Reconstructs the given JWT strings into SignedJwts and verifies their signatures.
+     *
+     * @param jwtStrings The JWT strings.
+     * @return The results, in the same order as the JWT strings.
+     * @throws InterruptedException If the current thread was interrupted while waiting for the batch to complete.
+     */
+    public List<Result> verify(Collection<String> jwtStrings) throws InterruptedException {
+        final String[] strings = jwtStrings.toArray(new String[jwtStrings.size()]);
+        final SignedJwt[] jwts = new SignedJwt[strings.length];
+        final Result[] results = new Result[strings.length];
+        if (strings.length == 0) {
+            return Collections.emptyList();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(parallelism);
+        int chunkSize = getChunkSize(strings.length);
+        for (int i = 0; i < strings.length; i += chunkSize) {
+            final int from = i;
+            final int to = Math.min(i + chunkSize, strings.length);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = from; j < to; j++) {
+                        try {
+                            jwts[j] = jwtReconstruction.reconstructJwt(strings[j], SignedJwt.class);
+                        } catch (RuntimeException e) {
+                            results[j] = new Result(strings[j], null, false, e);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+
+        Map<Group, List<Integer>> groups = new LinkedHashMap<Group, List<Integer>>();
+        int count = 0;
+        for (int i = 0; i < jwts.length; i++) {
+            if (jwts[i] != null) {
+                try {
+                    JwsHeader header = jwts[i].getHeader();
+                    Group group = new Group(header.getKeyId(), header.getAlgorithm());
+                    List<Integer> indexes = groups.get(group);
+                    if (indexes == null) {
+                        indexes = new ArrayList<Integer>();
+                        groups.put(group, indexes);
+                    }
+                    indexes.add(i);
+                    count++;
+                } catch (RuntimeException e) {
+                    results[i] = new Result(strings[i], jwts[i], false, e);
+                }
+            }
+        }
+
+        tasks.clear();
+        chunkSize = getChunkSize(count);
+        for (Map.Entry<Group, List<Integer>> entry : groups.entrySet()) {
+            Group group = entry.getKey();
+            List<Integer> indexes = entry.getValue();
+            SigningHandler resolved;
+            RuntimeException error = null;
+            try {
+                resolved = signingHandlerResolver.getSigningHandler(group.keyId, group.algorithm);
+                if (resolved == null) {
+                    error = new JwsVerifyingException("No key for key id, " + group.keyId + ", and algorithm, "
+                            + group.algorithm + ".");
+                }
+            } catch (RuntimeException e) {
+                // Only the tokens of this group fail if their key cannot be resolved.
+                resolved = null;
+                error = e;
+            }
+            final SigningHandler signingHandler = resolved;
+            if (error != null) {
+                for (int i : indexes) {
+                    results[i] = new Result(strings[i], jwts[i], false, error);
+                }
+                continue;
+            }
+            for (int i = 0; i < indexes.size(); i += chunkSize) {
+                final List<Integer> chunk = indexes.subList(i, Math.min(i + chunkSize, indexes.size()));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j : chunk) {
+                            try {
+                                results[j] = new Result(strings[j], jwts[j], jwts[j].verify(signingHandler), null);
+                            } catch (RuntimeException e) {
+                                results[j] = new Result(strings[j], jwts[j], false, e);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(tasks);
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Gets the number of JWTs each task should process so that the given number of JWTs is split into
+     * {@link #parallelism} tasks.
+     *
+     * @param count The number of JWTs.
+     * @return The number of JWTs per task, which is at least one.
+     */
+    private int getChunkSize(int count) {
+        return Math.max(1, (count + parallelism - 1) / parallelism);
+    }
+
+    /**
+     * Runs the given tasks on the executor and waits for them all to complete.
+     *
+     * @param tasks The tasks.
+     * @throws InterruptedException If the current thread was interrupted while waiting.
+     */
+    private void invokeAll(List<Callable<Void>> tasks) throws InterruptedException {
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new JwtRuntimeException(e.getCause());
+            }
+        }
+    }
+}
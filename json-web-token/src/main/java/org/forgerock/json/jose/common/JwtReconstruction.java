@@ -16,6 +16,8 @@
 
 package org.forgerock.json.jose.common;
 
+import java.util.Map;
+
 import org.forgerock.json.fluent.JsonValue;
 import org.forgerock.json.jose.exceptions.InvalidJwtException;
 import org.forgerock.json.jose.exceptions.JwtReconstructionException;
@@ -28,11 +30,14 @@ import org.forgerock.json.jose.jwt.Jwt;
 import org.forgerock.json.jose.jwt.JwtClaimsSet;
 import org.forgerock.json.jose.jwt.JwtType;
 import org.forgerock.json.jose.utils.Utils;
-import org.forgerock.util.encode.Base64url;
 
 /**
  * A service that provides a method for reconstruct a JWT string back into its relevant JWT object,
  * (SignedJwt, EncryptedJwt, SignedEncryptedJwt).
+ * <p>
+ * The JWT string is parsed in place: the parts are located by the index of their separating dots, the header and
+ * claims set are Base64url decoded into a reusable buffer which is parsed as UTF-8 encoded JSON, and the signing
+ * input of a JWS is taken directly from the ASCII characters of the JWT string.
  *
  * @since 2.0.0
  */
@@ -41,6 +46,19 @@ public class JwtReconstruction {
     private static final int JWS_NUM_PARTS = 3;
     private static final int JWE_NUM_PARTS = 5;
 
+    /**
+     * Buffers larger than this are not retained between reconstructions, so that a single large JWT does not pin
+     * memory to the thread.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
     /**
      * Reconstructs the given JWT string into a JWT object of the specified type.
      *
@@ -55,15 +73,15 @@ public class JwtReconstruction {
 
         Jwt jwt;
 
-        //split into parts
-        String[] jwtParts = jwtString.split("\\.", -1);
-        if (jwtParts.length != 3 && jwtParts.length != 5) {
-            throw new InvalidJwtException("not right number of dots, " + jwtParts.length);
+        //locate parts
+        int[] dots = findDots(jwtString);
+        if (dots.length != 4 && dots.length != 6) {
+            throw new InvalidJwtException("not right number of dots, " + (dots.length - 1));
         }
 
         //first part always header
         //turn into json value
-        JsonValue headerJson = new JsonValue(Utils.parseJson(Utils.base64urlDecode(jwtParts[0])));
+        JsonValue headerJson = new JsonValue(parseEncodedJson(jwtString, dots, 0));
         JwtType jwtType = JwtType.JWT;
         if (headerJson.isDefined("jwt")) {
             jwtType = JwtType.valueOf(headerJson.get("typ").asString().toUpperCase());
@@ -71,39 +89,119 @@ public class JwtReconstruction {
 
         if (headerJson.isDefined("enc")) {
             //is encrypted jwt
-            verifyNumberOfParts(jwtParts, JWE_NUM_PARTS);
-            jwt = reconstructEncryptedJwt(jwtParts);
+            verifyNumberOfParts(dots, JWE_NUM_PARTS);
+            jwt = reconstructEncryptedJwt(jwtString, dots);
         } else if (JwtType.JWE.equals(jwtType)) {
-            verifyNumberOfParts(jwtParts, JWS_NUM_PARTS);
-            jwt = reconstructSignedEncryptedJwt(jwtParts);
+            verifyNumberOfParts(dots, JWS_NUM_PARTS);
+            jwt = reconstructSignedEncryptedJwt(jwtString, dots);
         } else if (headerJson.isDefined("alg")) {
             //is signed jwt
-            verifyNumberOfParts(jwtParts, JWS_NUM_PARTS);
-            jwt = reconstructSignedJwt(jwtParts);
+            verifyNumberOfParts(dots, JWS_NUM_PARTS);
+            jwt = reconstructSignedJwt(jwtString, dots);
         } else {
             //plaintext jwt
-            verifyNumberOfParts(jwtParts, JWS_NUM_PARTS);
-            if (!jwtParts[2].isEmpty()) {
+            verifyNumberOfParts(dots, JWS_NUM_PARTS);
+            if (start(dots, 2) != end(dots, 2)) {
                 throw new InvalidJwtException("Third part of Plaintext JWT not empty.");
             }
-            jwt = reconstructSignedJwt(jwtParts);
+            jwt = reconstructSignedJwt(jwtString, dots);
         }
 
         return jwtClass.cast(jwt);
     }
 
+    /**
+     * Locates the dots separating the parts of the given JWT string.
+     *
+     * @param jwtString The JWT string.
+     * @return The indexes of the dots, preceded by -1 and followed by the length of the JWT string, so that part
+     * <code>i</code> lies between <code>dots[i] + 1</code> and <code>dots[i + 1]</code>.
+     */
+    private int[] findDots(String jwtString) {
+        int count = 0;
+        for (int i = jwtString.indexOf('.'); i >= 0; i = jwtString.indexOf('.', i + 1)) {
+            count++;
+        }
+        int[] dots = new int[count + 2];
+        dots[0] = -1;
+        for (int i = 1; i <= count; i++) {
+            dots[i] = jwtString.indexOf('.', dots[i - 1] + 1);
+        }
+        dots[count + 1] = jwtString.length();
+        return dots;
+    }
+
+    private int start(int[] dots, int part) {
+        return dots[part] + 1;
+    }
+
+    private int end(int[] dots, int part) {
+        return dots[part + 1];
+    }
+
     /**
      * Verifies that the JWT parts are the required length for the JWT type being reconstructed.
      *
-     * @param jwtParts The JWT parts.
+     * @param dots The indexes of the dots separating the JWT parts.
      * @param required The required number of parts.
      * @throws JwtReconstructionException If the jwt does not consist of the correct number of parts.
      */
-    private void verifyNumberOfParts(String[] jwtParts, int required) {
-        if (jwtParts.length != required) {
+    private void verifyNumberOfParts(int[] dots, int required) {
+        if (dots.length - 1 != required) {
             throw new JwtReconstructionException("Not the correct number of JWT parts. Expecting, " + required
-                    + ", actually, " + jwtParts.length);
+                    + ", actually, " + (dots.length - 1));
+        }
+    }
+
+    /**
+     * Base64url decodes a part of the JWT string into the current thread's buffer and parses it as JSON.
+     *
+     * @param jwtString The JWT string.
+     * @param dots The indexes of the dots separating the JWT parts.
+     * @param part The index of the part to parse.
+     * @return A Map of the JSON properties.
+     */
+    private Map<String, Object> parseEncodedJson(String jwtString, int[] dots, int part) {
+        int start = start(dots, part);
+        int end = end(dots, part);
+        int length = Utils.base64urlDecodedLength(jwtString, start, end);
+        byte[] buffer = BUFFERS.get();
+        if (buffer.length < length) {
+            buffer = new byte[length];
+            if (length <= MAX_RETAINED_BUFFER_SIZE) {
+                BUFFERS.set(buffer);
+            }
         }
+        Utils.base64urlDecode(jwtString, start, end, buffer);
+        return Utils.parseJson(buffer, 0, length);
+    }
+
+    /**
+     * Base64url decodes a part of the JWT string.
+     *
+     * @param jwtString The JWT string.
+     * @param dots The indexes of the dots separating the JWT parts.
+     * @param part The index of the part to decode.
+     * @return The decoded bytes.
+     */
+    private byte[] decode(String jwtString, int[] dots, int part) {
+        return Utils.base64urlDecode(jwtString, start(dots, part), end(dots, part));
+    }
+
+    /**
+     * Gets the signing input of a JWS, being its encoded header and payload concatenated using a "." character, from
+     * the JWT string. Both parts have already been decoded, so they are known to be ASCII.
+     *
+     * @param jwtString The JWT string.
+     * @param dots The indexes of the dots separating the JWT parts.
+     * @return The ASCII bytes of the signing input.
+     */
+    private byte[] getSigningInput(String jwtString, int[] dots) {
+        byte[] signingInput = new byte[dots[2]];
+        for (int i = 0; i < signingInput.length; i++) {
+            signingInput[i] = (byte) jwtString.charAt(i);
+        }
+        return signingInput;
     }
 
     /**
@@ -112,52 +210,34 @@ public class JwtReconstruction {
      * As a plaintext JWT is a JWS with an empty signature, this method should be used to reconstruct plaintext JWTs
      * as well as signed JWTs.
      *
-     * @param jwtParts The three base64url UTF-8 encoded string parts of a plaintext or signed JWT.
+     * @param jwtString The plaintext or signed JWT string.
+     * @param dots The indexes of the dots separating the three base64url UTF-8 encoded parts.
      * @return A SignedJwt object.
      */
-    private SignedJwt reconstructSignedJwt(String[] jwtParts) {
+    private SignedJwt reconstructSignedJwt(String jwtString, int[] dots) {
 
-        String encodedHeader = jwtParts[0];
-        String encodedClaimsSet = jwtParts[1];
-        String encodedSignature = jwtParts[2];
+        JwsHeader jwsHeader = new JwsHeader(parseEncodedJson(jwtString, dots, 0));
+        JwtClaimsSet claimsSet = new JwtClaimsSet(parseEncodedJson(jwtString, dots, 1));
+        byte[] signature = decode(jwtString, dots, 2);
 
-
-        String header = Utils.base64urlDecode(encodedHeader);
-        String claimsSetString = Utils.base64urlDecode(encodedClaimsSet);
-        byte[] signature = Base64url.decode(encodedSignature);
-
-        JwsHeader jwsHeader = new JwsHeader(Utils.parseJson(header));
-
-        JwtClaimsSet claimsSet = new JwtClaimsSet(Utils.parseJson(claimsSetString));
-
-        return new SignedJwt(jwsHeader, claimsSet, (encodedHeader + "." + encodedClaimsSet).getBytes(Utils.CHARSET),
-                signature);
+        return new SignedJwt(jwsHeader, claimsSet, getSigningInput(jwtString, dots), signature);
     }
 
     /**
      * Reconstructs an encrypted JWT from the given JWT string parts.
      *
-     * @param jwtParts The five base64url UTF-8 encoded string parts of an encrypted JWT.
+     * @param jwtString The encrypted JWT string.
+     * @param dots The indexes of the dots separating the five base64url UTF-8 encoded parts.
      * @return An EncryptedJwt object.
      */
-    private EncryptedJwt reconstructEncryptedJwt(String[] jwtParts) {
-
-        String encodedHeader = jwtParts[0];
-        String encodedEncryptedKey = jwtParts[1];
-        String encodedInitialisationVector = jwtParts[2];
-        String encodedCiphertext = jwtParts[3];
-        String encodedAuthenticationTag = jwtParts[4];
-
-
-        String header = Utils.base64urlDecode(encodedHeader);
-        byte[] encryptedContentEncryptionKey = Base64url.decode(encodedEncryptedKey);
-        byte[] initialisationVector = Base64url.decode(encodedInitialisationVector);
-        byte[] ciphertext = Base64url.decode(encodedCiphertext);
-        byte[] authenticationTag = Base64url.decode(encodedAuthenticationTag);
-
-
-        JweHeader jweHeader = new JweHeader(Utils.parseJson(header));
+    private EncryptedJwt reconstructEncryptedJwt(String jwtString, int[] dots) {
 
+        String encodedHeader = jwtString.substring(start(dots, 0), end(dots, 0));
+        JweHeader jweHeader = new JweHeader(parseEncodedJson(jwtString, dots, 0));
+        byte[] encryptedContentEncryptionKey = decode(jwtString, dots, 1);
+        byte[] initialisationVector = decode(jwtString, dots, 2);
+        byte[] ciphertext = decode(jwtString, dots, 3);
+        byte[] authenticationTag = decode(jwtString, dots, 4);
 
         return new EncryptedJwt(jweHeader, encodedHeader, encryptedContentEncryptionKey, initialisationVector,
                 ciphertext, authenticationTag);
@@ -169,28 +249,21 @@ public class JwtReconstruction {
      * First reconstructs the nested encrypted JWT from within the signed JWT and then reconstructs the signed JWT using
      * the reconstructed nested EncryptedJwt.
      *
-     * @param jwtParts The three base64url UTF-8 encoded string parts of a signed JWT.
+     * @param jwtString The signed JWT string.
+     * @param dots The indexes of the dots separating the three base64url UTF-8 encoded parts.
      * @return A SignedEncryptedJwt object.
      */
-    private SignedEncryptedJwt reconstructSignedEncryptedJwt(String[] jwtParts) {
-
-        String encodedHeader = jwtParts[0];
-        String encodedPayload = jwtParts[1];
-        String encodedSignature = jwtParts[2];
-
-
-        String header = Utils.base64urlDecode(encodedHeader);
-        String payloadString = Utils.base64urlDecode(encodedPayload);
-        byte[] signature = Base64url.decode(encodedSignature);
+    private SignedEncryptedJwt reconstructSignedEncryptedJwt(String jwtString, int[] dots) {
 
-        JwsHeader jwsHeader = new JwsHeader(Utils.parseJson(header));
+        JwsHeader jwsHeader = new JwsHeader(parseEncodedJson(jwtString, dots, 0));
+        String payloadString = new String(decode(jwtString, dots, 1), Utils.CHARSET);
+        byte[] signature = decode(jwtString, dots, 2);
 
-        //split into parts
-        String[] encryptedJwtParts = payloadString.split("\\.", -1);
-        verifyNumberOfParts(encryptedJwtParts, JWE_NUM_PARTS);
-        EncryptedJwt encryptedJwt = reconstructEncryptedJwt(encryptedJwtParts);
+        //locate parts
+        int[] encryptedJwtDots = findDots(payloadString);
+        verifyNumberOfParts(encryptedJwtDots, JWE_NUM_PARTS);
+        EncryptedJwt encryptedJwt = reconstructEncryptedJwt(payloadString, encryptedJwtDots);
 
-        return new SignedEncryptedJwt(jwsHeader, encryptedJwt,
-                (encodedHeader + "." + encodedPayload).getBytes(Utils.CHARSET), signature);
+        return new SignedEncryptedJwt(jwsHeader, encryptedJwt, getSigningInput(jwtString, dots), signature);
     }
 }
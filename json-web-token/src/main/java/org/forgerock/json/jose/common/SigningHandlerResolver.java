@@ -0,0 +1,40 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+
+/**
+ * Resolves the SigningHandler to use to verify a signed JWT from the key id and algorithm in its header.
+ *
+ * @see BatchJwtVerifier
+ * @since 2.4.0
+ */
+public interface SigningHandlerResolver {
+
+    /**
+     * Gets the SigningHandler which can verify JWTs signed with the given key and algorithm.
+     * <p>
+     * Implementations must be thread safe and must return thread safe SigningHandlers.
+     *
+     * @param keyId The "kid" header parameter of the JWT, which may be <code>null</code>.
+     * @param algorithm The "alg" header parameter of the JWT.
+     * @return The SigningHandler, or <code>null</code> if there is no key for the key id and algorithm.
+     */
+    SigningHandler getSigningHandler(String keyId, JwsAlgorithm algorithm);
+}
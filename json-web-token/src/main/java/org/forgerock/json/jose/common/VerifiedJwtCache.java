@@ -0,0 +1,224 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.fluent.JsonValue;
+import org.forgerock.json.jose.exceptions.InvalidJwtException;
+import org.forgerock.json.jose.exceptions.JwtReconstructionException;
+import org.forgerock.json.jose.jws.SignedEncryptedJwt;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.jwt.JwtClaimsSetKey;
+import org.forgerock.json.jose.utils.Utils;
+import org.forgerock.util.Reject;
+import org.forgerock.util.encode.Base64url;
+
+/**
+ * A bounded cache of signed JWTs which have been reconstructed from their compact serialization and whose signature
+ * has been verified using a particular SigningHandler.
+ * <p>
+ * Applications which repeatedly receive the same JWT, such as a bearer token, may use this cache in order to avoid
+ * parsing the JWT and verifying its signature each time that it is received. JWTs are cached using a SHA-256 digest
+ * of their compact serialization, and remain in the cache until the maximum time to live has elapsed, or the JWT
+ * expires according to its "exp" claim, whichever is sooner. The least recently used JWT is evicted when the cache
+ * is full. JWTs whose signature is not valid are never cached.
+ * <p>
+ * The JWTs returned by this cache are shared and must not be modified. Signed and encrypted JWTs are verified but
+ * are not cached, since they must be decrypted by the caller.
+ *
+ * @since 2.4.0
+ */
+public class VerifiedJwtCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final class Entry {
+        private final SignedJwt jwt;
+        private final long expiryTime;
+
+        private Entry(SignedJwt jwt, long expiryTime) {
+            this.jwt = jwt;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final JwtReconstruction jwtReconstruction;
+    private final SigningHandler signingHandler;
+    private final long maximumTimeToLive;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructs a new VerifiedJwtCache which verifies JWTs using the provided SigningHandler.
+     *
+     * @param signingHandler The SigningHandler used to verify the signature of JWTs.
+     * @param maximumSize The maximum number of JWTs to cache.
+     * @param maximumTimeToLive The maximum length of time for which a JWT will be cached.
+     * @param unit The unit of the maximum time to live.
+     */
+    public VerifiedJwtCache(SigningHandler signingHandler, int maximumSize, long maximumTimeToLive,
+            TimeUnit unit) {
+        this(new JwtReconstruction(), signingHandler, maximumSize, maximumTimeToLive, unit);
+    }
+
+    /**
+     * Constructs a new VerifiedJwtCache which reconstructs JWTs using the provided JwtReconstruction and verifies
+     * them using the provided SigningHandler.
+     *
+     * @param jwtReconstruction The JwtReconstruction used to reconstruct JWTs which are not cached.
+     * @param signingHandler The SigningHandler used to verify the signature of JWTs.
+     * @param maximumSize The maximum number of JWTs to cache.
+     * @param maximumTimeToLive The maximum length of time for which a JWT will be cached.
+     * @param unit The unit of the maximum time to live.
+     */
+    public VerifiedJwtCache(JwtReconstruction jwtReconstruction, SigningHandler signingHandler,
+            final int maximumSize, long maximumTimeToLive, TimeUnit unit) {
+        Reject.ifNull(jwtReconstruction, "JwtReconstruction cannot be null.");
+        Reject.ifNull(signingHandler, "SigningHandler cannot be null.");
+        Reject.ifTrue(maximumSize <= 0, "Maximum size must be positive.");
+        this.jwtReconstruction = jwtReconstruction;
+        this.signingHandler = signingHandler;
+        this.maximumTimeToLive = unit.toMillis(maximumTimeToLive);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Reconstructs the given JWT string into a SignedJwt and verifies its signature, returning the cached SignedJwt
+     * if the same JWT string has already been reconstructed and verified.
+     *
+     * @param jwtString The JWT string.
+     * @return The verified SignedJwt, or <code>null</code> if the signature of the JWT is not valid.
+     * @throws InvalidJwtException If the jwt does not consist of the correct number of parts.
+     * @throws JwtReconstructionException If the jwt does not consist of the correct number of parts.
+     * @throws ClassCastException If the jwt is not a signed JWT.
+     */
+    public SignedJwt reconstructAndVerify(String jwtString) {
+        String key = digest(jwtString);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiryTime > now) {
+                    hitCount.incrementAndGet();
+                    return entry.jwt;
+                }
+                entries.remove(key);
+            }
+        }
+        missCount.incrementAndGet();
+
+        SignedJwt jwt = jwtReconstruction.reconstructJwt(jwtString, SignedJwt.class);
+        if (!jwt.verify(signingHandler)) {
+            return null;
+        }
+        if (!(jwt instanceof SignedEncryptedJwt)) {
+            long expiryTime = getExpiryTime(jwt, now);
+            if (expiryTime > now) {
+                synchronized (entries) {
+                    entries.put(key, new Entry(jwt, expiryTime));
+                }
+            }
+        }
+        return jwt;
+    }
+
+    /**
+     * Removes all of the JWTs from this cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of times that a verified JWT has been returned from this cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of times that a JWT has had to be reconstructed and verified because it was not in this cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of JWTs in this cache, including any which have expired but have not yet been removed.
+     *
+     * @return The number of JWTs in this cache.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Gets the time at which the given JWT should be removed from this cache, being the time at which it expires or
+     * the maximum time to live from now, whichever is sooner.
+     *
+     * @param jwt The verified JWT.
+     * @param now The current time in milliseconds.
+     * @return The time in milliseconds after which the JWT should be removed from the cache.
+     */
+    private long getExpiryTime(SignedJwt jwt, long now) {
+        long expiryTime = now + maximumTimeToLive;
+        JsonValue exp = jwt.getClaimsSet().get(JwtClaimsSetKey.EXP.value());
+        if (exp.isNumber()) {
+            expiryTime = Math.min(expiryTime, jwt.getClaimsSet().getExpirationTime().getTime());
+        }
+        return expiryTime;
+    }
+
+    /**
+     * Computes the cache key of the given JWT string.
+     *
+     * @param jwtString The JWT string.
+     * @return The base64url encoded SHA-256 digest of the JWT string.
+     */
+    private String digest(String jwtString) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            return Base64url.encode(digest.digest(jwtString.getBytes(Utils.CHARSET)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.jose.jwe;
@@ -188,8 +188,6 @@ public class EncryptedJwt implements Jwt, Payload {
         byte[] plaintext = encryptionHandler.decryptCiphertext(contentEncryptionKey, initialisationVector, ciphertext,
                 authenticationTag, additionalAuthenticatedData);
 
-        String claimsSetString = new String(plaintext, Utils.CHARSET);
-
-        claimsSet = new JwtClaimsSet(Utils.parseJson(claimsSetString));
+        claimsSet = new JwtClaimsSet(Utils.parseJson(plaintext, 0, plaintext.length));
     }
 }
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.jose.jwe;
@@ -32,6 +32,9 @@ import org.forgerock.json.jose.jws.SigningManager;
  */
 public class EncryptionManager {
 
+    private final EncryptionHandler rsa15Aes128CbcHs256EncryptionHandler =
+            new RSA15AES128CBCHS256EncryptionHandler(new SigningManager());
+
     /**
      * Gets the appropriate EncryptionHandler that can perform the required encryption algorithm, as described by the
      * JweAlgorithm and EncryptionMethod in the given JweHeader.
@@ -64,7 +67,7 @@ public class EncryptionManager {
 
         switch (encryptionMethod) {
         case A128CBC_HS256: {
-            return new RSA15AES128CBCHS256EncryptionHandler(new SigningManager());
+            return rsa15Aes128CbcHs256EncryptionHandler;
         }
         case A256CBC_HS512: {
             throw new JweException(new UnsupportedOperationException("A256CBC_HS512 not yet supported"));
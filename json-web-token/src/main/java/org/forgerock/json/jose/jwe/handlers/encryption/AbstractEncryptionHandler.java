@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.jose.jwe.handlers.encryption;
@@ -20,6 +20,8 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -40,6 +42,17 @@ import org.forgerock.json.jose.exceptions.JweEncryptionException;
  */
 public abstract class AbstractEncryptionHandler implements EncryptionHandler {
 
+    /**
+     * Each thread's Cipher instances, keyed by algorithm. Ciphers are initialised before every use, so caching them
+     * only saves the provider lookup.
+     */
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+            return new HashMap<String, Cipher>();
+        }
+    };
+
     /**
      * Encrypts the given plaintext using the specified key with the specified encryption algorithm.
      *
@@ -50,7 +63,7 @@ public abstract class AbstractEncryptionHandler implements EncryptionHandler {
      */
     protected byte[] encrypt(String algorithm, Key key, byte[] data) {
         try {
-            Cipher cipher = Cipher.getInstance(algorithm);
+            Cipher cipher = getCipher(algorithm);
             cipher.init(Cipher.ENCRYPT_MODE, key);
             return cipher.doFinal(data);
         } catch (NoSuchAlgorithmException e) {
@@ -79,7 +92,7 @@ public abstract class AbstractEncryptionHandler implements EncryptionHandler {
     protected byte[] encrypt(String algorithm, Key key, byte[] initialisationVector, byte[] data) {
 
         try {
-            Cipher cipher = Cipher.getInstance(algorithm);
+            Cipher cipher = getCipher(algorithm);
             SecretKeySpec secretKeySpec = new SecretKeySpec(key.getEncoded(), key.getAlgorithm());
             IvParameterSpec ivParameterSpec = new IvParameterSpec(initialisationVector);
             cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
@@ -111,7 +124,7 @@ public abstract class AbstractEncryptionHandler implements EncryptionHandler {
     public byte[] decrypt(String algorithm, Key privateKey, byte[] data) {
 
         try {
-            Cipher cipher = Cipher.getInstance(algorithm);
+            Cipher cipher = getCipher(algorithm);
             cipher.init(Cipher.DECRYPT_MODE, privateKey);
             return cipher.doFinal(data);
         } catch (NoSuchAlgorithmException e) {
@@ -140,7 +153,7 @@ public abstract class AbstractEncryptionHandler implements EncryptionHandler {
     protected byte[] decrypt(String algorithm, Key key, byte[] initialisationVector, byte[] data) {
 
         try {
-            Cipher cipher = Cipher.getInstance(algorithm);
+            Cipher cipher = getCipher(algorithm);
             SecretKeySpec secretKeySpec = new SecretKeySpec(key.getEncoded(), key.getAlgorithm());
             IvParameterSpec ivParameterSpec = new IvParameterSpec(initialisationVector);
             cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
@@ -159,4 +172,23 @@ public abstract class AbstractEncryptionHandler implements EncryptionHandler {
             throw new JweDecryptionException(e);
         }
     }
+
+    /**
+     * Gets the current thread's Cipher instance for the given algorithm, creating it if necessary. The returned
+     * Cipher must be initialised before it is used.
+     *
+     * @param algorithm The Java Cryptographic encryption algorithm.
+     * @return The Cipher.
+     * @throws NoSuchAlgorithmException If the algorithm is not supported.
+     * @throws NoSuchPaddingException If the padding scheme of the algorithm is not supported.
+     */
+    private Cipher getCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(algorithm);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            ciphers.put(algorithm, cipher);
+        }
+        return cipher;
+    }
 }
@@ -1,7 +1,7 @@
 /*
  * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
  *
- * Copyright (c) 2013 ForgeRock AS All rights reserved.
+ * Copyright (c) 2013-2014 ForgeRock AS All rights reserved.
  *
  * The contents of this file are subject to the terms
  * of the Common Development and Distribution License
@@ -88,7 +88,12 @@ public class JWKSet extends JWObject {
         JsonValue jwks = get("keys");
         Iterator<JsonValue> i = jwks.iterator();
         while (i.hasNext()) {
-            listOfJWKs.add(JWK.parse(i.next()));
+            JsonValue jwk = i.next();
+            if (jwk.getObject() instanceof JWK) {
+                listOfJWKs.add((JWK) jwk.getObject());
+            } else {
+                listOfJWKs.add(JWK.parse(jwk));
+            }
         }
         return listOfJWKs;
     }
@@ -0,0 +1,222 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.jwk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.fluent.JsonException;
+import org.forgerock.json.jose.common.SigningHandlerResolver;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.JwsAlgorithmType;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.utils.Utils;
+import org.forgerock.util.Reject;
+import org.forgerock.util.encode.Base64url;
+
+/**
+ * A SigningHandlerResolver which verifies JWTs using the keys of a JWKSet.
+ * <p>
+ * When a JWKSet is set, each RSA and oct key which may be used for signatures is converted once into a JCA key, and
+ * a SigningHandler is created for it using the SigningManager. The handlers are indexed by key id and algorithm, so
+ * resolving the handler for a JWT is a single hash lookup. A key whose "alg" is not set is indexed under every
+ * algorithm of its key type. A JWT without a key id is resolved to the only key for its algorithm, if there is just
+ * one. EC keys are ignored, as there is no SigningHandler for them.
+ * <p>
+ * The JWKSet may be replaced at any time, for instance when it has been refreshed, and lookups will atomically
+ * switch to the new keys. If the new JWKSet cannot be loaded then the previous keys remain in use.
+ *
+ * @since 2.4.0
+ */
+public class JWKSetSigningHandlerResolver implements SigningHandlerResolver {
+
+    private static final class IndexKey {
+        private final String keyId;
+        private final JwsAlgorithm algorithm;
+
+        private IndexKey(String keyId, JwsAlgorithm algorithm) {
+            this.keyId = keyId;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexKey)) {
+                return false;
+            }
+            IndexKey other = (IndexKey) o;
+            return algorithm == other.algorithm && (keyId == null ? other.keyId == null : keyId.equals(other.keyId));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * algorithm.hashCode() + (keyId == null ? 0 : keyId.hashCode());
+        }
+    }
+
+    private final SigningManager signingManager;
+    private volatile Map<IndexKey, SigningHandler> signingHandlers;
+
+    /**
+     * Constructs a new JWKSetSigningHandlerResolver for the keys of the given JWKSet.
+     *
+     * @param jwkSet The JWKSet.
+     * @throws JsonException If a key of the JWKSet is not valid.
+     */
+    public JWKSetSigningHandlerResolver(JWKSet jwkSet) {
+        this(jwkSet, new SigningManager());
+    }
+
+    /**
+     * Constructs a new JWKSetSigningHandlerResolver for the keys of the given JWKSet, which creates SigningHandlers
+     * using the given SigningManager.
+     *
+     * @param jwkSet The JWKSet.
+     * @param signingManager The SigningManager used to create the SigningHandler for each key.
+     * @throws JsonException If a key of the JWKSet is not valid.
+     */
+    public JWKSetSigningHandlerResolver(JWKSet jwkSet, SigningManager signingManager) {
+        Reject.ifNull(signingManager, "SigningManager cannot be null.");
+        this.signingManager = signingManager;
+        setJWKSet(jwkSet);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SigningHandler getSigningHandler(String keyId, JwsAlgorithm algorithm) {
+        return signingHandlers.get(new IndexKey(keyId, algorithm));
+    }
+
+    /**
+     * Replaces the keys used to verify JWTs with the keys of the given JWKSet.
+     *
+     * @param jwkSet The JWKSet.
+     * @throws JsonException If a key of the JWKSet is not valid, in which case the previous keys remain in use.
+     */
+    public void setJWKSet(JWKSet jwkSet) {
+        Reject.ifNull(jwkSet, "JWKSet cannot be null.");
+        Map<IndexKey, SigningHandler> handlers = new HashMap<IndexKey, SigningHandler>();
+        Map<JwsAlgorithm, List<SigningHandler>> handlersByAlgorithm =
+                new HashMap<JwsAlgorithm, List<SigningHandler>>();
+        for (JWK jwk : jwkSet.getJWKsAsList()) {
+            if (KeyUse.ENC.equals(jwk.getUse())) {
+                continue;
+            }
+            JwsAlgorithmType algorithmType;
+            if (KeyType.RSA.equals(jwk.getKeyType())) {
+                algorithmType = JwsAlgorithmType.RSA;
+            } else if (KeyType.OCT.equals(jwk.getKeyType())) {
+                algorithmType = JwsAlgorithmType.HMAC;
+            } else {
+                continue;
+            }
+            SigningHandler signingHandler = null;
+            for (JwsAlgorithm algorithm : getAlgorithms(jwk, algorithmType)) {
+                if (signingHandler == null) {
+                    signingHandler = newSigningHandler(jwk);
+                }
+                IndexKey indexKey = new IndexKey(jwk.getKeyId(), algorithm);
+                if (jwk.getKeyId() != null && !handlers.containsKey(indexKey)) {
+                    handlers.put(indexKey, signingHandler);
+                }
+                List<SigningHandler> algorithmHandlers = handlersByAlgorithm.get(algorithm);
+                if (algorithmHandlers == null) {
+                    algorithmHandlers = new ArrayList<SigningHandler>();
+                    handlersByAlgorithm.put(algorithm, algorithmHandlers);
+                }
+                algorithmHandlers.add(signingHandler);
+            }
+        }
+        for (Map.Entry<JwsAlgorithm, List<SigningHandler>> entry : handlersByAlgorithm.entrySet()) {
+            if (entry.getValue().size() == 1) {
+                handlers.put(new IndexKey(null, entry.getKey()), entry.getValue().get(0));
+            }
+        }
+        signingHandlers = handlers;
+    }
+
+    /**
+     * Replaces the keys used to verify JWTs with the keys of the JWKSet in the given file.
+     *
+     * @param file The file containing the JSON representation of a JWKSet.
+     * @throws IOException If the file could not be read, in which case the previous keys remain in use.
+     * @throws JsonException If the file does not contain a valid JWKSet, in which case the previous keys remain in
+     * use.
+     */
+    public void load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            setJWKSet(JWKSet.parse(new String(out.toByteArray(), Utils.CHARSET)));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the algorithms the given key may be used with, being its "alg", if set, or otherwise all algorithms of its
+     * key type.
+     *
+     * @param jwk The JWK.
+     * @param algorithmType The type of algorithm for the type of the key.
+     * @return The algorithms, which will be empty if the key may not be used for signatures.
+     */
+    private List<JwsAlgorithm> getAlgorithms(JWK jwk, JwsAlgorithmType algorithmType) {
+        List<JwsAlgorithm> algorithms = new ArrayList<JwsAlgorithm>();
+        for (JwsAlgorithm algorithm : JwsAlgorithm.values()) {
+            if (algorithm.getAlgorithmType() == algorithmType
+                    && (jwk.getAlgorithm() == null || algorithm.name().equalsIgnoreCase(jwk.getAlgorithm()))) {
+                algorithms.add(algorithm);
+            }
+        }
+        return algorithms;
+    }
+
+    /**
+     * Creates a SigningHandler which verifies signatures using the given RSA or oct key.
+     *
+     * @param jwk The JWK.
+     * @return The SigningHandler.
+     * @throws JsonException If the key is not valid.
+     */
+    private SigningHandler newSigningHandler(JWK jwk) {
+        if (jwk instanceof RsaJWK) {
+            return signingManager.newRsaSigningHandler(((RsaJWK) jwk).toRSAPublicKey());
+        }
+        String key = ((OctJWK) jwk).getKey();
+        byte[] sharedSecret = key != null ? Base64url.decode(key) : null;
+        if (sharedSecret == null) {
+            throw new JsonException("Invalid oct key, " + jwk.getKeyId());
+        }
+        return signingManager.newHmacSigningHandler(sharedSecret);
+    }
+}
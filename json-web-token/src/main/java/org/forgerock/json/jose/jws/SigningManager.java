@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.jose.jws;
@@ -20,7 +20,6 @@ import org.forgerock.json.jose.jws.handlers.HmacSigningHandler;
 import org.forgerock.json.jose.jws.handlers.NOPSigningHandler;
 import org.forgerock.json.jose.jws.handlers.RSASigningHandler;
 import org.forgerock.json.jose.jws.handlers.SigningHandler;
-import org.forgerock.util.SignatureUtil;
 
 import java.security.Key;
 
@@ -34,8 +33,6 @@ import java.security.Key;
  */
 public class SigningManager {
 
-    private final SignatureUtil signatureUtil = SignatureUtil.getInstance();
-
     public SigningHandler newNopSigningHandler() {
         return new NOPSigningHandler();
     }
@@ -45,6 +42,6 @@ public class SigningManager {
     }
 
     public SigningHandler newRsaSigningHandler(Key key) {
-        return new RSASigningHandler(key, signatureUtil);
+        return new RSASigningHandler(key);
     }
 }
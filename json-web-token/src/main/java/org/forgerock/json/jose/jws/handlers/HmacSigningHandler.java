@@ -24,18 +24,34 @@ import org.forgerock.util.Reject;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * An implementation of the SigningHandler which can sign and verify using algorithms from the HMAC family.
+ * <p>
+ * Each thread reuses its Mac instance for an algorithm, which is only re-initialised when it is next used by a
+ * different HmacSigningHandler, so handlers should be reused for as long as their shared secret is.
  *
  * @since 2.0.0
  */
 public class HmacSigningHandler implements SigningHandler {
 
-    private final byte[] sharedSecret;
+    private static final ThreadLocalEngines<Mac> MACS = new ThreadLocalEngines<Mac>() {
+        @Override
+        Mac newInstance(String algorithm) throws GeneralSecurityException {
+            return Mac.getInstance(algorithm);
+        }
+
+        @Override
+        void init(Mac mac, String algorithm, Key key) throws GeneralSecurityException {
+            mac.init(new SecretKeySpec(key.getEncoded(), algorithm.toUpperCase()));
+        }
+    };
+
+    private final SecretKey sharedSecret;
 
     /**
      * Constructs a new HmacSigningHandler.
@@ -44,7 +60,7 @@ public class HmacSigningHandler implements SigningHandler {
      */
     public HmacSigningHandler(byte[] sharedSecret) {
         Reject.ifNull(sharedSecret, "Shared secret cannot be null.");
-        this.sharedSecret = sharedSecret.clone();
+        this.sharedSecret = new SecretKeySpec(sharedSecret, "HMAC");
     }
 
     /**
@@ -63,15 +79,12 @@ public class HmacSigningHandler implements SigningHandler {
      * @param data The data to sign.
      * @return A byte array of the signature.
      */
-    private byte[] signWithHMAC(String algorithm, byte[] sharedSecret, byte[] data) {
+    private byte[] signWithHMAC(String algorithm, SecretKey sharedSecret, byte[] data) {
         try {
-            Mac mac = Mac.getInstance(algorithm);
-            SecretKey secretKey = new SecretKeySpec(sharedSecret, algorithm.toUpperCase());
-            mac.init(secretKey);
-            return mac.doFinal(data);
+            return MACS.get(algorithm, sharedSecret).doFinal(data);
         } catch (NoSuchAlgorithmException e) {
             throw new JwsSigningException("Unsupported Signing Algorithm, " + algorithm, e);
-        } catch (InvalidKeyException e) {
+        } catch (GeneralSecurityException e) {
             throw new JwsSigningException(e);
         }
     }
@@ -23,31 +23,61 @@ import org.forgerock.json.jose.utils.Utils;
 import org.forgerock.util.Reject;
 import org.forgerock.util.SignatureUtil;
 
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SignatureException;
+import java.security.Signature;
 
 /**
  * An implementation of the SigningHandler which can sign and verify using algorithms from the RSA family.
+ * <p>
+ * Each thread reuses its Signature instance for an algorithm, which is only re-initialised when it is next used by a
+ * different RSASigningHandler, so handlers should be reused for as long as their key is.
  *
  * @since 2.0.0
  */
 public class RSASigningHandler implements SigningHandler {
 
-    private final SignatureUtil signatureUtil;
+    private static final ThreadLocalEngines<Signature> SIGNATURES = new ThreadLocalEngines<Signature>() {
+        @Override
+        Signature newInstance(String algorithm) throws GeneralSecurityException {
+            return Signature.getInstance(algorithm);
+        }
+
+        @Override
+        void init(Signature signature, String algorithm, Key key) throws GeneralSecurityException {
+            if (key instanceof PrivateKey) {
+                signature.initSign((PrivateKey) key);
+            } else {
+                signature.initVerify((PublicKey) key);
+            }
+        }
+    };
+
     private final Key key;
 
     /**
-     * Constructs a new RSASigningHandler, with a SignatureUtil instance to delegate the signing and verifying calls to.
+     * Constructs a new RSASigningHandler.
      *
      * @param key The key used to sign and verify the signature.
-     * @param signatureUtil An instance of the SignatureUtil.
+     * @since 2.4.0
      */
-    public RSASigningHandler(Key key, SignatureUtil signatureUtil) {
+    public RSASigningHandler(Key key) {
         this.key = key;
-        this.signatureUtil = signatureUtil;
+    }
+
+    /**
+     * Constructs a new RSASigningHandler.
+     *
+     * @param key The key used to sign and verify the signature.
+     * @param signatureUtil Ignored, signatures are computed using Signature instances cached for each thread.
+     * @deprecated Use {@link #RSASigningHandler(Key)} instead.
+     */
+    @Deprecated
+    public RSASigningHandler(Key key, SignatureUtil signatureUtil) {
+        this(key);
     }
 
     /**
@@ -57,11 +87,13 @@ public class RSASigningHandler implements SigningHandler {
     public byte[] sign(JwsAlgorithm algorithm, String data) {
         try {
             Reject.ifFalse(key instanceof PrivateKey, "RSA requires private key for signing.");
-            return signatureUtil.sign((PrivateKey) key, algorithm.getAlgorithm(), data);
-        } catch (SignatureException e) {
-            if (e.getCause().getClass().isAssignableFrom(NoSuchAlgorithmException.class)) {
-                throw new JwsSigningException("Unsupported Signing Algorithm, " + algorithm.getAlgorithm(), e);
-            }
+            Signature signature = SIGNATURES.get(algorithm.getAlgorithm(), key);
+            signature.update(data.getBytes(Utils.CHARSET));
+            return signature.sign();
+        } catch (NoSuchAlgorithmException e) {
+            throw new JwsSigningException("Unsupported Signing Algorithm, " + algorithm.getAlgorithm(), e);
+        } catch (GeneralSecurityException e) {
+            SIGNATURES.discard(algorithm.getAlgorithm());
             throw new JwsSigningException(e);
         }
     }
@@ -73,12 +105,13 @@ public class RSASigningHandler implements SigningHandler {
     public boolean verify(JwsAlgorithm algorithm, byte[] data, byte[] signature) {
         try {
             Reject.ifFalse(key instanceof PublicKey, "RSA requires public key for signature verification.");
-            return signatureUtil.verify((PublicKey) key, algorithm.getAlgorithm(),
-                    new String(data, Utils.CHARSET), signature);
-        } catch (SignatureException e) {
-            if (e.getCause().getClass().isAssignableFrom(NoSuchAlgorithmException.class)) {
-                throw new JwsVerifyingException("Unsupported Signing Algorithm, " + algorithm.getAlgorithm(), e);
-            }
+            Signature verifier = SIGNATURES.get(algorithm.getAlgorithm(), key);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (NoSuchAlgorithmException e) {
+            throw new JwsVerifyingException("Unsupported Signing Algorithm, " + algorithm.getAlgorithm(), e);
+        } catch (GeneralSecurityException e) {
+            SIGNATURES.discard(algorithm.getAlgorithm());
             throw new JwsVerifyingException(e);
         }
     }
@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.jws.handlers;
+
+import java.security.GeneralSecurityException;
+import java.lang.ref.WeakReference;
+import java.security.Key;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches cryptographic engines, such as {@link javax.crypto.Mac} and {@link java.security.Signature} instances, for
+ * each thread, so that the provider lookup is performed once per thread and algorithm rather than once per operation.
+ * <p>
+ * Engines are not thread safe, which is why each thread has its own. Each engine remembers the key it was last
+ * initialised with and is only re-initialised when it is used with a different key instance, so signing handlers
+ * should use the same key instance for every operation.
+ * <p>
+ * The key itself is only weakly referenced, but an initialised engine retains its own copy of the key material until
+ * it is re-initialised with another key or discarded, which at worst is when its thread terminates. The cached values
+ * only reference classes of the Java platform, so that pooled threads do not prevent the class loader which loaded
+ * this class from being garbage collected, for example when a web application is undeployed.
+ *
+ * @param <E> The type of engine.
+ * @since 2.4.0
+ */
+abstract class ThreadLocalEngines<E> {
+
+    /** Maps algorithms to engines and the key which each engine was last initialised with. */
+    private final ThreadLocal<Map<String, SimpleEntry<E, WeakReference<Key>>>> engines =
+            new ThreadLocal<Map<String, SimpleEntry<E, WeakReference<Key>>>>() {
+                @Override
+                protected Map<String, SimpleEntry<E, WeakReference<Key>>> initialValue() {
+                    return new HashMap<String, SimpleEntry<E, WeakReference<Key>>>();
+                }
+            };
+
+    /**
+     * Gets the current thread's engine for the given algorithm, initialised with the given key.
+     *
+     * @param algorithm The Java Cryptographic algorithm.
+     * @param key The key the engine must be initialised with.
+     * @return The initialised engine.
+     * @throws GeneralSecurityException If the engine could not be created or initialised.
+     */
+    final E get(String algorithm, Key key) throws GeneralSecurityException {
+        Map<String, SimpleEntry<E, WeakReference<Key>>> threadEngines = engines.get();
+        SimpleEntry<E, WeakReference<Key>> engine = threadEngines.get(algorithm);
+        if (engine == null) {
+            engine = new SimpleEntry<E, WeakReference<Key>>(newInstance(algorithm), null);
+            threadEngines.put(algorithm, engine);
+        }
+        WeakReference<Key> initialisedKey = engine.getValue();
+        if (initialisedKey == null || initialisedKey.get() != key) {
+            engine.setValue(null);
+            init(engine.getKey(), algorithm, key);
+            engine.setValue(new WeakReference<Key>(key));
+        }
+        return engine.getKey();
+    }
+
+    /**
+     * Discards the current thread's engine for the given algorithm. Used when an operation has failed and the state
+     * of the engine can no longer be relied upon.
+     *
+     * @param algorithm The Java Cryptographic algorithm.
+     */
+    final void discard(String algorithm) {
+        engines.get().remove(algorithm);
+    }
+
+    /**
+     * Creates a new, uninitialised, engine for the given algorithm.
+     *
+     * @param algorithm The Java Cryptographic algorithm.
+     * @return The engine.
+     * @throws GeneralSecurityException If the algorithm is not supported.
+     */
+    abstract E newInstance(String algorithm) throws GeneralSecurityException;
+
+    /**
+     * Initialises the given engine with the given key.
+     *
+     * @param instance The engine.
+     * @param algorithm The Java Cryptographic algorithm.
+     * @param key The key.
+     * @throws GeneralSecurityException If the key is not valid for the engine.
+     */
+    abstract void init(E instance, String algorithm, Key key) throws GeneralSecurityException;
+}
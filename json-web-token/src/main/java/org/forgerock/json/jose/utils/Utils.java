@@ -11,13 +11,14 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013 ForgeRock AS.
+ * Copyright 2013-2014 ForgeRock AS.
  */
 
 package org.forgerock.json.jose.utils;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.codehaus.jackson.map.ObjectMapper;
@@ -37,6 +38,21 @@ public final class Utils {
      */
     public static final Charset CHARSET = Charset.forName("UTF-8");
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Maps each ASCII character to its base64url value, or -1 if it is not in the base64url alphabet.
+     */
+    private static final byte[] BASE64URL_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
     /**
      * Private constructor.
      */
@@ -63,6 +79,79 @@ public final class Utils {
         return new String(Base64url.decode(s), CHARSET);
     }
 
+    /**
+     * Gets the number of bytes encoded by the given range of a Base64url encoded String, ignoring any trailing
+     * padding characters.
+     *
+     * @param s The String containing the Base64url encoded data.
+     * @param start The index of the first character of the encoded data.
+     * @param end The index after the last character of the encoded data.
+     * @return The number of decoded bytes.
+     * @throws InvalidJwtException If the length of the encoded data is not valid.
+     * @since 2.4.0
+     */
+    public static int base64urlDecodedLength(String s, int start, int end) {
+        while (end > start && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        int length = end - start;
+        if (length % 4 == 1) {
+            throw new InvalidJwtException("Invalid base64url encoding");
+        }
+        return length / 4 * 3 + Math.max(length % 4 - 1, 0);
+    }
+
+    /**
+     * Base64url decodes the given range of a String into the given buffer, without creating intermediate Strings.
+     * Any trailing padding characters are ignored.
+     *
+     * @param s The String containing the Base64url encoded data.
+     * @param start The index of the first character of the encoded data.
+     * @param end The index after the last character of the encoded data.
+     * @param buffer The buffer to decode into, which must have room for at least
+     *               {@link #base64urlDecodedLength(String, int, int)} bytes.
+     * @return The number of decoded bytes.
+     * @throws InvalidJwtException If the encoded data is not valid Base64url.
+     * @since 2.4.0
+     */
+    public static int base64urlDecode(String s, int start, int end, byte[] buffer) {
+        int length = base64urlDecodedLength(s, start, end);
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for (int i = start; position < length; i++) {
+            char c = s.charAt(i);
+            int value = c < BASE64URL_VALUES.length ? BASE64URL_VALUES[c] : -1;
+            if (value < 0) {
+                throw new InvalidJwtException("Invalid base64url character at index " + i);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                buffer[position++] = (byte) (bits >> bitCount);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Base64url decodes the given range of a String, without creating intermediate Strings. Any trailing padding
+     * characters are ignored.
+     *
+     * @param s The String containing the Base64url encoded data.
+     * @param start The index of the first character of the encoded data.
+     * @param end The index after the last character of the encoded data.
+     * @return The decoded bytes.
+     * @throws InvalidJwtException If the encoded data is not valid Base64url.
+     * @since 2.4.0
+     */
+    public static byte[] base64urlDecode(String s, int start, int end) {
+        byte[] bytes = new byte[base64urlDecodedLength(s, start, end)];
+        base64urlDecode(s, start, end, bytes);
+        return bytes;
+    }
+
     /**
      * Compares two byte arrays for equality, in a constant time.
      * <p>
@@ -100,9 +189,28 @@ public final class Utils {
     @SuppressWarnings("unchecked")
     public static Map<String, Object> parseJson(String json) {
 
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.readValue(json, NoDuplicatesMap.class);
+            return MAPPER.readValue(json, NoDuplicatesMap.class);
+        } catch (IOException e) {
+            throw new InvalidJwtException("Failed to parse json", e);
+        }
+    }
+
+    /**
+     * Parses the given UTF-8 encoded JSON into a NoDuplicatesMap, without first converting it to a String.
+     *
+     * @param json The buffer containing the UTF-8 encoded JSON.
+     * @param offset The offset of the JSON in the buffer.
+     * @param length The length of the JSON in bytes.
+     * @return A Map of the JSON properties.
+     * @see #parseJson(String)
+     * @since 2.4.0
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseJson(byte[] json, int offset, int length) {
+
+        try {
+            return MAPPER.readValue(json, offset, length, NoDuplicatesMap.class);
         } catch (IOException e) {
             throw new InvalidJwtException("Failed to parse json", e);
         }
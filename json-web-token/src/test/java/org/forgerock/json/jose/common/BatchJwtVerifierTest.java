@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.exceptions.JwsVerifyingException;
+import org.forgerock.json.jose.exceptions.JwtReconstructionException;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.handlers.HmacSigningHandler;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.utils.Utils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class BatchJwtVerifierTest {
+
+    private static final SigningHandler ALICE_HANDLER = new HmacSigningHandler("alice".getBytes(Utils.CHARSET));
+    private static final SigningHandler BOB_HANDLER = new HmacSigningHandler("bob".getBytes(Utils.CHARSET));
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldReturnResultsInOrder() throws Exception {
+
+        //Given
+        AtomicInteger resolutions = new AtomicInteger();
+        BatchJwtVerifier verifier = new BatchJwtVerifier(new JwtReconstruction(), resolver(resolutions), executor, 3);
+        List<String> jwtStrings = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String keyId = i % 2 == 0 ? "alice" : "bob";
+            jwtStrings.add(signedJwt(i % 2 == 0 ? ALICE_HANDLER : BOB_HANDLER, keyId, "user" + i));
+        }
+
+        //When
+        List<BatchJwtVerifier.Result> results = verifier.verify(jwtStrings);
+
+        //Then
+        assertThat(results).hasSize(20);
+        for (int i = 0; i < 20; i++) {
+            BatchJwtVerifier.Result result = results.get(i);
+            assertThat(result.getJwtString()).isEqualTo(jwtStrings.get(i));
+            assertThat(result.isVerified()).isTrue();
+            assertThat(result.getException()).isNull();
+            assertThat(result.getJwt().getClaimsSet().getSubject()).isEqualTo("user" + i);
+        }
+        assertThat(resolutions.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReportFailuresPerJwt() throws Exception {
+
+        //Given
+        BatchJwtVerifier verifier = new BatchJwtVerifier(resolver(new AtomicInteger()), executor);
+        String valid = signedJwt(ALICE_HANDLER, "alice", "valid");
+        String wrongKey = signedJwt(BOB_HANDLER, "alice", "wrongKey");
+        String unknownKey = signedJwt(ALICE_HANDLER, "carol", "unknownKey");
+
+        //When
+        List<BatchJwtVerifier.Result> results = verifier.verify(Arrays.asList(valid, wrongKey, unknownKey, "a.b"));
+
+        //Then
+        assertThat(results.get(0).isVerified()).isTrue();
+        assertThat(results.get(1).isVerified()).isFalse();
+        assertThat(results.get(1).getException()).isNull();
+        assertThat(results.get(2).isVerified()).isFalse();
+        assertThat(results.get(2).getJwt().getClaimsSet().getSubject()).isEqualTo("unknownKey");
+        assertThat(results.get(2).getException()).isInstanceOf(JwsVerifyingException.class);
+        assertThat(results.get(3).isVerified()).isFalse();
+        assertThat(results.get(3).getJwt()).isNull();
+        assertThat(results.get(3).getException()).isInstanceOf(JwtReconstructionException.class);
+    }
+
+    @Test
+    public void shouldReportResolverFailuresPerGroup() throws Exception {
+
+        //Given
+        BatchJwtVerifier verifier = new BatchJwtVerifier(resolver(new AtomicInteger()), executor);
+        String failing1 = signedJwt(ALICE_HANDLER, "dave", "failing1");
+        String valid = signedJwt(ALICE_HANDLER, "alice", "valid");
+        String failing2 = signedJwt(ALICE_HANDLER, "dave", "failing2");
+
+        //When
+        List<BatchJwtVerifier.Result> results = verifier.verify(Arrays.asList(failing1, valid, failing2));
+
+        //Then
+        assertThat(results.get(0).isVerified()).isFalse();
+        assertThat(results.get(0).getException()).isInstanceOf(IllegalStateException.class);
+        assertThat(results.get(1).isVerified()).isTrue();
+        assertThat(results.get(2).isVerified()).isFalse();
+        assertThat(results.get(2).getException()).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldVerifyEmptyBatch() throws Exception {
+        BatchJwtVerifier verifier = new BatchJwtVerifier(resolver(new AtomicInteger()), executor);
+        assertThat(verifier.verify(Collections.<String>emptyList())).isEmpty();
+    }
+
+    private SigningHandlerResolver resolver(final AtomicInteger resolutions) {
+        return new SigningHandlerResolver() {
+            @Override
+            public SigningHandler getSigningHandler(String keyId, JwsAlgorithm algorithm) {
+                resolutions.incrementAndGet();
+                if ("alice".equals(keyId)) {
+                    return ALICE_HANDLER;
+                } else if ("bob".equals(keyId)) {
+                    return BOB_HANDLER;
+                } else if ("dave".equals(keyId)) {
+                    throw new IllegalStateException("Key store unavailable");
+                }
+                return null;
+            }
+        };
+    }
+
+    private String signedJwt(SigningHandler signingHandler, String keyId, String subject) {
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        return jwtBuilderFactory.jws(signingHandler)
+                .headers()
+                .alg(JwsAlgorithm.HS256)
+                .kid(keyId)
+                .done()
+                .claims(jwtBuilderFactory.claims().sub(subject).build())
+                .build();
+    }
+}
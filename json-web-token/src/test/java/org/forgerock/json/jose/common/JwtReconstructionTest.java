@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.exceptions.InvalidJwtException;
+import org.forgerock.json.jose.exceptions.JwtReconstructionException;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.handlers.HmacSigningHandler;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.utils.Utils;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class JwtReconstructionTest {
+
+    private static final SigningHandler SIGNING_HANDLER = new HmacSigningHandler("secret".getBytes(Utils.CHARSET));
+
+    @Test
+    public void shouldVerifySignatureOverOriginalSigningInput() {
+
+        //Given
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        String jwtString = jwtBuilderFactory.jws(SIGNING_HANDLER)
+                .headers()
+                .alg(JwsAlgorithm.HS256)
+                .done()
+                .claims(jwtBuilderFactory.claims().sub("été").build())
+                .build();
+
+        //When
+        SignedJwt jwt = new JwtReconstruction().reconstructJwt(jwtString, SignedJwt.class);
+
+        //Then
+        assertThat(jwt.getClaimsSet().getSubject()).isEqualTo("été");
+        assertThat(jwt.verify(SIGNING_HANDLER)).isTrue();
+        assertThat(jwt.verify(new HmacSigningHandler("other".getBytes(Utils.CHARSET)))).isFalse();
+    }
+
+    @Test
+    public void shouldReconstructLargeJwtsRepeatedly() {
+
+        //Given
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        StringBuilder subject = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            subject.append((char) ('a' + i % 26));
+        }
+        String large = signedJwt(jwtBuilderFactory, subject.toString());
+        String small = signedJwt(jwtBuilderFactory, "alice");
+        JwtReconstruction jwtReconstruction = new JwtReconstruction();
+
+        //When
+        SignedJwt first = jwtReconstruction.reconstructJwt(small, SignedJwt.class);
+        SignedJwt second = jwtReconstruction.reconstructJwt(large, SignedJwt.class);
+        SignedJwt third = jwtReconstruction.reconstructJwt(small, SignedJwt.class);
+
+        //Then
+        assertThat(first.getClaimsSet().getSubject()).isEqualTo("alice");
+        assertThat(second.getClaimsSet().getSubject()).isEqualTo(subject.toString());
+        assertThat(third.getClaimsSet().getSubject()).isEqualTo("alice");
+        assertThat(second.verify(SIGNING_HANDLER)).isTrue();
+    }
+
+    @Test(expectedExceptions = InvalidJwtException.class)
+    public void shouldRejectWrongNumberOfDots() {
+        new JwtReconstruction().reconstructJwt("a.b.c.d", SignedJwt.class);
+    }
+
+    @Test(expectedExceptions = JwtReconstructionException.class)
+    public void shouldRejectInvalidBase64url() {
+        String jwtString = signedJwt(new JwtBuilderFactory(), "alice");
+        new JwtReconstruction().reconstructJwt(jwtString.replaceFirst("\\.", "!."), SignedJwt.class);
+    }
+
+    private String signedJwt(JwtBuilderFactory jwtBuilderFactory, String subject) {
+        return jwtBuilderFactory.jws(SIGNING_HANDLER)
+                .headers()
+                .alg(JwsAlgorithm.HS256)
+                .done()
+                .claims(jwtBuilderFactory.claims().sub(subject).build())
+                .build();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.common;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.handlers.HmacSigningHandler;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.jwt.JwtClaimsSet;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class VerifiedJwtCacheTest {
+
+    private static final SigningHandler SIGNING_HANDLER = new HmacSigningHandler("secret".getBytes());
+
+    @Test
+    public void shouldReturnCachedJwtWhenVerifiedAgain() {
+
+        //Given
+        VerifiedJwtCache cache = new VerifiedJwtCache(SIGNING_HANDLER, 10, 1, TimeUnit.MINUTES);
+        String jwtString = signedJwt(SIGNING_HANDLER, "alice", null);
+
+        //When
+        SignedJwt first = cache.reconstructAndVerify(jwtString);
+        SignedJwt second = cache.reconstructAndVerify(jwtString);
+
+        //Then
+        assertThat(first).isNotNull();
+        assertThat(first.getClaimsSet().getSubject()).isEqualTo("alice");
+        assertThat(second).isSameAs(first);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCacheJwtWithInvalidSignature() {
+
+        //Given
+        VerifiedJwtCache cache = new VerifiedJwtCache(SIGNING_HANDLER, 10, 1, TimeUnit.MINUTES);
+        String jwtString = signedJwt(new HmacSigningHandler("other".getBytes()), "alice", null);
+
+        //When
+        SignedJwt first = cache.reconstructAndVerify(jwtString);
+        SignedJwt second = cache.reconstructAndVerify(jwtString);
+
+        //Then
+        assertThat(first).isNull();
+        assertThat(second).isNull();
+        assertThat(cache.getMissCount()).isEqualTo(2);
+        assertThat(cache.getHitCount()).isEqualTo(0);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotCacheExpiredJwt() {
+
+        //Given
+        VerifiedJwtCache cache = new VerifiedJwtCache(SIGNING_HANDLER, 10, 1, TimeUnit.MINUTES);
+        Date expiryTime = new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        String jwtString = signedJwt(SIGNING_HANDLER, "alice", expiryTime);
+
+        //When
+        SignedJwt first = cache.reconstructAndVerify(jwtString);
+        SignedJwt second = cache.reconstructAndVerify(jwtString);
+
+        //Then
+        assertThat(first).isNotNull();
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.getHitCount()).isEqualTo(0);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldExpireJwtAfterMaximumTimeToLive() {
+
+        //Given
+        VerifiedJwtCache cache = new VerifiedJwtCache(SIGNING_HANDLER, 10, 0, TimeUnit.MILLISECONDS);
+        String jwtString = signedJwt(SIGNING_HANDLER, "alice", null);
+
+        //When
+        SignedJwt first = cache.reconstructAndVerify(jwtString);
+        SignedJwt second = cache.reconstructAndVerify(jwtString);
+
+        //Then
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.getHitCount()).isEqualTo(0);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedJwt() {
+
+        //Given
+        VerifiedJwtCache cache = new VerifiedJwtCache(SIGNING_HANDLER, 2, 1, TimeUnit.MINUTES);
+        String alice = signedJwt(SIGNING_HANDLER, "alice", null);
+        String bob = signedJwt(SIGNING_HANDLER, "bob", null);
+        String carol = signedJwt(SIGNING_HANDLER, "carol", null);
+
+        //When
+        SignedJwt aliceJwt = cache.reconstructAndVerify(alice);
+        SignedJwt bobJwt = cache.reconstructAndVerify(bob);
+        cache.reconstructAndVerify(alice);
+        cache.reconstructAndVerify(carol);
+
+        //Then
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.reconstructAndVerify(alice)).isSameAs(aliceJwt);
+        assertThat(cache.reconstructAndVerify(bob)).isNotSameAs(bobJwt);
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        assertThat(cache.getMissCount()).isEqualTo(4);
+    }
+
+    private String signedJwt(SigningHandler signingHandler, String subject, Date expiryTime) {
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        JwtClaimsSet claimsSet = jwtBuilderFactory.claims().sub(subject).build();
+        if (expiryTime != null) {
+            claimsSet.setExpirationTime(expiryTime);
+        }
+        return jwtBuilderFactory.jws(signingHandler)
+                .headers()
+                .alg(JwsAlgorithm.HS256)
+                .done()
+                .claims(claimsSet)
+                .build();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.jwk;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.forgerock.json.fluent.JsonException;
+import org.forgerock.json.jose.helper.KeysHelper;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.handlers.HmacSigningHandler;
+import org.forgerock.json.jose.jws.handlers.RSASigningHandler;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.utils.Utils;
+import org.forgerock.util.encode.Base64url;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class JWKSetSigningHandlerResolverTest {
+
+    private static final byte[] SECRET = "secret".getBytes(Utils.CHARSET);
+
+    @Test
+    public void shouldResolveRsaKeyByKeyIdAndAlgorithm() {
+
+        //Given
+        JWK jwk = new RsaJWK(KeysHelper.getRSAPublicKey(), KeyUse.SIG, "RS256", "rsa", null, null, null);
+        JWKSetSigningHandlerResolver resolver = new JWKSetSigningHandlerResolver(new JWKSet(Arrays.asList(jwk)));
+        byte[] signature = new RSASigningHandler(KeysHelper.getRSAPrivateKey()).sign(JwsAlgorithm.RS256, "data");
+
+        //When
+        SigningHandler signingHandler = resolver.getSigningHandler("rsa", JwsAlgorithm.RS256);
+
+        //Then
+        assertThat(signingHandler.verify(JwsAlgorithm.RS256, "data".getBytes(Utils.CHARSET), signature)).isTrue();
+        assertThat(resolver.getSigningHandler("rsa", JwsAlgorithm.RS256)).isSameAs(signingHandler);
+        assertThat(resolver.getSigningHandler("rsa", JwsAlgorithm.HS256)).isNull();
+        assertThat(resolver.getSigningHandler("other", JwsAlgorithm.RS256)).isNull();
+    }
+
+    @Test
+    public void shouldIndexKeyWithoutAlgorithmUnderAllAlgorithmsOfItsType() {
+
+        //Given
+        JWK jwk = octJwk(null, "oct", SECRET);
+        JWKSetSigningHandlerResolver resolver = new JWKSetSigningHandlerResolver(new JWKSet(Arrays.asList(jwk)));
+        byte[] signature = new HmacSigningHandler(SECRET).sign(JwsAlgorithm.HS512, "data");
+
+        //When
+        SigningHandler signingHandler = resolver.getSigningHandler("oct", JwsAlgorithm.HS512);
+
+        //Then
+        assertThat(signingHandler.verify(JwsAlgorithm.HS512, "data".getBytes(Utils.CHARSET), signature)).isTrue();
+        assertThat(resolver.getSigningHandler("oct", JwsAlgorithm.HS256)).isNotNull();
+        assertThat(resolver.getSigningHandler("oct", JwsAlgorithm.RS256)).isNull();
+    }
+
+    @Test
+    public void shouldResolveMissingKeyIdOnlyWhenUnambiguous() {
+
+        //Given
+        JWK hs256 = octJwk("HS256", "first", SECRET);
+        JWK hs512 = octJwk("HS512", "second", SECRET);
+        JWK anotherHs512 = octJwk("HS512", null, SECRET);
+
+        //When
+        JWKSetSigningHandlerResolver resolver =
+                new JWKSetSigningHandlerResolver(new JWKSet(Arrays.asList(hs256, hs512, anotherHs512)));
+
+        //Then
+        assertThat(resolver.getSigningHandler(null, JwsAlgorithm.HS256))
+                .isSameAs(resolver.getSigningHandler("first", JwsAlgorithm.HS256));
+        assertThat(resolver.getSigningHandler(null, JwsAlgorithm.HS512)).isNull();
+    }
+
+    @Test
+    public void shouldIgnoreEncryptionKeys() {
+
+        //Given
+        JWK jwk = new RsaJWK(KeysHelper.getRSAPublicKey(), KeyUse.ENC, null, "rsa", null, null, null);
+
+        //When
+        JWKSetSigningHandlerResolver resolver = new JWKSetSigningHandlerResolver(new JWKSet(Arrays.asList(jwk)));
+
+        //Then
+        assertThat(resolver.getSigningHandler("rsa", JwsAlgorithm.RS256)).isNull();
+    }
+
+    @Test
+    public void shouldReplaceKeysWhenLoadingFile() throws Exception {
+
+        //Given
+        JWKSetSigningHandlerResolver resolver =
+                new JWKSetSigningHandlerResolver(new JWKSet(Collections.<JWK>emptyList()));
+        File file = File.createTempFile("jwks", ".json");
+        file.deleteOnExit();
+        write(file, new JWKSet(Arrays.asList(octJwk("HS256", "oct", SECRET))).toJsonString());
+
+        //When
+        resolver.load(file);
+
+        //Then
+        assertThat(resolver.getSigningHandler("oct", JwsAlgorithm.HS256)).isNotNull();
+
+        //When
+        write(file, "{\"keys\":[{\"kty\":\"oct\",\"kid\":\"invalid\",\"k\":\"$\"}]}");
+        try {
+            resolver.load(file);
+        } catch (JsonException e) {
+            // Expected.
+        }
+
+        //Then
+        assertThat(resolver.getSigningHandler("oct", JwsAlgorithm.HS256)).isNotNull();
+        assertThat(resolver.getSigningHandler("invalid", JwsAlgorithm.HS256)).isNull();
+    }
+
+    private JWK octJwk(String algorithm, String keyId, byte[] secret) {
+        return new OctJWK(KeyUse.SIG, algorithm, keyId, Base64url.encode(secret), null, null, null);
+    }
+
+    private void write(File file, String content) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(Utils.CHARSET));
+        } finally {
+            out.close();
+        }
+    }
+}
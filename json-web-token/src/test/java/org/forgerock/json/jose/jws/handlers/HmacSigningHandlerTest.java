@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.jws.handlers;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.utils.Utils;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class HmacSigningHandlerTest {
+
+    @Test
+    public void shouldSignWithOwnSecretWhenHandlersShareThread() throws Exception {
+
+        //Given
+        SigningHandler alice = new HmacSigningHandler("alice".getBytes(Utils.CHARSET));
+        SigningHandler bob = new HmacSigningHandler("bob".getBytes(Utils.CHARSET));
+
+        for (int i = 0; i < 3; i++) {
+            //When
+            byte[] aliceSignature = alice.sign(JwsAlgorithm.HS256, "data" + i);
+            byte[] bobSignature = bob.sign(JwsAlgorithm.HS256, "data" + i);
+
+            //Then
+            assertThat(aliceSignature).isEqualTo(hmac("HmacSHA256", "alice", "data" + i));
+            assertThat(bobSignature).isEqualTo(hmac("HmacSHA256", "bob", "data" + i));
+        }
+    }
+
+    @Test
+    public void shouldSignWithEachAlgorithm() throws Exception {
+
+        //Given
+        SigningHandler handler = new HmacSigningHandler("secret".getBytes(Utils.CHARSET));
+
+        //When
+        byte[] hs256 = handler.sign(JwsAlgorithm.HS256, "data");
+        byte[] hs512 = handler.sign(JwsAlgorithm.HS512, "data");
+
+        //Then
+        assertThat(hs256).isEqualTo(hmac("HmacSHA256", "secret", "data"));
+        assertThat(hs512).isEqualTo(hmac("HmacSHA512", "secret", "data"));
+        assertThat(handler.verify(JwsAlgorithm.HS256, "data".getBytes(Utils.CHARSET), hs256)).isTrue();
+        assertThat(handler.verify(JwsAlgorithm.HS512, "data".getBytes(Utils.CHARSET), hs256)).isFalse();
+    }
+
+    @Test
+    public void shouldSignConcurrently() throws Exception {
+
+        //Given
+        final SigningHandler handler = new HmacSigningHandler("secret".getBytes(Utils.CHARSET));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        //When
+        try {
+            for (int i = 0; i < 8; i++) {
+                final String data = "data" + i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] expected = hmac("HmacSHA256", "secret", data);
+                        for (int j = 0; j < 100; j++) {
+                            byte[] signature = handler.sign(JwsAlgorithm.HS256, data);
+                            if (!Arrays.equals(signature, expected)
+                                    || !handler.verify(JwsAlgorithm.HS256, data.getBytes(Utils.CHARSET), signature)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+
+            //Then
+            for (Future<Boolean> result : results) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] hmac(String algorithm, String secret, String data) throws Exception {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(secret.getBytes(Utils.CHARSET), algorithm));
+        return mac.doFinal(data.getBytes(Utils.CHARSET));
+    }
+}
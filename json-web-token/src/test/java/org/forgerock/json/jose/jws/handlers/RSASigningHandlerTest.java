@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.jws.handlers;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.forgerock.json.jose.exceptions.JwsVerifyingException;
+import org.forgerock.json.jose.helper.KeysHelper;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.utils.Utils;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class RSASigningHandlerTest {
+
+    private final SigningHandler signer = new RSASigningHandler(KeysHelper.getRSAPrivateKey());
+    private final SigningHandler verifier = new RSASigningHandler(KeysHelper.getRSAPublicKey());
+
+    @Test
+    public void shouldVerifyRepeatedSignatures() {
+
+        for (int i = 0; i < 3; i++) {
+            //When
+            byte[] signature = signer.sign(JwsAlgorithm.RS256, "data" + i);
+
+            //Then
+            assertThat(verifier.verify(JwsAlgorithm.RS256, ("data" + i).getBytes(Utils.CHARSET), signature))
+                    .isTrue();
+            assertThat(verifier.verify(JwsAlgorithm.RS256, "other".getBytes(Utils.CHARSET), signature)).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldVerifyAfterMalformedSignature() {
+
+        //Given
+        byte[] signature = signer.sign(JwsAlgorithm.RS256, "data");
+        try {
+            verifier.verify(JwsAlgorithm.RS256, "data".getBytes(Utils.CHARSET), new byte[] { 1, 2, 3 });
+        } catch (JwsVerifyingException e) {
+            // Some providers reject signatures of the wrong length rather than failing verification.
+        }
+
+        //When
+        boolean verified = verifier.verify(JwsAlgorithm.RS256, "data".getBytes(Utils.CHARSET), signature);
+
+        //Then
+        assertThat(verified).isTrue();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldNotSignWithPublicKey() {
+        verifier.sign(JwsAlgorithm.RS256, "data");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2014 ForgeRock AS.
+ */
+
+package org.forgerock.json.jose.utils;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Random;
+
+import org.forgerock.json.jose.exceptions.InvalidJwtException;
+import org.forgerock.util.encode.Base64url;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class UtilsTest {
+
+    @Test
+    public void shouldDecodeBase64urlRangeLikeBase64url() {
+
+        //Given
+        Random random = new Random(0);
+
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = "x." + Base64url.encode(bytes) + ".y";
+
+            //When
+            byte[] decoded = Utils.base64urlDecode(encoded, 2, encoded.length() - 2);
+
+            //Then
+            assertThat(decoded).isEqualTo(bytes);
+        }
+    }
+
+    @Test
+    public void shouldIgnoreTrailingPadding() {
+        assertThat(Utils.base64urlDecode("YWI=", 0, 4)).isEqualTo("ab".getBytes(Utils.CHARSET));
+    }
+
+    @Test(expectedExceptions = InvalidJwtException.class)
+    public void shouldRejectInvalidCharacters() {
+        Utils.base64urlDecode("YW+i", 0, 4);
+    }
+
+    @Test(expectedExceptions = InvalidJwtException.class)
+    public void shouldRejectInvalidLength() {
+        Utils.base64urlDecode("YWJjZ", 0, 5);
+    }
+
+    @Test
+    public void shouldParseJsonFromBytes() {
+
+        //Given
+        byte[] json = "xx{\"a\":\"é\"}xx".getBytes(Utils.CHARSET);
+
+        //When
+        Object value = Utils.parseJson(json, 2, json.length - 4).get("a");
+
+        //Then
+        assertThat(value).isEqualTo("é");
+    }
+}